@@ -25,6 +25,7 @@ public class DumpServiceState extends NetLoadableConsoleApp {
 	private String _dumpState() {
 		
 		StringBuilder sb = new StringBuilder();
+		sb.append(NetBase.theNetBase().runtime()).append("   threads: ").append(Thread.activeCount()).append("\n");
 
 		List<String> serviceList = NetBase.theNetBase().loadedServiceNames();
 		for ( String sName : serviceList ) {
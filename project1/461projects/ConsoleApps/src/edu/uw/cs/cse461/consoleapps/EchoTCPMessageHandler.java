@@ -2,13 +2,13 @@ package edu.uw.cs.cse461.consoleapps;
 
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 
 import edu.uw.cs.cse461.consoleapps.PingInterface.PingTCPMessageHandlerInterface;
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.Transport;
 import edu.uw.cs.cse461.service.EchoServiceBase;
 import edu.uw.cs.cse461.util.ConfigManager;
 
@@ -45,22 +45,24 @@ public class EchoTCPMessageHandler extends NetLoadableConsoleApp {
 			int targetTCPPort = Integer.parseInt( targetTCPPortStr );
 
 			int socketTimeout = config.getAsInt("net.timeout.socket", 2000);
+			Transport transport = Transport.fromConfig("tcpmessagehandler.transport");
 
 			while ( true ) {
 				System.out.print("Enter message to be echoed, or empty string to exit: ");
 				String msg = console.readLine();
 				if ( msg.isEmpty() ) return;
 
-				Socket tcpSocket = null;
 				TCPMessageHandler tcpMessageHandlerSocket = null;
 				try {
-					tcpSocket = new Socket(targetIP, targetTCPPort);
-					tcpMessageHandlerSocket = new TCPMessageHandler(tcpSocket);
+					tcpMessageHandlerSocket = new TCPMessageHandler(transport.connect(targetIP, targetTCPPort));
 					tcpMessageHandlerSocket.setTimeout(socketTimeout);
 					tcpMessageHandlerSocket.setNoDelay(true);
 
+					// send the header and the message in one write
+					tcpMessageHandlerSocket.cork();
 					tcpMessageHandlerSocket.sendMessage(EchoServiceBase.HEADER_STR);
 					tcpMessageHandlerSocket.sendMessage(msg);
+					tcpMessageHandlerSocket.uncork();
 					
 					// read response header
 					String headerStr = tcpMessageHandlerSocket.readMessageAsString();
@@ -0,0 +1,130 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.rpc.RPCCallableMethod;
+import edu.uw.cs.cse461.net.rpc.RPCService;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.util.IPFinder;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Drives the local RPCService with increasing numbers of concurrent keep-alive clients, each making
+ * back to back calls to a trivial echo method on its own connection, and reports the call rate along
+ * with the most threads the JVM had running at once.  With the service's bounded worker pool the
+ * thread count should grow with the number of clients only by the client threads themselves.
+ * <p>
+ * The clients speak the RPC protocol directly (RPCCall shares one connection per target), so
+ * nothing needs to be running but this app's own RPCService.
+ */
+public class RPCServiceBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="RPCServiceBenchmark";
+
+	private static final int[] CLIENT_COUNTS = { 1, 2, 4, 16, 64, 256 };
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public RPCServiceBenchmark() {
+		super("rpcservicebenchmark");
+	}
+
+	/**
+	 * The method the clients call.
+	 */
+	public JSONObject _echo(JSONObject args) {
+		return args;
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+
+			System.out.print("Enter number of calls per client (empty for 2000): ");
+			String callStr = console.readLine();
+			int nCalls = (callStr == null || callStr.trim().isEmpty()) ? 2000 : Integer.parseInt(callStr.trim());
+
+			RPCService rpcService = (RPCService)NetBase.theNetBase().getService("rpc");
+			if ( rpcService == null ) throw new Exception("The RPC service isn't loaded");
+			rpcService.registerHandler(loadablename(), "echo", new RPCCallableMethod(this, "_echo"));
+
+			String ip = IPFinder.localIP();
+			int port = rpcService.localPort();
+			int timeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+			System.out.println(String.format("\n%8s %14s %14s %10s", "clients", "calls/sec.", "peak threads", "failures"));
+			for ( int nClients : CLIENT_COUNTS ) {
+				final AtomicLong failures = new AtomicLong();
+				Thread[] clients = new Thread[nClients];
+				threads.resetPeakThreadCount();
+				long start = System.nanoTime();
+				for ( int i=0; i<nClients; i++ ) {
+					clients[i] = _startClient(ip, port, timeout, nCalls, failures);
+				}
+				for ( Thread t : clients ) t.join();
+				long elapsed = System.nanoTime() - start;
+				long calls = (long)nClients * nCalls - failures.get();
+				System.out.println(String.format("%8d %14.0f %14d %10d", nClients, calls * 1000000000.0 / elapsed,
+						threads.getPeakThreadCount(), failures.get()));
+			}
+			System.out.println("\n" + rpcService.dumpState());
+		} catch (Exception e) {
+			System.out.println("RPCServiceBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts a thread that opens a keep-alive RPC connection and makes nCalls calls on it, counting
+	 * calls that don't come back (all the remaining ones, if the connection fails) in failures.
+	 */
+	private Thread _startClient(final String ip, final int port, final int timeout, final int nCalls, final AtomicLong failures) {
+		Thread client = new Thread() {
+			public void run() {
+				TCPMessageHandler handler = null;
+				int done = 0;
+				try {
+					handler = new TCPMessageHandler(Transport.fromConfig("rpc.transport").connect(ip, port));
+					handler.setTimeout(timeout);
+					handler.setNoDelay(true);
+
+					String host = NetBase.theNetBase().hostname();
+					int id = 0;
+					JSONObject connectJSON = new JSONObject().put("host", host).put("id", ++id);
+					connectJSON.put("action", "connect");
+					connectJSON.put("type", "control");
+					connectJSON.put("options", new JSONObject().put("connection", "keep-alive"));
+					handler.sendMessage(connectJSON);
+					if ( !handler.readMessageAsJSONObject().getString("type").equals("OK") ) throw new Exception("Connect refused");
+
+					JSONObject args = new JSONObject().put("message", "the quick brown fox jumps over the lazy dog");
+					for ( ; done<nCalls; done++ ) {
+						JSONObject invokeJSON = new JSONObject().put("host", host).put("id", ++id);
+						invokeJSON.put("app", loadablename());
+						invokeJSON.put("method", "echo");
+						invokeJSON.put("args", args);
+						invokeJSON.put("type", "invoke");
+						handler.sendMessage(invokeJSON);
+						if ( !handler.readMessageAsJSONObject().getString("type").equals("OK") ) failures.incrementAndGet();
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Client caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					failures.addAndGet(nCalls - done);
+				} finally {
+					if ( handler != null ) handler.close();
+				}
+			}
+		};
+		client.start();
+		return client;
+	}
+}
@@ -0,0 +1,358 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.MessageInputStream;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerBase;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.util.Log;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRate;
+import edu.uw.cs.cse461.util.SampledStatistic.TransferRateInterval;
+
+/**
+ * Measures the receive throughput of TCPMessageHandler on the DataXfer path: a local sender
+ * thread plays the part of DataXferTCPMessageHandlerService, sending xferLength bytes as a
+ * sequence of messages no longer than the max read length, and this app reads them back.
+ * <p>
+ * The same transfer is also read with a byte-at-a-time reader (the algorithm TCPMessageHandler
+ * used before reads were buffered), so the two rates can be compared directly.
+ * Everything runs over loopback within this process, so no server needs to be running.
+ * <p>
+ * A second test sends a burst of small messages and reports TCPMessageHandler's send path
+ * counters, which should show one socket write and no buffer allocation per message.
+ * A third streams a single message several times the max read length through
+ * openMessageOutputStream() and openMessageInputStream(), using a fixed size chunk on each side.
+ * The last sends RPC-like JSON messages and a DataXfer-like block of zeros with compression off and on,
+ * and reports the handler's compression counters.
+ */
+public class TCPMessageHandlerBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="TCPMessageHandlerBenchmark";
+
+	private static final String BYTEWISE_KEY = "bytewise read";
+	private static final String BUFFERED_KEY = "TCPMessageHandler read";
+	private static final String SMALL_SEND_KEY = "small message send";
+	
+	private static final int SMALL_MESSAGE_LENGTH = 100;
+	private static final int SMALL_MESSAGE_COUNT = 10000;
+	private static final int ADAPTIVE_DELAY_MICROS = 50;
+	private static final int ADAPTIVE_THRESHOLD = 8192;
+	
+	private static final String STREAM_KEY = "streamed message";
+	private static final int STREAM_MESSAGE_LENGTH = 64 * 1024 * 1024;
+	private static final int STREAM_CHUNK_LENGTH = 64 * 1024;
+	
+	private static final int JSON_MESSAGE_COUNT = 10000;
+	private static final int ZEROS_MESSAGE_COUNT = 100;
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public TCPMessageHandlerBenchmark() {
+		super("tcpmessagehandlerbenchmark");
+	}
+
+	@Override
+	public void run() {
+		ServerSocket serverSocket = null;
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+
+			System.out.print("Enter the xfer length (empty for 1000000): ");
+			String lengthStr = console.readLine();
+			int xferLength = (lengthStr == null || lengthStr.trim().isEmpty()) ? 1000000 : Integer.parseInt(lengthStr.trim());
+
+			System.out.print("Enter number of trials (empty for 10): ");
+			String trialStr = console.readLine();
+			int nTrials = (trialStr == null || trialStr.trim().isEmpty()) ? 10 : Integer.parseInt(trialStr.trim());
+
+			int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+
+			serverSocket = new ServerSocket();
+			serverSocket.bind(new InetSocketAddress("localhost", 0));
+			Thread sender = _startSender(serverSocket, xferLength, 2 * nTrials);
+
+			TransferRate.clear();
+			for ( int i=0; i<nTrials; i++ ) {
+				_trial(BYTEWISE_KEY, serverSocket.getLocalPort(), socketTimeout, xferLength, true);
+				_trial(BUFFERED_KEY, serverSocket.getLocalPort(), socketTimeout, xferLength, false);
+			}
+			sender.join();
+
+			TransferRateInterval bytewise = TransferRate.get(BYTEWISE_KEY);
+			TransferRateInterval buffered = TransferRate.get(BUFFERED_KEY);
+			System.out.println("\n" + xferLength + " bytes, " + nTrials + " trials");
+			System.out.println(String.format("%-24s %12.0f bytes/sec. (%d failures)", BYTEWISE_KEY + ":", bytewise.mean() * 1000.0, bytewise.nAborted()));
+			System.out.println(String.format("%-24s %12.0f bytes/sec. (%d failures)", BUFFERED_KEY + ":", buffered.mean() * 1000.0, buffered.nAborted()));
+			if ( bytewise.mean() > 0.0 ) System.out.println(String.format("speedup: %.1fx", buffered.mean() / bytewise.mean()));
+			
+			_smallMessageTrial(socketTimeout, false);
+			_smallMessageTrial(socketTimeout, true);
+			_streamingTrial(socketTimeout);
+			
+			String json = "{\"id\":17,\"host\":\"localhost\",\"type\":\"invoke\",\"app\":\"echorpc\",\"method\":\"echo\"," +
+						  "\"args\":{\"header\":{\"tag\":\"echo\"},\"message\":\"the quick brown fox jumps over the lazy dog\"}}";
+			_compressionTrial(socketTimeout, "RPC-like JSON", json.getBytes("UTF-8"), JSON_MESSAGE_COUNT);
+			_compressionTrial(socketTimeout, "zeros", new byte[TCPMessageHandlerBase.DEFAULT_MAX_READ_LENGTH], ZEROS_MESSAGE_COUNT);
+
+		} catch (Exception e) {
+			System.out.println("TCPMessageHandlerBenchmark.run() caught exception: " + e.getMessage());
+		} finally {
+			if ( serverSocket != null ) try { serverSocket.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Connects to the local sender and reads one complete transfer, recording its rate under key.
+	 */
+	private void _trial(String key, int port, int timeout, int xferLength, boolean bytewise) {
+		Socket sock = null;
+		try {
+			TransferRate.start(key);
+			sock = new Socket("localhost", port);
+			TCPMessageHandler handler = new TCPMessageHandler(sock);
+			handler.setTimeout(timeout);
+			int count = 0;
+			while ( count < xferLength ) {
+				int len = bytewise ? _bytewiseRead(sock.getInputStream()).length : handler.readMessageAsBytes().length;
+				if ( len == 0 ) break;
+				count += len;
+			}
+			if ( count == xferLength ) TransferRate.stop(key, xferLength);
+			else TransferRate.abort(key, xferLength);
+		} catch (Exception e) {
+			Log.w(TAG, key + " trial failed: " + e.getMessage());
+			TransferRate.abort(key, xferLength);
+		} finally {
+			if ( sock != null ) try { sock.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Sends SMALL_MESSAGE_COUNT messages of SMALL_MESSAGE_LENGTH bytes on a NoDelay connection to a
+	 * local reader, then prints the rate and the handler's send path counters.
+	 */
+	private void _smallMessageTrial(final int timeout, boolean adaptive) throws Exception {
+		String key = adaptive ? SMALL_SEND_KEY + " (adaptive)" : SMALL_SEND_KEY;
+		final ServerSocket serverSocket = new ServerSocket();
+		Socket sock = null;
+		try {
+			serverSocket.bind(new InetSocketAddress("localhost", 0));
+			Thread reader = new Thread() {
+				public void run() {
+					Socket rsock = null;
+					try {
+						serverSocket.setSoTimeout(timeout);
+						rsock = serverSocket.accept();
+						TCPMessageHandler handler = new TCPMessageHandler(rsock);
+						handler.setTimeout(timeout);
+						for ( int i=0; i<SMALL_MESSAGE_COUNT; i++ ) handler.readMessageAsBytes();
+					} catch (Exception e) {
+						Log.w(TAG, "Small message reader caught exception: " + e.getMessage());
+					} finally {
+						if ( rsock != null ) try { rsock.close(); } catch (Exception e) {}
+					}
+				}
+			};
+			reader.start();
+			
+			sock = new Socket("localhost", serverSocket.getLocalPort());
+			TCPMessageHandler handler = new TCPMessageHandler(sock);
+			handler.setNoDelay(true);
+			if ( adaptive ) handler.setAdaptiveFlush(ADAPTIVE_DELAY_MICROS, ADAPTIVE_THRESHOLD);
+			byte[] msg = new byte[SMALL_MESSAGE_LENGTH];
+			TransferRate.start(key);
+			for ( int i=0; i<SMALL_MESSAGE_COUNT; i++ ) handler.sendMessage(msg);
+			if ( adaptive ) handler.setAdaptiveFlush(0, 0);    // write whatever is still waiting
+			reader.join();
+			TransferRate.stop(key, SMALL_MESSAGE_COUNT * (4 + SMALL_MESSAGE_LENGTH));
+			
+			TransferRateInterval rate = TransferRate.get(key);
+			System.out.println("\n" + SMALL_MESSAGE_COUNT + " messages of " + SMALL_MESSAGE_LENGTH + " bytes" +
+					(adaptive ? ", adaptive flush (" + ADAPTIVE_DELAY_MICROS + " usec., " + ADAPTIVE_THRESHOLD + " bytes)" : ""));
+			System.out.println(String.format("%-24s %12.0f bytes/sec.", "send rate:", rate.mean() * 1000.0));
+			System.out.println(String.format("%-24s %12d", "messages sent:", handler.getMessagesSent()));
+			System.out.println(String.format("%-24s %12d", "socket writes:", handler.getSendCalls()));
+			System.out.println(String.format("%-24s %12d", "send buffer allocations:", handler.getSendBufferAllocations()));
+		} finally {
+			if ( sock != null ) try { sock.close(); } catch (Exception e) {}
+			try { serverSocket.close(); } catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Sends one STREAM_MESSAGE_LENGTH message a chunk at a time, and reads it back the same way.
+	 * Neither side ever holds more than STREAM_CHUNK_LENGTH bytes of it.
+	 */
+	private void _streamingTrial(final int timeout) throws Exception {
+		final ServerSocket serverSocket = new ServerSocket();
+		Socket sock = null;
+		try {
+			serverSocket.bind(new InetSocketAddress("localhost", 0));
+			final long[] received = new long[1];
+			Thread reader = new Thread() {
+				public void run() {
+					Socket rsock = null;
+					try {
+						serverSocket.setSoTimeout(timeout);
+						rsock = serverSocket.accept();
+						TCPMessageHandler handler = new TCPMessageHandler(rsock);
+						handler.setTimeout(timeout);
+						MessageInputStream in = handler.openMessageInputStream();
+						byte[] chunk = new byte[STREAM_CHUNK_LENGTH];
+						int n;
+						while ( (n = in.read(chunk)) > 0 ) received[0] += n;
+						in.close();
+					} catch (Exception e) {
+						Log.w(TAG, "Stream reader caught exception: " + e.getMessage());
+					} finally {
+						if ( rsock != null ) try { rsock.close(); } catch (Exception e) {}
+					}
+				}
+			};
+			reader.start();
+			
+			sock = new Socket("localhost", serverSocket.getLocalPort());
+			TCPMessageHandler handler = new TCPMessageHandler(sock);
+			byte[] chunk = new byte[STREAM_CHUNK_LENGTH];
+			TransferRate.start(STREAM_KEY);
+			OutputStream out = handler.openMessageOutputStream(STREAM_MESSAGE_LENGTH);
+			for ( int sent=0; sent<STREAM_MESSAGE_LENGTH; sent+=chunk.length ) out.write(chunk, 0, Math.min(chunk.length, STREAM_MESSAGE_LENGTH - sent));
+			out.close();
+			reader.join();
+			if ( received[0] == STREAM_MESSAGE_LENGTH ) TransferRate.stop(STREAM_KEY, STREAM_MESSAGE_LENGTH);
+			else TransferRate.abort(STREAM_KEY, STREAM_MESSAGE_LENGTH);
+			
+			TransferRateInterval rate = TransferRate.get(STREAM_KEY);
+			System.out.println("\n1 message of " + STREAM_MESSAGE_LENGTH + " bytes (max read length " + handler.getMaxReadLength() + "), " + STREAM_CHUNK_LENGTH + " byte chunks");
+			System.out.println(String.format("%-24s %12.0f bytes/sec. (%d failures)", STREAM_KEY + ":", rate.mean() * 1000.0, rate.nAborted()));
+		} finally {
+			if ( sock != null ) try { sock.close(); } catch (Exception e) {}
+			try { serverSocket.close(); } catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Sends count copies of msg to a local reader, once uncompressed and once compressed, and prints
+	 * the rates along with the compression counters.
+	 */
+	private void _compressionTrial(int timeout, String name, byte[] msg, int count) throws Exception {
+		System.out.println("\n" + count + " " + name + " messages of " + msg.length + " bytes");
+		for ( int compress=0; compress<2; compress++ ) {
+			String key = name + (compress == 1 ? " compressed" : " uncompressed");
+			ServerSocket serverSocket = new ServerSocket();
+			Socket sock = null;
+			Socket rsock = null;
+			try {
+				serverSocket.bind(new InetSocketAddress("localhost", 0));
+				serverSocket.setSoTimeout(timeout);
+				sock = new Socket("localhost", serverSocket.getLocalPort());
+				rsock = serverSocket.accept();
+				final TCPMessageHandler receiver = new TCPMessageHandler(rsock);
+				receiver.setTimeout(timeout);
+				TCPMessageHandler sender = new TCPMessageHandler(sock);
+				receiver.setCompression(compress == 1);
+				sender.setCompression(compress == 1);
+				
+				final int n = count;
+				final ByteBuffer dest = ByteBuffer.allocate(msg.length);
+				Thread reader = new Thread() {
+					public void run() {
+						try {
+							for ( int i=0; i<n; i++ ) {
+								dest.clear();
+								receiver.readMessageInto(dest);
+							}
+						} catch (Exception e) {
+							Log.w(TAG, "Compression reader caught exception: " + e.getMessage());
+						}
+					}
+				};
+				reader.start();
+				TransferRate.start(key);
+				for ( int i=0; i<count; i++ ) sender.sendMessage(msg);
+				reader.join();
+				TransferRate.stop(key, (long)count * msg.length);
+				
+				TransferRateInterval rate = TransferRate.get(key);
+				System.out.println(String.format("%-32s %12.0f bytes/sec.", key + ":", rate.mean() * 1000.0));
+				if ( compress == 1 ) {
+					TCPMessageHandlerStats sent = sender.getStats();
+					TCPMessageHandlerStats received = receiver.getStats();
+					System.out.println(String.format("  frames compressed/not:   %d/%d", sent.getFramesCompressed(), sent.getFramesSentUncompressed()));
+					System.out.println(String.format("  bytes before/after:      %d/%d (%.1f%%)", sent.getBytesBeforeCompression(), sent.getBytesAfterCompression(),
+							100.0 * sent.getBytesAfterCompression() / Math.max(1, sent.getBytesBeforeCompression())));
+					System.out.println(String.format("  usec. per frame deflate: %.2f   inflate: %.2f", sent.getCompressNanos() / 1000.0 / count,
+							received.getInflateNanos() / 1000.0 / Math.max(1, received.getFramesInflated())));
+				}
+			} finally {
+				if ( sock != null ) try { sock.close(); } catch (Exception e) {}
+				if ( rsock != null ) try { rsock.close(); } catch (Exception e) {}
+				try { serverSocket.close(); } catch (Exception e) {}
+			}
+		}
+	}
+	
+	/**
+	 * The original TCPMessageHandler read loop, kept here as the baseline: one InputStream.read() call per byte.
+	 */
+	private static byte[] _bytewiseRead(InputStream in) throws IOException {
+		byte[] lengthBytes = new byte[4];
+		for ( int i=0; i<4; i++ ) lengthBytes[i] = (byte)in.read();
+		int length = (lengthBytes[0] & 0xff) | ((lengthBytes[1] & 0xff) << 8) | ((lengthBytes[2] & 0xff) << 16) | ((lengthBytes[3] & 0xff) << 24);
+		byte[] response = new byte[length];
+		int next;
+		int count = 0;
+		while ( count < length && (next = in.read()) != -1 ) response[count++] = (byte)next;
+		return response;
+	}
+
+	/**
+	 * Starts a thread that serves nConnections transfers, each sent the way DataXferTCPMessageHandlerService sends them.
+	 */
+	private Thread _startSender(final ServerSocket serverSocket, final int xferLength, final int nConnections) {
+		Thread sender = new Thread() {
+			public void run() {
+				try {
+					serverSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+					for ( int i=0; i<nConnections; i++ ) {
+						Socket sock = null;
+						try {
+							sock = serverSocket.accept();
+							TCPMessageHandler handler = new TCPMessageHandler(sock);
+							byte[] buf = new byte[Math.min(xferLength, handler.getMaxReadLength())];
+							int remaining = xferLength;
+							while ( remaining > 0 ) {
+								int msgSize = Math.min(remaining, buf.length);
+								if ( msgSize == buf.length ) handler.sendMessage(buf);
+								else handler.sendMessage(new byte[msgSize]);
+								remaining -= msgSize;
+							}
+						} catch (SocketTimeoutException e) {
+							Log.w(TAG, "Sender timed out waiting for a connection");
+							return;
+						} catch (Exception e) {
+							Log.w(TAG, "Sender caught " + e.getClass().getName() + " exception: " + e.getMessage());
+						} finally {
+							if ( sock != null ) try { sock.close(); } catch (Exception e) {}
+						}
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Sender thread exiting due to exception: " + e.getMessage());
+				}
+			}
+		};
+		sender.start();
+		return sender;
+	}
+}
@@ -0,0 +1,211 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.FileReader;
+import java.io.InputStreamReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Compares the net.threading modes (see ConnectionExecutor) on an echo server built the way
+ * EchoTCPMessageHandlerService is: one thread accepting, and each connection served with blocking
+ * reads and writes on the thread the mode calls for.  For increasing numbers of concurrent clients,
+ * each opening a connection and making back to back echo round trips on it, it reports the round
+ * trip rate, and the most threads, heap and resident memory (which includes platform thread stacks)
+ * the process used above what it was using before the trial.
+ * <p>
+ * In single mode clients wait their turn, in connect() or for their first reply, so the rate is what
+ * one thread can do and the memory barely moves.  Shared mode serves them on the NetRuntime's workers,
+ * which are kept for reuse between trials.  Platform mode adds a thread, and its stack, per
+ * client.  Virtual mode (Java 21 or later; otherwise it's skipped) serves every client at once but
+ * costs a small heap object per client instead.
+ */
+public class ThreadingBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="ThreadingBenchmark";
+
+	private static final int[] CLIENT_COUNTS = { 1, 16, 256, 1024 };
+	private static final int SAMPLE_MSEC = 20;
+	private static final String MESSAGE = "the quick brown fox jumps over the lazy dog";
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public ThreadingBenchmark() {
+		super("threadingbenchmark");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+
+			System.out.print("Enter number of round trips per client (empty for 100): ");
+			String tripStr = console.readLine();
+			int nTrips = (tripStr == null || tripStr.trim().isEmpty()) ? 100 : Integer.parseInt(tripStr.trim());
+
+			List<String> modes = new ArrayList<String>();
+			modes.add(ConnectionExecutor.SINGLE);
+			modes.add(ConnectionExecutor.SHARED);
+			modes.add(ConnectionExecutor.PLATFORM);
+			if ( ConnectionExecutor.haveVirtualThreads() ) modes.add(ConnectionExecutor.VIRTUAL);
+			else System.out.println("Virtual threads need Java 21 or later; skipping virtual mode");
+
+			System.out.println(String.format("\n%-10s %8s %14s %14s %12s %12s %10s", "mode", "clients", "trips/sec.",
+					"peak threads", "heap (MB)", "rss (MB)", "failures"));
+			for ( String mode : modes ) {
+				for ( int nClients : CLIENT_COUNTS ) _trial(mode, nClients, nTrips);
+			}
+		} catch (Exception e) {
+			System.out.println("ThreadingBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Starts an echo server in the given mode, runs nClients clients against it, and prints a line of results.
+	 */
+	private void _trial(String mode, int nClients, int nTrips) throws Exception {
+		final TransportListener listener = TCPTransport.theTCPTransport().listen("localhost", 0);
+		final ConnectionExecutor executor = new ConnectionExecutor(TAG + "-" + mode, mode);
+		final AtomicBoolean done = new AtomicBoolean(false);
+		Thread acceptor = new Thread() {
+			public void run() {
+				try {
+					listener.setAcceptTimeout(SAMPLE_MSEC);
+					while ( !done.get() ) {
+						try {
+							final TransportConnection conn = listener.accept();
+							executor.execute(new Runnable() {
+								public void run() {
+									_serve(conn);
+								}
+							});
+						} catch (SocketTimeoutException e) {
+						}
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Acceptor caught " + e.getClass().getName() + " exception: " + e.getMessage());
+				}
+			}
+		};
+
+		System.gc();
+		MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+		ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+		long baseHeap = memory.getHeapMemoryUsage().getUsed();
+		long baseRss = _rss();
+		threads.resetPeakThreadCount();
+		long peakHeap = baseHeap;
+		long peakRss = baseRss;
+
+		final AtomicLong failures = new AtomicLong();
+		Thread[] clients = new Thread[nClients];
+		long start = System.nanoTime();
+		acceptor.start();
+		for ( int i=0; i<nClients; i++ ) clients[i] = _startClient(listener.localPort(), nTrips, failures);
+		for ( Thread t : clients ) {
+			while ( t.isAlive() ) {
+				t.join(SAMPLE_MSEC);
+				peakHeap = Math.max(peakHeap, memory.getHeapMemoryUsage().getUsed());
+				peakRss = Math.max(peakRss, _rss());
+			}
+		}
+		long elapsed = System.nanoTime() - start;
+		done.set(true);
+		acceptor.join();
+		listener.close();
+
+		long trips = (long)nClients * nTrips - failures.get();
+		System.out.println(String.format("%-10s %8d %14.0f %14d %12.1f %12.1f %10d", executor.mode(), nClients,
+				trips * 1000000000.0 / elapsed, threads.getPeakThreadCount(),
+				(peakHeap - baseHeap) / 1048576.0, (peakRss - baseRss) / 1048576.0, failures.get()));
+	}
+
+	/**
+	 * Echoes messages on one connection until the client closes it.
+	 */
+	private void _serve(TransportConnection conn) {
+		TCPMessageHandler handler = null;
+		try {
+			handler = new TCPMessageHandler(conn);
+			handler.setTimeout(0);
+			handler.setNoDelay(true);
+			while ( true ) {
+				String msg;
+				try {
+					msg = handler.readMessageAsString();
+				} catch (EOFException e) {
+					return;
+				}
+				handler.sendMessage(msg);
+			}
+		} catch (Exception e) {
+			Log.w(TAG, "Server caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			if ( handler != null ) handler.close();
+			else try { conn.close(); } catch (Exception e) {}
+		}
+	}
+
+	/**
+	 * Starts a thread that connects and makes nTrips round trips, counting those that don't
+	 * complete (all the remaining ones, if the connection fails) in failures.  There's no read
+	 * timeout, since in single mode a client may wait a long time for its turn.
+	 */
+	private Thread _startClient(final int port, final int nTrips, final AtomicLong failures) {
+		Thread client = new Thread() {
+			public void run() {
+				TCPMessageHandler handler = null;
+				int done = 0;
+				try {
+					handler = new TCPMessageHandler(TCPTransport.theTCPTransport().connect("localhost", port));
+					handler.setTimeout(0);
+					handler.setNoDelay(true);
+					for ( ; done<nTrips; done++ ) {
+						handler.sendMessage(MESSAGE);
+						if ( !handler.readMessageAsString().equals(MESSAGE) ) failures.incrementAndGet();
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Client caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					failures.addAndGet(nTrips - done);
+				} finally {
+					if ( handler != null ) handler.close();
+				}
+			}
+		};
+		client.start();
+		return client;
+	}
+
+	/**
+	 * Returns this process's resident set size in bytes, or 0 if it can't be found out (it's read
+	 * from /proc, so only on Linux).
+	 */
+	private static long _rss() {
+		BufferedReader reader = null;
+		try {
+			reader = new BufferedReader(new FileReader("/proc/self/status"));
+			String line;
+			while ( (line = reader.readLine()) != null ) {
+				if ( line.startsWith("VmRSS:") ) return Long.parseLong(line.replaceAll("[^0-9]", "")) * 1024;
+			}
+		} catch (Exception e) {
+		} finally {
+			if ( reader != null ) try { reader.close(); } catch (Exception e) {}
+		}
+		return 0;
+	}
+}
@@ -0,0 +1,178 @@
+package edu.uw.cs.cse461.consoleapps.perf;
+
+import java.io.BufferedReader;
+import java.io.EOFException;
+import java.io.InputStreamReader;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Compares the transports (see Transport) by running the same two tests over each of them,
+ * with both ends in this process:
+ * <ul>
+ * <li> Latency.  RPC-like JSON messages are sent to a thread that parses each one and sends it
+ *      back, one at a time.  This is the RPC path minus dispatch.
+ * <li> Throughput.  A transfer is sent as a sequence of max read length messages to a thread
+ *      that reads them, the way DataXferTCPMessageHandlerService sends one.
+ * </ul>
+ * Over the memory transport there's no kernel involvement, so its numbers are the cost of
+ * framing and JSON alone, and the difference from tcp is the cost of the loopback connection.
+ * The unix and shm transports show how much of that a Unix domain socket, and shared memory, save.
+ */
+public class TransportBenchmark extends NetLoadableConsoleApp {
+	private static final String TAG="TransportBenchmark";
+
+	private static final String[] TRANSPORTS = { "tcp", "unix", "shm", "memory" };
+
+	private static final String ECHO_HEADER = "echo";
+	private static final String SINK_HEADER = "sink";
+
+	private static final String JSON_MESSAGE = "{\"id\":17,\"host\":\"localhost\",\"type\":\"invoke\",\"app\":\"echorpc\",\"method\":\"echo\"," +
+											   "\"args\":{\"header\":{\"tag\":\"echo\"},\"message\":\"the quick brown fox jumps over the lazy dog\"}}";
+
+	// ConsoleApp's must have a constructor taking no arguments
+	public TransportBenchmark() {
+		super("transportbenchmark");
+	}
+
+	@Override
+	public void run() {
+		try {
+			// Eclipse doesn't support System.console()
+			BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
+
+			System.out.print("Enter number of round trips (empty for 20000): ");
+			String tripStr = console.readLine();
+			int nTrips = (tripStr == null || tripStr.trim().isEmpty()) ? 20000 : Integer.parseInt(tripStr.trim());
+
+			System.out.print("Enter the xfer length (empty for 100000000): ");
+			String lengthStr = console.readLine();
+			long xferLength = (lengthStr == null || lengthStr.trim().isEmpty()) ? 100000000L : Long.parseLong(lengthStr.trim());
+
+			int timeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+
+			System.out.println(String.format("\n%-10s %16s %16s", "transport", "usec/round trip", "MB/sec."));
+			for ( String name : TRANSPORTS ) {
+				Transport transport = Transport.forName(name);
+				double usec = _latencyTrial(transport, timeout, nTrips);
+				double rate = _throughputTrial(transport, timeout, xferLength);
+				System.out.println(String.format("%-10s %16.1f %16.1f", transport.name(), usec, rate / 1000000.0));
+			}
+		} catch (Exception e) {
+			System.out.println("TransportBenchmark.run() caught exception: " + e.getMessage());
+		}
+	}
+
+	/**
+	 * Sends nTrips JSON messages to an echoing thread, each after the previous one comes back.
+	 * @return Mean microseconds per round trip
+	 */
+	private double _latencyTrial(Transport transport, int timeout, int nTrips) throws Exception {
+		TransportListener listener = transport.listen("localhost", 0);
+		TCPMessageHandler handler = null;
+		try {
+			Thread server = _startServer(listener, timeout);
+			handler = new TCPMessageHandler(transport.connect("localhost", listener.localPort()));
+			handler.setTimeout(timeout);
+			handler.setNoDelay(true);
+			handler.sendMessage(ECHO_HEADER);
+
+			JSONObject msg = new JSONObject(JSON_MESSAGE);
+			long start = System.nanoTime();
+			for ( int i=0; i<nTrips; i++ ) {
+				handler.sendMessage(msg);
+				msg = handler.readMessageAsJSONObject();
+			}
+			long elapsed = System.nanoTime() - start;
+			handler.close();
+			handler = null;
+			server.join();
+			return elapsed / 1000.0 / nTrips;
+		} finally {
+			if ( handler != null ) handler.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * Sends xferLength bytes, as max read length messages, to a thread that reads and counts them.
+	 * @return Bytes per second
+	 */
+	private double _throughputTrial(Transport transport, int timeout, long xferLength) throws Exception {
+		TransportListener listener = transport.listen("localhost", 0);
+		TCPMessageHandler handler = null;
+		try {
+			Thread server = _startServer(listener, timeout);
+			handler = new TCPMessageHandler(transport.connect("localhost", listener.localPort()));
+			handler.setTimeout(timeout);
+			handler.sendMessage(SINK_HEADER);
+
+			byte[] buf = new byte[handler.getMaxReadLength()];
+			long start = System.nanoTime();
+			for ( long sent=0; sent<xferLength; sent+=buf.length ) {
+				if ( xferLength - sent >= buf.length ) handler.sendMessage(buf);
+				else handler.sendMessage(new byte[(int)(xferLength - sent)]);
+			}
+			handler.sendMessage(new byte[0]);
+			long received = Long.parseLong(handler.readMessageAsString());
+			long elapsed = System.nanoTime() - start;
+			server.join();
+			if ( received != xferLength ) throw new Exception(transport + ": sent " + xferLength + " bytes but " + received + " arrived");
+			return xferLength * 1000000000.0 / elapsed;
+		} finally {
+			if ( handler != null ) handler.close();
+			listener.close();
+		}
+	}
+
+	/**
+	 * Starts a thread that accepts one connection and serves it according to the header message it
+	 * begins with: ECHO_HEADER connections have each JSON message sent back until the client closes;
+	 * SINK_HEADER connections have their messages counted until an empty one, which is answered with the count.
+	 */
+	private Thread _startServer(final TransportListener listener, final int timeout) {
+		Thread server = new Thread() {
+			public void run() {
+				TCPMessageHandler handler = null;
+				try {
+					listener.setAcceptTimeout(timeout);
+					TransportConnection conn = listener.accept();
+					handler = new TCPMessageHandler(conn);
+					handler.setTimeout(timeout);
+					handler.setNoDelay(true);
+					String header = handler.readMessageAsString();
+					if ( header.equals(ECHO_HEADER) ) {
+						while ( true ) {
+							JSONObject msg;
+							try {
+								msg = handler.readMessageAsJSONObject();
+							} catch (EOFException e) {
+								return;
+							}
+							handler.sendMessage(msg);
+						}
+					} else {
+						long count = 0;
+						byte[] msg;
+						while ( (msg = handler.readMessageAsBytes()).length > 0 ) count += msg.length;
+						handler.sendMessage(Long.toString(count));
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Server thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+				} finally {
+					if ( handler != null ) handler.close();
+				}
+			}
+		};
+		server.start();
+		return server;
+	}
+}
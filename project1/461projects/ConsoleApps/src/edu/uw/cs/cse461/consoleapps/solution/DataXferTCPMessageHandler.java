@@ -3,8 +3,9 @@ package edu.uw.cs.cse461.consoleapps.solution;
 import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStreamReader;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
 
 import org.json.JSONException;
 import org.json.JSONObject;
@@ -13,6 +14,7 @@ import edu.uw.cs.cse461.consoleapps.DataXferInterface.DataXferTCPMessageHandlerI
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.Transport;
 import edu.uw.cs.cse461.service.DataXferRawService;
 import edu.uw.cs.cse461.service.DataXferServiceBase;
 import edu.uw.cs.cse461.service.EchoServiceBase;
@@ -28,21 +30,24 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 	}
 	
 	public byte[] DataXfer(String header, String hostIP, int port, int timeout, int xferLength) throws JSONException, IOException {		
-		Socket tcpSocket = null;
 		TCPMessageHandler tcpMessageHandlerSocket = null;
-		StringBuffer buf = new StringBuffer();
+		// the payload is read straight into the array we return, with no per-message allocation
+		byte[] response = new byte[xferLength];
+		ByteBuffer buf = ByteBuffer.wrap(response);
 
 		try {
-			tcpSocket = new Socket(hostIP, port);
-			tcpMessageHandlerSocket = new TCPMessageHandler(tcpSocket);
+			tcpMessageHandlerSocket = new TCPMessageHandler(Transport.fromConfig("tcpmessagehandler.transport").connect(hostIP, port));
 			tcpMessageHandlerSocket.setTimeout(timeout);
 			tcpMessageHandlerSocket.setNoDelay(true);
 
+			// the header and the transfer request go out in one write
+			tcpMessageHandlerSocket.cork();
 			tcpMessageHandlerSocket.sendMessage(header);
 			
 			JSONObject json = new JSONObject();
 			json.put("transferSize", new Integer(xferLength));
 			tcpMessageHandlerSocket.sendMessage(json);
+			tcpMessageHandlerSocket.uncork();
 						
 			// read response header
 			String headerStr = tcpMessageHandlerSocket.readMessageAsString();
@@ -50,18 +55,12 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 				throw new Exception("Bad response header: '" + headerStr + "'");
 			}
 			
-			String responseStr = tcpMessageHandlerSocket.readMessageAsString();
-			buf.append(responseStr);
-			int charsRead = responseStr.length();
-			int count = charsRead;
-			while(charsRead > 0 && count < xferLength){
-				responseStr = tcpMessageHandlerSocket.readMessageAsString();
-				charsRead = responseStr.length();
-				count += charsRead;
-				buf.append(responseStr);
+			int bytesRead = tcpMessageHandlerSocket.readMessageInto(buf);
+			while(bytesRead > 0 && buf.hasRemaining()){
+				bytesRead = tcpMessageHandlerSocket.readMessageInto(buf);
 			}
-			if (count != xferLength) {
-				throw new Exception("Bad response payload: expected " + xferLength + "bytes, received " + charsRead + " bytes.");
+			if (buf.position() != xferLength) {
+				throw new Exception("Bad response payload: expected " + xferLength + "bytes, received " + buf.position() + " bytes.");
 			}
 		} catch (SocketTimeoutException e) {
 			System.out.println("Timed out");
@@ -77,8 +76,8 @@ public class DataXferTCPMessageHandler extends NetLoadableConsoleApp implements
 			}
 		}
 		
-		return buf.toString().getBytes();
-	//	return response;
+		if ( buf.position() == xferLength ) return response;
+		return Arrays.copyOf(response, buf.position());
 	}
 	
 	public TransferRateInterval DataXferRate(String header, String hostIP, int port, int timeout, int xferLength, int nTrials) {		
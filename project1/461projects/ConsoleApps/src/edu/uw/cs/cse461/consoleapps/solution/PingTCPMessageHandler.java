@@ -5,7 +5,6 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 
@@ -13,6 +12,8 @@ import edu.uw.cs.cse461.consoleapps.PingInterface.PingTCPMessageHandlerInterface
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableConsoleApp;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
 import edu.uw.cs.cse461.service.EchoServiceBase;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.SampledStatistic.ElapsedTime;
@@ -27,23 +28,27 @@ public class PingTCPMessageHandler extends NetLoadableConsoleApp implements Ping
 
 	public ElapsedTimeInterval ping(String header, String hostIP, int port, int timeout, int nTrials) throws Exception
 	{
-		Socket socket = null;	
+		TransportConnection socket = null;	
 		boolean socket_timeout = false;
 		boolean bad_header = false;
 		boolean exception_thrown = false;
 		String response = null;
 		
 		TCPMessageHandler handler = null;
+		Transport transport = Transport.fromConfig("tcpmessagehandler.transport");
 		
 		for (int i = 0; i < nTrials; i++) {
 			ElapsedTime.start("PingTCPMessageHandler");
 			try {
-				socket = new Socket(hostIP, port);
+				socket = transport.connect(hostIP, port);
 				handler = new TCPMessageHandler(socket);
 				handler.setTimeout(timeout);
 				
+				// send the header and the empty message in one write
+				handler.cork();
 				handler.sendMessage(header);		
 				handler.sendMessage("");
+				handler.uncork();
 				
 				response = handler.readMessageAsString();
 				if(!response.equals("okay")) {
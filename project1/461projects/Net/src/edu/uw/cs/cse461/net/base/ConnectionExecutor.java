@@ -0,0 +1,194 @@
+package edu.uw.cs.cse461.net.base;
+
+import java.lang.reflect.Method;
+import java.util.LinkedList;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Decides which thread serves a connection a service has just accepted, according to config
+ * entry net.threading:
+ * <ul>
+ * <li> single (the default): a service handles one client at a time.  Connections wait their turn in a queue,
+ *      and are served one after another by NetRuntime worker threads (or, with no NetRuntime, by the caller).
+ * <li> shared: each connection is served by a NetRuntime worker, so clients are served concurrently, by
+ *      threads that are reused from one connection to the next.
+ * <li> platform: a new platform (OS) thread per connection.
+ * <li> virtual: a new virtual thread per connection.  Virtual threads are cheap enough to have one per
+ *      client even with thousands of clients, and a blocking read parks only the virtual thread, so the
+ *      services keep their simple blocking style.  They need Java 21 or later; on an older JVM platform
+ *      threads are used instead, with a warning.
+ * </ul>
+ * A service creates one ConnectionExecutor and passes each accepted connection's work to execute().
+ * The counts it keeps are included in the service's dumpState().
+ */
+public class ConnectionExecutor {
+	private static final String TAG="ConnectionExecutor";
+
+	public static final String SINGLE = "single";
+	public static final String SHARED = "shared";
+	public static final String PLATFORM = "platform";
+	public static final String VIRTUAL = "virtual";
+
+	// Thread.startVirtualThread(Runnable), looked up reflectively so the code still builds and runs before Java 21
+	private static final Method startVirtualThread = _findStartVirtualThread();
+
+	private String mName;
+	private String mMode;
+	private int mCount;
+
+	private final AtomicInteger mActive = new AtomicInteger();
+	private final AtomicLong mExecuted = new AtomicLong();
+	private volatile int mPeakActive;
+
+	// single mode's queue of connections waiting their turn, and whether a worker is draining it
+	private LinkedList<Runnable> mSerialQueue = new LinkedList<Runnable>();
+	private boolean mSerialRunning;
+
+	/**
+	 * Creates an executor in the mode given by net.threading.
+	 * @param name Names the threads created, and the executor in log messages.
+	 */
+	public static ConnectionExecutor fromConfig(String name) {
+		String mode = SINGLE;
+		NetBase netBase = NetBase.theNetBase();
+		if ( netBase != null ) mode = netBase.config().getProperty("net.threading", SINGLE).trim();
+		return new ConnectionExecutor(name, mode);
+	}
+
+	/**
+	 * @param mode single, shared, platform or virtual.  Anything else is taken as single, with a warning.
+	 */
+	public ConnectionExecutor(String name, String mode) {
+		mName = name;
+		mCount = 0;
+		if ( mode.equals(VIRTUAL) && startVirtualThread == null ) {
+			Log.w(TAG, name + ": virtual threads need Java 21 or later; using platform threads");
+			mode = PLATFORM;
+		} else if ( mode.equals(SHARED) && _runtime() == null ) {
+			Log.w(TAG, name + ": shared mode needs a NetRuntime; using platform threads");
+			mode = PLATFORM;
+		} else if ( !mode.equals(SINGLE) && !mode.equals(SHARED) && !mode.equals(PLATFORM) && !mode.equals(VIRTUAL) ) {
+			Log.w(TAG, name + ": unknown net.threading value '" + mode + "'; using single");
+			mode = SINGLE;
+		}
+		mMode = mode;
+	}
+
+	private static NetRuntime _runtime() {
+		NetBase netBase = NetBase.theNetBase();
+		return netBase == null ? null : netBase.runtime();
+	}
+
+	private static Method _findStartVirtualThread() {
+		try {
+			return Thread.class.getMethod("startVirtualThread", Runnable.class);
+		} catch (NoSuchMethodException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Returns true if virtual threads are available in this JVM.
+	 */
+	public static boolean haveVirtualThreads() {
+		return startVirtualThread != null;
+	}
+
+	/**
+	 * Returns the mode actually in use, which may differ from the one asked for.
+	 */
+	public String mode() {
+		return mMode;
+	}
+
+	/**
+	 * Runs task on the thread the mode calls for.  It doesn't block, except in single mode when
+	 * there's no NetRuntime, where task runs before this returns.
+	 */
+	public void execute(final Runnable task) throws Exception {
+		mExecuted.incrementAndGet();
+		Runnable counted = new Runnable() {
+			public void run() {
+				int active = mActive.incrementAndGet();
+				if ( active > mPeakActive ) mPeakActive = active;
+				try {
+					task.run();
+				} finally {
+					mActive.decrementAndGet();
+				}
+			}
+		};
+		if ( mMode.equals(SINGLE) ) {
+			if ( _runtime() == null ) counted.run();
+			else _enqueueSerial(counted);
+		} else if ( mMode.equals(SHARED) ) {
+			_runtime().execute(counted);
+		} else if ( mMode.equals(VIRTUAL) ) {
+			startVirtualThread.invoke(null, counted);
+		} else {
+			Thread t = new Thread(counted, mName + "-" + _nextCount());
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Adds task to single mode's queue, and has a worker start draining it if none is.
+	 */
+	private void _enqueueSerial(Runnable task) {
+		synchronized (mSerialQueue) {
+			mSerialQueue.add(task);
+			if ( mSerialRunning ) return;
+			mSerialRunning = true;
+		}
+		try {
+			_runtime().execute(new Runnable() {
+				public void run() {
+					while ( true ) {
+						Runnable next;
+						synchronized (mSerialQueue) {
+							next = mSerialQueue.poll();
+							if ( next == null ) {
+								mSerialRunning = false;
+								return;
+							}
+						}
+						next.run();
+					}
+				}
+			});
+		} catch (RuntimeException e) {
+			synchronized (mSerialQueue) {
+				mSerialQueue.remove(task);
+				mSerialRunning = false;
+			}
+			throw e;
+		}
+	}
+
+	private synchronized int _nextCount() {
+		return ++mCount;
+	}
+
+	/**
+	 * Returns the number of connections being served right now.
+	 */
+	public int active() {
+		return mActive.get();
+	}
+
+	@Override
+	public String toString() {
+		String waiting = "";
+		if ( mMode.equals(SINGLE) ) {
+			synchronized (mSerialQueue) {
+				waiting = "   waiting: " + mSerialQueue.size();
+			}
+		}
+		return "Threading: " + mMode + "   connections: " + mExecuted.get() + "   being served: " + mActive.get() +
+				" (max " + mPeakActive + ")" + waiting;
+	}
+}
@@ -34,6 +34,7 @@ public abstract class NetBase implements NetBaseInterface {
 	private boolean mAmShutdown = true;
 	private ConfigManager mConfig;
 	private String mHostname;
+	private NetRuntime mRuntime;     // threads shared by the services
 
 	/**
 	 * Used to keep track of started services. The String key is the name
@@ -104,6 +105,12 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			Log.i(TAG, "Booting host '" + mHostname + "' at " + IPFinder.localIP());
 			
+			try {
+				mRuntime = new NetRuntime(mConfig);
+			} catch (Exception e) {
+				throw new RuntimeException("Can't create NetRuntime: " + e.getMessage());
+			}
+			
 			// At this point, we're up, but with no services running.
 			// Advertise ourselves -- some service and/or app constructors may need us
 			mAmShutdown = false;
@@ -214,6 +221,7 @@ public abstract class NetBase implements NetBaseInterface {
 			}
 			// We can't remove items from the HashMap while iterating
 			serviceMap.clear();
+			mRuntime.shutdown();
 		} catch (Exception e) {
 			Log.e(TAG, "Error shutting down services: " + e.getMessage());
 			throw new RuntimeException(e.getMessage());
@@ -244,6 +252,14 @@ public abstract class NetBase implements NetBaseInterface {
 		return mConfig;
 	}
 
+	/**
+	 * Returns the event loops, workers and timer shared by the services.
+	 */
+	public NetRuntime runtime() {
+		check("runtime");
+		return mRuntime;
+	}
+	
 	/**
 	 * Returns this host's name, if it has one, otherwise null. (This isn't
 	 * useful until Project 4.)
@@ -29,6 +29,7 @@ public interface NetBaseInterface {
 	public String hostname();        // Convenience method to get the host name (as specified in the boot config file)
 	
 	// general utility methods
+	public NetRuntime runtime();     // Event loops, worker threads and a timer, shared by all services
 	public String version();        // Version number of assignment software
 	public long now();              // Returns current Unix time (seconds since 1/1/1970).
 	
@@ -0,0 +1,342 @@
+package edu.uw.cs.cse461.net.base;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The threads NetBase shares among all the services, so that each service doesn't need threads of its own
+ * just to wait for something to happen:
+ * <ul>
+ * <li> Event loops (net.runtime.loops of them, by default one per processor, or one per listener shard
+ *      if net.listen.shards is larger).  Services register channels with them, and a ChannelHandler is
+ *      called on the loop thread whenever its channel is ready.  Handlers must not block; anything that
+ *      might is passed to the workers.  A connection served with blocking I/O can also be watched while
+ *      it's idle, so that nothing has to wait on it until its next request arrives.
+ * <li> Workers, created as needed (up to net.runtime.workers) and discarded after a minute idle, for
+ *      blocking work such as serving an accepted connection with TCPMessageHandler.  Work submitted while
+ *      they're all busy waits for one.
+ * <li> A timer thread, started the first time something is scheduled.
+ * </ul>
+ * A quiet server therefore has only its event loop threads.  Nothing polls a shutdown flag: a service
+ * shuts down by closing its channels, which removes them from the loops.
+ */
+public class NetRuntime {
+	private static final String TAG="NetRuntime";
+
+	/**
+	 * Called on an event loop thread when a registered channel is ready.  Throwing an exception
+	 * closes the channel.
+	 */
+	public interface ChannelHandler {
+		public void ready(SelectionKey key) throws Exception;
+	}
+
+	/**
+	 * Called with each connection accepted on a listener passed to accept().  It may be called on an
+	 * event loop thread, so it must not block.
+	 */
+	public interface AcceptHandler {
+		public void accepted(TransportConnection conn) throws Exception;
+	}
+
+	private EventLoop[] mLoops;
+	private AtomicInteger mNextLoop = new AtomicInteger();
+	private ThreadPoolExecutor mWorkers;
+	private ScheduledThreadPoolExecutor mTimer;
+	private volatile boolean mAmShutdown;
+
+	NetRuntime(ConfigManager config) throws IOException {
+		int nProcessors = Runtime.getRuntime().availableProcessors();
+		int nShards = config.getAsInt("net.listen.shards", 1, 1);
+		int nLoops = config.getAsInt("net.runtime.loops", Math.max(nProcessors, nShards), 1);
+		int nWorkers = config.getAsInt("net.runtime.workers", 256, 1);
+		mAmShutdown = false;
+
+		mLoops = new EventLoop[nLoops];
+		for ( int i=0; i<nLoops; i++ ) {
+			mLoops[i] = new EventLoop();
+			Thread t = new Thread(mLoops[i], "NetRuntime-loop-" + i);
+			t.setDaemon(true);
+			t.start();
+		}
+		final WorkerQueue queue = new WorkerQueue();
+		mWorkers = new ThreadPoolExecutor(0, nWorkers, 60, TimeUnit.SECONDS, queue, _threadFactory("NetRuntime-worker-"),
+				new RejectedExecutionHandler() {
+					public void rejectedExecution(Runnable r, ThreadPoolExecutor executor) {
+						// every worker is busy and there can't be more, so wait for one
+						if ( executor.isShutdown() || !queue.force(r) ) throw new RejectedExecutionException("NetRuntime has shut down");
+					}
+				});
+		queue.mExecutor = mWorkers;
+		mTimer = new ScheduledThreadPoolExecutor(1, _threadFactory("NetRuntime-timer-"));
+		mTimer.setRemoveOnCancelPolicy(true);
+	}
+
+	/**
+	 * The workers' queue.  A ThreadPoolExecutor only starts threads beyond its core size when its queue
+	 * refuses work, so this one refuses while no worker is idle and more are allowed.  The executor then
+	 * starts a worker rather than leaving the work to wait, and idle workers are used before new ones.
+	 */
+	private static class WorkerQueue extends LinkedBlockingQueue<Runnable> {
+		private static final long serialVersionUID = 1L;
+
+		private ThreadPoolExecutor mExecutor;
+
+		@Override
+		public boolean offer(Runnable r) {
+			if ( mExecutor.getPoolSize() < mExecutor.getMaximumPoolSize() && mExecutor.getActiveCount() >= mExecutor.getPoolSize() ) return false;
+			return super.offer(r);
+		}
+
+		boolean force(Runnable r) {
+			return super.offer(r);
+		}
+	}
+
+	private static ThreadFactory _threadFactory(final String prefix) {
+		return new ThreadFactory() {
+			private int mCount = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, prefix + (++mCount));
+				t.setDaemon(true);
+				return t;
+			}
+		};
+	}
+
+	/**
+	 * Puts channel in non-blocking mode and registers it with one of the event loops (they're used in turn),
+	 * which calls handler whenever it's ready for one of ops.  The registration completes asynchronously.
+	 */
+	public void register(SelectableChannel channel, int ops, ChannelHandler handler) throws IOException {
+		_register(mNextLoop.getAndIncrement(), channel, ops, handler);
+	}
+
+	private void _register(int loopIndex, SelectableChannel channel, int ops, Object handler) throws IOException {
+		channel.configureBlocking(false);
+		EventLoop loop = mLoops[Math.abs(loopIndex % mLoops.length)];
+		loop.mPending.add(new Object[] { channel, ops, handler });
+		loop.mSelector.wakeup();
+	}
+
+	/**
+	 * Runs task once, when channel has something to read (or the peer has closed it), and stops watching it.
+	 * It's for idle connections served with blocking I/O: channel is put in non-blocking mode while it's
+	 * watched, and back in blocking mode before task runs, so that task can hand it to whatever serves it.
+	 * task runs on an event loop thread, so it must not block.  If channel is closed while it's watched,
+	 * task never runs.
+	 */
+	public void watch(SelectableChannel channel, Runnable task) throws IOException {
+		_register(mNextLoop.getAndIncrement(), channel, SelectionKey.OP_READ, new Watch(task));
+	}
+
+	private static class Watch {
+		Runnable mTask;
+
+		Watch(Runnable task) {
+			mTask = task;
+		}
+	}
+
+	/**
+	 * Calls handler with each connection accepted on listener, until the listener is closed.  TCP listeners
+	 * are watched by an event loop, and each shard of a sharded one by a different loop (if there are
+	 * enough), so that connections arriving on different shards are accepted in parallel.  Others
+	 * (which have no selectable channel) get a thread of their own, which waits in accept() for
+	 * net.timeout.granularity msec. at a time.
+	 * @param name Used in log messages and thread names.
+	 */
+	public void accept(final TransportListener listener, final AcceptHandler handler, final String name) throws IOException {
+		if ( listener instanceof TCPTransport.ShardedListener ) {
+			List<TCPTransport.TCPListener> shards = ((TCPTransport.ShardedListener)listener).shards();
+			int first = mNextLoop.getAndAdd(shards.size());
+			for ( int i=0; i<shards.size(); i++ ) _acceptOn(first + i, shards.get(i), handler, name + " shard " + i);
+			return;
+		}
+		if ( listener instanceof TCPTransport.TCPListener && ((TCPTransport.TCPListener)listener).serverSocket().getChannel() != null ) {
+			_acceptOn(mNextLoop.getAndIncrement(), (TCPTransport.TCPListener)listener, handler, name);
+			return;
+		}
+		listener.setAcceptTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		Thread acceptor = new Thread(name + "-acceptor") {
+			public void run() {
+				try {
+					while ( !mAmShutdown ) {
+						try {
+							_accepted(handler, listener.accept(), name);
+						} catch (SocketTimeoutException e) {
+							// this is normal.  Just loop back and see if we're terminating.
+						}
+					}
+				} catch (Exception e) {
+					Log.d(TAG, name + " acceptor exiting: " + e.getMessage());
+				}
+			}
+		};
+		acceptor.setDaemon(true);
+		acceptor.start();
+	}
+
+	private void _acceptOn(int loopIndex, final TCPTransport.TCPListener listener, final AcceptHandler handler, final String name) throws IOException {
+		final ServerSocketChannel channel = listener.serverSocket().getChannel();
+		_register(loopIndex, channel, SelectionKey.OP_ACCEPT, new ChannelHandler() {
+			public void ready(SelectionKey key) throws Exception {
+				while ( true ) {
+					TransportConnection conn;
+					try {
+						// served with blocking I/O, by whoever handler gives it to
+						conn = listener.acceptNow();
+					} catch (IOException e) {
+						if ( !channel.isOpen() ) throw e;
+						// e.g., out of file descriptors; the listener itself is fine
+						Log.w(TAG, name + " accept failed: " + e.getMessage());
+						return;
+					}
+					if ( conn == null ) return;
+					_accepted(handler, conn, name);
+				}
+			}
+		});
+	}
+
+	private static void _accepted(AcceptHandler handler, TransportConnection conn, String name) {
+		try {
+			handler.accepted(conn);
+		} catch (Exception e) {
+			Log.w(TAG, name + " couldn't take connection from " + conn.remoteAddress() + ": " + e.getMessage());
+			try { conn.close(); } catch (Exception ce) {}
+		}
+	}
+
+	/**
+	 * Runs task on a worker thread.
+	 * @throws java.util.concurrent.RejectedExecutionException The runtime has shut down.
+	 */
+	public void execute(Runnable task) {
+		mWorkers.execute(task);
+	}
+
+	/**
+	 * Runs task on the timer thread after delay msec.  Tasks should be short; anything
+	 * that might block should be passed to execute().
+	 */
+	public ScheduledFuture<?> schedule(Runnable task, long delay) {
+		return mTimer.schedule(task, delay, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Runs task on the timer thread every period msec., starting after delay msec.
+	 */
+	public ScheduledFuture<?> scheduleAtFixedRate(Runnable task, long delay, long period) {
+		return mTimer.scheduleAtFixedRate(task, delay, period, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Stops the event loops and the timer.  Workers finish what they're doing.  Called by
+	 * NetBase after the services have shut down.
+	 */
+	void shutdown() {
+		mAmShutdown = true;
+		for ( EventLoop loop : mLoops ) loop.mSelector.wakeup();
+		mWorkers.shutdown();
+		mTimer.shutdownNow();
+	}
+
+	@Override
+	public String toString() {
+		int channels = 0;
+		for ( EventLoop loop : mLoops ) channels += loop.mChannels;
+		return "NetRuntime: " + mLoops.length + " event loop(s) watching " + channels + " channel(s)   workers: " +
+				mWorkers.getActiveCount() + " busy of " + mWorkers.getPoolSize() + " (max " + mWorkers.getMaximumPoolSize() + ")";
+	}
+
+	private class EventLoop implements Runnable {
+		private Selector mSelector;
+		private ConcurrentLinkedQueue<Object[]> mPending = new ConcurrentLinkedQueue<Object[]>();   // {channel, ops, handler or Watch}
+		private List<SelectionKey> mFired = new ArrayList<SelectionKey>();    // watches whose channels were ready, cancelled
+		private volatile int mChannels;
+
+		EventLoop() throws IOException {
+			mSelector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			try {
+				while ( !mAmShutdown ) {
+					if ( mFired.isEmpty() ) mSelector.select();
+					else mSelector.selectNow();
+					// the selection deregistered the fired watches' channels, so they can block again
+					for ( SelectionKey key : mFired ) _fire(key);
+					mFired.clear();
+					Object[] reg;
+					while ( (reg = mPending.poll()) != null ) {
+						try {
+							((SelectableChannel)reg[0]).register(mSelector, (Integer)reg[1], reg[2]);
+						} catch (IOException e) {
+							Log.w(TAG, "Couldn't register channel: " + e.getMessage());
+						}
+					}
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while ( it.hasNext() ) {
+						SelectionKey key = it.next();
+						it.remove();
+						if ( !key.isValid() ) continue;
+						if ( key.attachment() instanceof Watch ) {
+							key.cancel();
+							mFired.add(key);
+							continue;
+						}
+						try {
+							((ChannelHandler)key.attachment()).ready(key);
+						} catch (Exception e) {
+							if ( key.channel().isOpen() ) Log.w(TAG, "Closing channel after handler exception: " + e.getMessage());
+							key.cancel();
+							try { key.channel().close(); } catch (Exception ce) {}
+						}
+					}
+					mChannels = mSelector.keys().size();
+				}
+			} catch (ClosedSelectorException e) {
+			} catch (Exception e) {
+				Log.e(TAG, "Event loop exiting due to exception: " + e.getMessage());
+			} finally {
+				try { mSelector.close(); } catch (Exception e) {}
+			}
+		}
+
+		private void _fire(SelectionKey key) {
+			try {
+				key.channel().configureBlocking(true);
+				((Watch)key.attachment()).mTask.run();
+			} catch (Exception e) {
+				// closed since it was selected; whoever closed it cleans up
+				if ( key.channel().isOpen() ) Log.w(TAG, "Watch on channel failed: " + e.getMessage());
+			}
+		}
+	}
+}
@@ -0,0 +1,140 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import edu.uw.cs.cse461.net.rpc.RPCService.Priority;
+
+/**
+ * Decides whether the RPCService takes on a call, so that when it's overloaded it answers new calls at once
+ * with an overloaded error instead of letting them wait until their callers time out (and retry, making
+ * things worse).  Two things are measured:
+ * <ul>
+ * <li> Calls in flight: admitted and not yet finished.  Above rpc.server.maxinflight a call is refused.
+ *      With rpc.server.concurrency=gradient the limit is instead an RPCConcurrencyLimit, which adjusts
+ *      itself to the calls' latency, with maxinflight as its ceiling.  High priority calls are refused only
+ *      at twice the limit, so that a flood of other calls can't shut them out (or a limit that has just come
+ *      down, leaving more calls in flight than it allows).
+ * <li> Queueing delay: how long a call waited for a worker before one could start on it.  A call that
+ *      waited longer than rpc.server.maxqueuedelay msec. is refused rather than executed, since its caller
+ *      has probably given up, and the time is better spent on calls that are still wanted.  While the
+ *      work at the head of the queue has waited that long, new arrivals are refused without joining it.
+ * </ul>
+ * A limit of 0 means there's no limit.
+ */
+class RPCAdmission {
+	private static final double DELAY_WEIGHT = 0.125;   // of each new sample, in the smoothed queueing delay
+
+	private int mMaxInFlight;
+	private RPCConcurrencyLimit mLimit;      // null if mMaxInFlight is the limit
+	private long mMaxQueueDelayNanos;
+
+	private final AtomicInteger mInFlight = new AtomicInteger();
+	private volatile int mPeakInFlight;
+	private double mAvgDelayNanos;       // smoothed queueing delay
+	private long mPeakDelayNanos;
+
+	private final AtomicLong mShedInFlight = new AtomicLong();
+	private final AtomicLong mShedDelay = new AtomicLong();
+	private final AtomicLong mShedQueueFull = new AtomicLong();
+
+	/**
+	 * @param maxInFlight Most calls that may be in flight at once.
+	 * @param maxQueueDelay Longest time (msec.) a call may wait for a worker and still be executed.
+	 * @param limit If not null, decides the most calls that may be in flight instead of maxInFlight.
+	 */
+	RPCAdmission(int maxInFlight, int maxQueueDelay, RPCConcurrencyLimit limit) {
+		mMaxInFlight = maxInFlight;
+		mMaxQueueDelayNanos = maxQueueDelay * 1000000L;
+		mLimit = limit;
+	}
+
+	/**
+	 * Called when a call arrives.  If it's admitted, done() must be called when it finishes.
+	 * @return null if the call is admitted, or why it isn't.
+	 */
+	String admit(Priority priority) {
+		int limit = mLimit != null ? mLimit.limit() : mMaxInFlight;
+		int inFlight = mInFlight.incrementAndGet();
+		int allowed = priority == Priority.HIGH ? 2 * limit : limit;
+		if ( limit > 0 && inFlight > allowed ) {
+			mInFlight.decrementAndGet();
+			mShedInFlight.incrementAndGet();
+			return "Server overloaded: " + limit + " calls already in progress";
+		}
+		if ( inFlight > mPeakInFlight ) mPeakInFlight = inFlight;
+		return null;
+	}
+
+	/**
+	 * Called by the worker about to execute an admitted call.
+	 * @param queueNanos How long the call waited for the worker.
+	 * @return null if the call should be executed, or why it shouldn't.
+	 */
+	String checkQueueDelay(long queueNanos) {
+		synchronized(this) {
+			mAvgDelayNanos += DELAY_WEIGHT * (queueNanos - mAvgDelayNanos);
+			if ( queueNanos > mPeakDelayNanos ) mPeakDelayNanos = queueNanos;
+		}
+		if ( mMaxQueueDelayNanos > 0 && queueNanos > mMaxQueueDelayNanos ) {
+			mShedDelay.incrementAndGet();
+			return "Server overloaded: call waited " + queueNanos / 1000000 + " msec. for a worker";
+		}
+		return null;
+	}
+
+	/**
+	 * Called when a connection arrives at a server whose workers take connections from a queue.
+	 * @param oldestNanos How long the oldest call waiting for a worker has waited so far.
+	 * @return null if the connection should join the queue, or why its call should be refused instead.
+	 */
+	String checkBacklog(long oldestNanos) {
+		if ( mMaxQueueDelayNanos > 0 && oldestNanos > mMaxQueueDelayNanos ) {
+			mShedDelay.incrementAndGet();
+			return "Server overloaded: calls have waited " + oldestNanos / 1000000 + " msec. for a worker";
+		}
+		return null;
+	}
+
+	/**
+	 * Called when an admitted call finishes without getting to a worker.
+	 */
+	void done() {
+		mInFlight.decrementAndGet();
+	}
+
+	/**
+	 * Called instead of done() when an admitted call can't be handed to a worker because the queue is full.
+	 * @return why the call is refused.
+	 */
+	String queueFull() {
+		mInFlight.decrementAndGet();
+		mShedQueueFull.incrementAndGet();
+		return "Server overloaded: no room in the queue for a worker";
+	}
+
+	/**
+	 * Called when an admitted call a worker took on finishes, whether or not it was executed.
+	 * @param nanos Time since the call arrived, queueing included.
+	 */
+	void done(long nanos) {
+		int inFlight = mInFlight.getAndDecrement();
+		if ( mLimit != null ) mLimit.sample(nanos, inFlight);
+	}
+
+	@Override
+	public String toString() {
+		double avgDelay, peakDelay;
+		synchronized(this) {
+			avgDelay = mAvgDelayNanos / 1000000.0;
+			peakDelay = mPeakDelayNanos / 1000000.0;
+		}
+		String limit = mMaxInFlight > 0 ? String.valueOf(mMaxInFlight) : "none";
+		if ( mLimit != null ) limit = mLimit.limit() + ", " + mLimit;
+		return String.format("Calls in flight: %d (max %d, limit %s)   queueing delay: %.2f msec. (max %.2f, limit %s)\n" +
+				"Calls refused as overloaded: %d in flight, %d queueing delay, %d queue full",
+				mInFlight.get(), mPeakInFlight, limit,
+				avgDelay, peakDelay, mMaxQueueDelayNanos > 0 ? String.valueOf(mMaxQueueDelayNanos / 1000000) : "none",
+				mShedInFlight.get(), mShedDelay.get(), mShedQueueFull.get());
+	}
+}
@@ -0,0 +1,150 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import edu.uw.cs.cse461.net.rpc.RPCService.Priority;
+import edu.uw.cs.cse461.util.ConfigManager;
+
+/**
+ * Threads and a queue of their own for the calls to one RPC service (or one method of it), so that a flood
+ * of calls to it can't take the workers every other service's calls need.  A call that finds the bulkhead's
+ * threads busy and its queue full is refused with an overloaded error instead of waiting.  Calls waiting
+ * in the queue are taken in priority order.
+ * <p>
+ * Bulkheads are set up in the config file, with
+ * <pre>
+ *   rpc.bulkhead.&lt;service&gt;.threads=2
+ *   rpc.bulkhead.&lt;service&gt;.queue=8
+ * </pre>
+ * or, for one method, rpc.bulkhead.&lt;service&gt;.&lt;method&gt;.threads and .queue.  Calls to services
+ * without a bulkhead run on the RPCService's shared workers.
+ */
+class RPCBulkhead {
+	private String mName;
+	private ThreadPoolExecutor mExecutor;
+	private int mQueueCapacity;
+
+	private final AtomicLong mCalls = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mNanos = new AtomicLong();      // from submission to completion, summed over calls
+	private volatile int mMaxQueueDepth;
+
+	/**
+	 * Returns the bulkhead config file entries rpc.bulkhead.&lt;name&gt;.* describe, or null if there are none.
+	 */
+	static RPCBulkhead fromConfig(ConfigManager config, String name) {
+		if ( config.getProperty("rpc.bulkhead." + name + ".threads", "").trim().length() == 0 ) return null;
+		int threads = config.getAsInt("rpc.bulkhead." + name + ".threads", 0, 0);
+		if ( threads == 0 ) return null;
+		return new RPCBulkhead(name, threads, config.getAsInt("rpc.bulkhead." + name + ".queue", 16, 0));
+	}
+
+	/**
+	 * @param threads Most calls executing at once.
+	 * @param queueCapacity Most calls waiting for a thread.
+	 */
+	RPCBulkhead(final String name, int threads, int queueCapacity) {
+		mName = name;
+		mQueueCapacity = queueCapacity;
+		BlockingQueue<Runnable> queue;
+		if ( queueCapacity > 0 ) queue = new RPCCallQueue(queueCapacity);
+		else queue = new SynchronousQueue<Runnable>();
+		mExecutor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, queue, new ThreadFactory() {
+			private int mCount = 0;
+			public synchronized Thread newThread(Runnable r) {
+				Thread t = new Thread(r, "RPCService-" + name + "-" + (++mCount));
+				t.setDaemon(true);
+				return t;
+			}
+		});
+		mExecutor.allowCoreThreadTimeOut(true);
+	}
+
+	String name() {
+		return mName;
+	}
+
+	/**
+	 * Runs task on one of the bulkhead's threads.
+	 * @throws RejectedExecutionException The threads are all busy and the queue is full.
+	 */
+	void execute(final Runnable task, Priority priority) {
+		final long start = System.nanoTime();
+		try {
+			mExecutor.execute(new RPCCallQueue.Task(priority) {
+				public void run() {
+					try {
+						task.run();
+					} finally {
+						mCalls.incrementAndGet();
+						mNanos.addAndGet(System.nanoTime() - start);
+					}
+				}
+			});
+		} catch (RejectedExecutionException e) {
+			mRejected.incrementAndGet();
+			throw e;
+		}
+		int depth = mExecutor.getQueue().size();
+		if ( depth > mMaxQueueDepth ) mMaxQueueDepth = depth;
+	}
+
+	/**
+	 * Runs task on one of the bulkhead's threads, without waiting for it.  The task returns a stage of its own,
+	 * and the bulkhead's thread is free once it has.
+	 * @return A stage that completes as the task's does, or exceptionally if the task throws; or null if the
+	 *         threads are all busy and the queue is full.
+	 */
+	<T> CompletionStage<T> submit(final Callable<? extends CompletionStage<T>> task, Priority priority) {
+		final CompletableFuture<T> result = new CompletableFuture<T>();
+		try {
+			execute(new Runnable() {
+				public void run() {
+					try {
+						task.call().whenComplete(new BiConsumer<T, Throwable>() {
+							public void accept(T value, Throwable t) {
+								if ( t != null ) result.completeExceptionally(t);
+								else result.complete(value);
+							}
+						});
+					} catch (Throwable t) {
+						result.completeExceptionally(t);
+					}
+				}
+			}, priority);
+		} catch (RejectedExecutionException e) {
+			return null;
+		}
+		return result;
+	}
+
+	/**
+	 * Why a call was refused.
+	 */
+	String refusal() {
+		return "Server overloaded: " + mName + " already has " + mExecutor.getMaximumPoolSize() + " calls in progress and " +
+				mQueueCapacity + " waiting";
+	}
+
+	void shutdown() {
+		mExecutor.shutdown();
+	}
+
+	@Override
+	public String toString() {
+		long calls = mCalls.get();
+		return String.format("%s: %d busy of %d   queue: %d (max %d, capacity %d)   calls: %d (avg %.2f msec.)   refused: %d",
+				mName, mExecutor.getActiveCount(), mExecutor.getMaximumPoolSize(), mExecutor.getQueue().size(), mMaxQueueDepth,
+				mQueueCapacity, calls, calls == 0 ? 0.0 : mNanos.get() / 1000000.0 / calls, mRejected.get());
+	}
+}
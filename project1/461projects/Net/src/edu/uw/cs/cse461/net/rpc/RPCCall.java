@@ -1,7 +1,6 @@
 package edu.uw.cs.cse461.net.rpc;
 
 import java.io.IOException;
-import java.net.Socket;
 import java.net.SocketException;
 import java.net.SocketTimeoutException;
 import java.util.HashMap;
@@ -16,7 +15,11 @@ import org.json.JSONObject;
 
 import edu.uw.cs.cse461.net.base.NetBase;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
+import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
 import edu.uw.cs.cse461.util.Log;
 
 /**
@@ -36,8 +39,12 @@ import edu.uw.cs.cse461.util.Log;
 public class RPCCall extends NetLoadableService {
 	private static final String TAG="RPCCall";
 	
-	private static Map<String, TCPMessageHandler> persistentConnections =  new HashMap<String, TCPMessageHandler>();
+	// idle persistent connections; a call takes its connection out while using it
+	private static final Map<String, TCPMessageHandler> persistentConnections =  new HashMap<String, TCPMessageHandler>();
 	private static boolean wantPersistent = false;
+	
+	// traffic on the connections this service has closed
+	private TCPMessageHandlerStats mConnectionStats = new TCPMessageHandlerStats();
 
 	//-------------------------------------------------------------------------------------------
 	//-------------------------------------------------------------------------------------------
@@ -52,9 +59,15 @@ public class RPCCall extends NetLoadableService {
 	 * @param serviceName Name of service to be invoked
 	 * @param method Name of method of the service to invoke
 	 * @param userRequest Arguments to call
-	 * @param socketTimeout Maximum time to wait for a response, in msec.
+	 * @param socketTimeout Maximum time to wait for a response, in msec.  It's sent with the call, so the remote
+	 *        service doesn't execute it once it's too late (see RPCCallContext).  A call made from within an
+	 *        RPC handler waits no longer than the handler's own caller.
 	 * @return Returns whatever the remote method returns.
 	 * @throws JSONException
+	 * @throws RPCOverloadedException The remote service was too busy to take the call, and didn't execute it.
+	 *         (RPCThrottledException if it's because this client went over its rate limit.)
+	 * @throws java.net.SocketTimeoutException No response within socketTimeout.  (RPCDeadlineExceededException
+	 *         if the remote service gave up on the call for that reason.)
 	 * @throws IOException
 	 */
 	public static JSONObject invoke(
@@ -98,8 +111,9 @@ public class RPCCall extends NetLoadableService {
 
 	/**
 	 * This private method performs the actual invocation, including the management of persistent connections.
-	 * Note that because we may issue the call twice, we  may (a) cause it to be executed twice at the server(!),
-	 * and (b) may end up blocking the caller for around twice the timeout specified in the call. (!)
+	 * Note that because we may issue the call twice, we  may cause it to be executed twice at the server(!).
+	 * The second try gets only what's left of the timeout, though.  A persistent connection that times out
+	 * is closed rather than kept, since the late response would otherwise be read as the next call's.
 	 * 
 	 * @param ip
 	 * @param port
@@ -122,22 +136,55 @@ public class RPCCall extends NetLoadableService {
 			boolean tryAgain          // true if an invocation failure on a persistent connection should cause a re-try of the call, false to give up
 			) throws JSONException, IOException {
 		
+		// a call made by a handler waits no longer than the handler's caller
+		RPCCallContext context = RPCCallContext.current();
+		if ( context != null && context.hasDeadline() ) {
+			long remaining = context.remaining();
+			if ( remaining <= 0 ) throw new RPCDeadlineExceededException("Deadline exceeded before calling " + serviceName + "." + method);
+			if ( socketTimeout <= 0 || remaining < socketTimeout ) socketTimeout = (int)remaining;
+		}
+		long deadline = System.nanoTime() + socketTimeout * 1000000L;
+		
+		String key = ip+port+serviceName+method;
 		TCPMessageHandler handler = null;
+		boolean persistent = false;   // should handler be put back in persistentConnections after the call?
+		boolean reusable = false;     // true once the call's response has been read
 		JSONObject returnValue = null;
 		try {
-			if (persistentConnections.containsKey(ip+port+serviceName+method)) {
-				handler = persistentConnections.get(ip+port+serviceName+method);
+			// a cached connection is taken out while it's in use, so that concurrent calls can't share it
+			synchronized(persistentConnections) {
+				handler = persistentConnections.remove(key);
+			}
+			if (handler != null) {
+				persistent = true;
 			} else {
 				//Set up TCPMessage Handler
-				Socket socket = new Socket(ip, port);
-				handler = new TCPMessageHandler(socket);
+				TransportConnection connection = Transport.fromConfig("rpc.transport").connect(ip, port);
+				handler = new TCPMessageHandler(connection);
+				handler.setTimeout(socketTimeout);
+				// RPC responses (e.g., Base64 encoded dataxferrpc payloads) can be much larger than tcpmessagehandler.maxmsglength
+				handler.setMaxReadLength(NetBase.theNetBase().config().getAsInt("rpc.maxmsglength", Integer.MAX_VALUE, 0));
+				// version 2 frames have shorter headers; the server switches to them when it sees ours.
+				// Only servers that understand them can be called this way.
+				if(NetBase.theNetBase().config().getAsInt("rpc.frameversion", 1, 1, 2) == 2) {
+					handler.setFrameVersion(2);
+				}
 				
 				//Send connect RPC Message
 				JSONObject connectJSON = new RPCMessage().marshall();
 				connectJSON.put("action", "connect");
 				connectJSON.put("type", "control");	
+				JSONObject options = new JSONObject();
 				if(wantPersistent) {
-					connectJSON.put("options", new JSONObject().put("connection", "keep-alive"));
+					options.put("connection", "keep-alive");
+				}
+				// ask for compressed frames; servers that don't know about compression ignore the option
+				boolean wantCompression = NetBase.theNetBase().config().getProperty("rpc.compression", "none").equals("deflate");
+				if(wantCompression) {
+					options.put("compression", "deflate");
+				}
+				if(options.length() > 0) {
+					connectJSON.put("options", options);
 				}
 								
 				RPCMessage connect = RPCMessage.unmarshall(connectJSON.toString());
@@ -152,37 +199,71 @@ public class RPCCall extends NetLoadableService {
 				  throw new IOException("Error Response");
 				}
 				
-				if(wantPersistent) {
-					persistentConnections.put(ip+port+serviceName+method, handler);
-					handler.setTimeout(NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout", 10000));
+				// the server turns compression on right after sending its response, if it agreed to it
+				JSONObject connectValue = connectResponse.optJSONObject("value");
+				if(wantCompression && connectValue != null && connectValue.optString("compression").equals("deflate")) {
+					handler.setCompression(true);
 				}
+				
+				persistent = wantPersistent;
 			}
 			
+			// what's left of the timeout, for this call's response and for the server to know when to give up
+			int remaining = socketTimeout > 0 ? _remaining(deadline) : 0;
+			handler.setTimeout(remaining);
+			
 			//Invoke
 			JSONObject invokeJSON = new RPCMessage().marshall();
 			invokeJSON.put("app", serviceName);
 			invokeJSON.put("method", method);
 			invokeJSON.put("args", userRequest);
 			invokeJSON.put("type", "invoke");
+			if(remaining > 0) {
+				invokeJSON.put("timeout", remaining);
+			}
 			
 			RPCMessage invoke = RPCMessage.unmarshall(invokeJSON.toString());
 			
 			handler.sendMessage(invoke.marshall());
 			
 			JSONObject invokeResponse = handler.readMessageAsJSONObject();
+			reusable = true;
 			if(!invokeResponse.get("type").equals("OK")) {
 			  //handle error
+			  RPCMessage error = RPCMessage.unmarshall(invokeResponse.toString());
+			  if(error instanceof RPCErrorResponseMessage && ((RPCErrorResponseMessage)error).throttled()) {
+				  throw new RPCThrottledException(((RPCErrorResponseMessage)error).message());
+			  }
+			  if(error instanceof RPCErrorResponseMessage && ((RPCErrorResponseMessage)error).overloaded()) {
+				  throw new RPCOverloadedException(((RPCErrorResponseMessage)error).message());
+			  }
+			  if(error instanceof RPCErrorResponseMessage && ((RPCErrorResponseMessage)error).expired()) {
+				  throw new RPCDeadlineExceededException(((RPCErrorResponseMessage)error).message());
+			  }
 			  throw new IOException("Error Response");
 			}
 			
 			returnValue = invokeResponse.getJSONObject("value");
 		} catch (SocketException e){
 			if(wantPersistent) {
-				persistentConnections.remove(ip+port+serviceName+method);
-				handler.close();
+				if(handler != null) {
+					_close(handler, ip + ":" + port);
+					handler = null;
+				}
 	
 				if(tryAgain) {
-					returnValue = _invoke(ip, port, serviceName, method, userRequest, socketTimeout, false);
+					returnValue = _invoke(ip, port, serviceName, method, userRequest, socketTimeout > 0 ? _remaining(deadline) : 0, false);
+				}
+			}
+		} finally {
+			// A connection that isn't being kept for later calls was for this call only.  Nor is one on which
+			// the call failed before its response was read (e.g., it timed out), since the response might
+			// still come, and would be read as the next call's.
+			if(handler != null) {
+				if(persistent && reusable) {
+					_keep(key, handler, ip + ":" + port);
+				} else {
+					_close(handler, ip + ":" + port);
 				}
 			}
 		}
@@ -190,22 +271,59 @@ public class RPCCall extends NetLoadableService {
 		return returnValue;
 	}
 	
+	/**
+	 * Returns the msec. left until deadline (a System.nanoTime() value).
+	 * @throws SocketTimeoutException There's none left.
+	 */
+	private static int _remaining(long deadline) throws SocketTimeoutException {
+		long remaining = (deadline - System.nanoTime()) / 1000000;
+		if ( remaining <= 0 ) throw new SocketTimeoutException("RPC call timed out");
+		return (int)remaining;
+	}
+	
+	/**
+	 * Puts a persistent connection back in the cache, for the next call.  If concurrent calls opened one each,
+	 * only the last to finish is kept.
+	 */
+	private void _keep(String key, TCPMessageHandler handler, String peer) {
+		TCPMessageHandler replaced;
+		synchronized(persistentConnections) {
+			replaced = persistentConnections.put(key, handler);
+		}
+		if(replaced != null) {
+			_close(replaced, peer);
+		}
+	}
+	
+	/**
+	 * Closes a connection, adding its traffic counters to this service's.
+	 */
+	private void _close(TCPMessageHandler handler, String peer) {
+		handler.close();
+		mConnectionStats.add(handler.getStats(), peer);
+	}
+	
 	@Override
 	public void shutdown() {
-		for(TCPMessageHandler handler : persistentConnections.values()) {
-			handler.close();
+		synchronized(persistentConnections) {
+			for(Map.Entry<String, TCPMessageHandler> entry : persistentConnections.entrySet()) {
+				_close(entry.getValue(), entry.getKey());
+			}
+			persistentConnections.clear();
 		}
-		persistentConnections = null;
 	}
 	
 	@Override
 	public String dumpState() {
 		//	private static Map<String, TCPMessageHandler> persistentConnections =  new HashMap<String, TCPMessageHandler>();
 		String state = "Current persistent connections are ...\n";
-		for(String s : persistentConnections.keySet()) {
-			TCPMessageHandler handler = persistentConnections.get(s);
-			state += s + " : " + handler.toString() + "\n";
+		synchronized(persistentConnections) {
+			for(String s : persistentConnections.keySet()) {
+				TCPMessageHandler handler = persistentConnections.get(s);
+				state += s + " : " + handler.toString() + "\n";
+			}
 		}
+		state += "Closed connections:\n" + mConnectionStats;
 		
 		return state;
 	}
@@ -0,0 +1,108 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.concurrent.ScheduledFuture;
+
+import edu.uw.cs.cse461.net.base.NetRuntime;
+
+/**
+ * The deadline of the RPC call the current thread is executing, so that a handler can give up on work whose
+ * caller has stopped waiting for it.  RPCCall.invoke() sends the time the caller will wait along with the call,
+ * and the RPCService takes the call's deadline to be that long after the call arrived.  A call still waiting
+ * for a thread at its deadline isn't executed, and one that runs past it has its response replaced by a
+ * (short) deadline exceeded error; either way the caller gets RPCDeadlineExceededException, if it's still there.
+ * <p>
+ * Handlers can check expired() or remaining() as they go, or call checkDeadline().  With
+ * rpc.deadline.interrupt=1 a handler still running at its deadline is also interrupted, so one blocked in a
+ * wait or a sleep gives up.  The interrupt is cleared when the handler returns.
+ * <p>
+ * A handler's own calls to RPCCall.invoke() wait no longer than the handler's remaining time, and pass that on,
+ * so a chain of calls shares the first caller's deadline.
+ */
+public class RPCCallContext {
+	private static final ThreadLocal<RPCCallContext> sCurrent = new ThreadLocal<RPCCallContext>();
+
+	private long mTimeout;              // msec.; 0 if the caller didn't send one
+	private long mDeadline;             // System.nanoTime()
+	private Thread mThread;             // running the handler; null once it has returned
+	private ScheduledFuture<?> mInterrupter;
+	private boolean mInterrupted;
+
+	/**
+	 * @param arrived When the call arrived (System.nanoTime()).
+	 * @param timeout How long (msec.) its caller will wait, or 0 if it will wait forever.
+	 */
+	RPCCallContext(long arrived, long timeout) {
+		mTimeout = Math.max(0, timeout);
+		mDeadline = arrived + mTimeout * 1000000L;
+	}
+
+	/**
+	 * Returns the call the current thread is executing, or null if it isn't executing one.
+	 */
+	public static RPCCallContext current() {
+		return sCurrent.get();
+	}
+
+	/**
+	 * Returns true if the call's caller gave a time it would wait.
+	 */
+	public boolean hasDeadline() {
+		return mTimeout > 0;
+	}
+
+	/**
+	 * Returns the msec. left before the caller gives up (0 or less if it has), or Long.MAX_VALUE if it won't.
+	 */
+	public long remaining() {
+		if ( !hasDeadline() ) return Long.MAX_VALUE;
+		return (mDeadline - System.nanoTime()) / 1000000;
+	}
+
+	public boolean expired() {
+		return hasDeadline() && mDeadline - System.nanoTime() <= 0;
+	}
+
+	/**
+	 * @throws RPCDeadlineExceededException The caller has given up on the call.
+	 */
+	public void checkDeadline() throws RPCDeadlineExceededException {
+		if ( expired() ) throw new RPCDeadlineExceededException("Deadline exceeded: caller waits only " + mTimeout + " msec.");
+	}
+
+	long timeout() {
+		return mTimeout;
+	}
+
+	/**
+	 * Makes this the current thread's call until end() is called.
+	 * @param runtime If not null, schedules an interrupt of the thread at the deadline.
+	 */
+	void begin(NetRuntime runtime) {
+		mThread = Thread.currentThread();
+		sCurrent.set(this);
+		if ( runtime != null && hasDeadline() ) {
+			mInterrupter = runtime.schedule(new Runnable() {
+				public void run() {
+					_interrupt();
+				}
+			}, Math.max(0, (mDeadline - System.nanoTime() + 999999) / 1000000));   // not before the deadline
+		}
+	}
+
+	private synchronized void _interrupt() {
+		if ( mThread == null ) return;
+		mInterrupted = true;
+		mThread.interrupt();
+	}
+
+	/**
+	 * Called when the handler returns.  An interrupt is never delivered after this, and one that was is cleared,
+	 * since the thread goes on to other work (writing the response, with pool mode's channel backed sockets).
+	 */
+	synchronized void end() {
+		if ( mInterrupter != null ) mInterrupter.cancel(false);
+		mThread = null;
+		sCurrent.remove();
+		if ( mInterrupted ) Thread.interrupted();
+	}
+}
@@ -0,0 +1,65 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Comparator;
+import java.util.concurrent.PriorityBlockingQueue;
+
+import edu.uw.cs.cse461.net.rpc.RPCService.Priority;
+
+/**
+ * The queue in front of an RPCService executor (the workers, or a bulkhead).  Work is taken highest
+ * priority first, and in the order it was queued within a priority, so a cheap call from a high priority
+ * method doesn't wait behind bulk transfers that arrived before it.  Unlike a PriorityBlockingQueue it's
+ * bounded: offer() refuses work once capacity items are waiting, and the executor then rejects it.
+ * <p>
+ * Work that isn't a Task is taken as normal priority.
+ */
+class RPCCallQueue extends PriorityBlockingQueue<Runnable> {
+	private static final long serialVersionUID = 1L;
+
+	/**
+	 * Work with a priority.  A Task can be queued again after it has run, and then goes behind the
+	 * work of its priority already waiting.
+	 */
+	static abstract class Task implements Runnable {
+		volatile Priority mPriority;
+		long mSequence;          // set by the queue, for first in first out within a priority
+
+		Task(Priority priority) {
+			mPriority = priority;
+		}
+	}
+
+	private static final Comparator<Runnable> ORDER = new Comparator<Runnable>() {
+		public int compare(Runnable a, Runnable b) {
+			int c = _priority(a).compareTo(_priority(b));
+			if ( c != 0 ) return c;
+			long sa = a instanceof Task ? ((Task)a).mSequence : 0;
+			long sb = b instanceof Task ? ((Task)b).mSequence : 0;
+			return sa < sb ? -1 : (sa == sb ? 0 : 1);
+		}
+	};
+
+	private static Priority _priority(Runnable r) {
+		return r instanceof Task ? ((Task)r).mPriority : Priority.NORMAL;
+	}
+
+	private int mCapacity;
+	private long mNextSequence;
+
+	RPCCallQueue(int capacity) {
+		super(11, ORDER);
+		mCapacity = capacity;
+	}
+
+	@Override
+	public synchronized boolean offer(Runnable r) {
+		if ( size() >= mCapacity ) return false;
+		if ( r instanceof Task ) ((Task)r).mSequence = mNextSequence++;
+		return super.offer(r);
+	}
+
+	@Override
+	public int remainingCapacity() {
+		return Math.max(0, mCapacity - size());
+	}
+}
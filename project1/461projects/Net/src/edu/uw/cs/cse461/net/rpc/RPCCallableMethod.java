@@ -4,6 +4,9 @@ import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.io.Writer;
 import java.lang.reflect.Method;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
 
 import org.json.JSONObject;
 
@@ -15,6 +18,11 @@ import edu.uw.cs.cse461.util.Log;
  * <p>
  * The parameterized type, T, is the class exposing the method.
  * <p>
+ * The method takes a JSONObject, and returns either a JSONObject or, if it has to wait for something
+ * (another service, the disk), a CompletionStage&lt;JSONObject&gt; such as a CompletableFuture.  In the
+ * second case the RPCService's thread is released as soon as the method returns, and the response
+ * is sent when the stage completes, so a few threads can keep many slow calls going.
+ * <p>
  * See the source in EchoRPCService.java for an example of its use.
  * @author zahorjan
  *
@@ -25,6 +33,7 @@ public class RPCCallableMethod {
 	
 	Object service;
 	Method method;
+	boolean async;     // method returns a CompletionStage
 	/**
 	 * Constructor.
 	 * @param serviceObject The Java instance of the object that will field the RPC
@@ -35,16 +44,50 @@ public class RPCCallableMethod {
 		service = serviceObject; 
 		Class<? extends Object> serviceClass = (Class<? extends Object>)service.getClass();
 		method = serviceClass.getMethod(methodName, JSONObject.class);
+		async = CompletionStage.class.isAssignableFrom(method.getReturnType());
+	}
+	
+	/**
+	 * Returns true if the method returns a CompletionStage rather than a JSONObject.
+	 */
+	public boolean isAsync() {
+		return async;
 	}
+	
 	/**
-	 * This method is called to actually invoke the method that handles the RPC.
+	 * This method is called to actually invoke the method that handles the RPC.  If the method is
+	 * asynchronous this waits for it to finish.
 	 * @param args  The arguments to pass on this call
 	 * @return The JSONObject returned by the RPC handling method of the service
 	 * @throws Exception
 	 */
 	public JSONObject handleCall(JSONObject args) throws Exception {
+		if ( !async ) return (JSONObject)_invoke(args);
+		try {
+			return handleCallAsync(args).toCompletableFuture().get();
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof Exception ) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Invokes the method that handles the RPC without waiting for it to finish, if it's asynchronous.
+	 * @param args  The arguments to pass on this call
+	 * @return The CompletionStage returned by the method, or, if it isn't asynchronous, one already completed
+	 *         with what it returned.
+	 * @throws Exception The method threw an exception (rather than completing its stage with one).
+	 */
+	@SuppressWarnings("unchecked")
+	public CompletionStage<JSONObject> handleCallAsync(JSONObject args) throws Exception {
+		Object result = _invoke(args);
+		if ( async && result != null ) return (CompletionStage<JSONObject>)result;
+		return CompletableFuture.completedFuture(async ? null : (JSONObject)result);
+	}
+	
+	private Object _invoke(JSONObject args) throws Exception {
 		try {
-			return (JSONObject)method.invoke(service, args);
+			return method.invoke(service, args);
 		} catch (Exception e) {
 			final Writer trace = new StringWriter();
 			final PrintWriter printWriter = new PrintWriter(trace);
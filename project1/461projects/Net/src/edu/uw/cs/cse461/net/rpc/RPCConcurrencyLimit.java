@@ -0,0 +1,98 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * A limit on calls in flight that adjusts itself to the latency calls see (rpc.server.concurrency=gradient),
+ * so that the server runs near the knee of its throughput curve without rpc.server.maxinflight being tuned
+ * for one particular mix of calls.  The latency of a call is measured from when it arrived to when it
+ * finished, queueing included, so it rises as soon as calls start waiting for one another.
+ * <p>
+ * Calls are sampled in windows of at least WINDOW_MSEC msec. and WINDOW_CALLS calls.  At the end of each,
+ * the window's average latency is compared with a long term average of the windows before it:
+ * <ul>
+ * <li> While it's no more than TOLERANCE times the long term average, the limit grows by its square root,
+ *      the number of calls allowed to queue.
+ * <li> Beyond that the limit is scaled down in proportion (by at most half per window), since the extra
+ *      latency is calls queueing rather than doing work.
+ * </ul>
+ * Changes are smoothed, and a window in which calls in flight never came near the limit doesn't move it,
+ * since its latency says nothing about what the limit should be.  If latency falls far below the long term
+ * average (e.g., the mix of calls changed) the average is pulled down quickly, rather than leaving the
+ * limit to grow unchecked.
+ */
+class RPCConcurrencyLimit {
+	private static final int WINDOW_MSEC = 100;
+	private static final int WINDOW_CALLS = 10;
+	private static final double TOLERANCE = 1.5;
+	private static final double SMOOTHING = 0.2;         // weight of each window's new limit
+	private static final double LONG_WEIGHT = 0.05;      // weight of each window in the long term average
+
+	private int mMinLimit;
+	private int mMaxLimit;
+	private volatile int mLimit;
+	private double mEstimate;           // mLimit before rounding
+
+	// the current window
+	private long mWindowStart;
+	private int mSamples;
+	private long mSumNanos;
+	private int mPeakInFlight;
+
+	private double mShortNanos;         // last window's average latency
+	private double mLongNanos;          // long term average latency
+	private long mWindows;
+
+	/**
+	 * @param initial The limit to start at.
+	 * @param min The least the limit may fall to.
+	 * @param max The most it may grow to.
+	 */
+	RPCConcurrencyLimit(int initial, int min, int max) {
+		mMinLimit = min;
+		mMaxLimit = max;
+		mEstimate = Math.max(min, Math.min(max, initial));
+		mLimit = (int)mEstimate;
+		mWindowStart = System.nanoTime();
+	}
+
+	int limit() {
+		return mLimit;
+	}
+
+	/**
+	 * Records a finished call.
+	 * @param nanos The call's latency.
+	 * @param inFlight Calls in flight when it finished, including it.
+	 */
+	synchronized void sample(long nanos, int inFlight) {
+		mSamples++;
+		mSumNanos += nanos;
+		if ( inFlight > mPeakInFlight ) mPeakInFlight = inFlight;
+		long now = System.nanoTime();
+		if ( mSamples < WINDOW_CALLS || now - mWindowStart < WINDOW_MSEC * 1000000L ) return;
+
+		mShortNanos = (double)mSumNanos / mSamples;
+		int peak = mPeakInFlight;
+		mWindowStart = now;
+		mSamples = 0;
+		mSumNanos = 0;
+		mPeakInFlight = 0;
+		mWindows++;
+
+		if ( mLongNanos == 0 ) mLongNanos = mShortNanos;
+		else mLongNanos += LONG_WEIGHT * (mShortNanos - mLongNanos);
+		if ( mLongNanos > 2 * mShortNanos ) mLongNanos = 2 * mShortNanos;
+
+		if ( peak < mEstimate / 2 ) return;
+		double gradient = Math.max(0.5, Math.min(1.0, TOLERANCE * mLongNanos / mShortNanos));
+		double next = mEstimate * gradient + Math.sqrt(mEstimate);
+		mEstimate += SMOOTHING * (next - mEstimate);
+		mEstimate = Math.max(mMinLimit, Math.min(mMaxLimit, mEstimate));
+		mLimit = (int)mEstimate;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("adaptive, %d to %d; latency %.2f msec. (long term %.2f) after %d windows",
+				mMinLimit, mMaxLimit, mShortNanos / 1000000.0, mLongNanos / 1000000.0, mWindows);
+	}
+}
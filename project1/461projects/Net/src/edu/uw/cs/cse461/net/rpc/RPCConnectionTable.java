@@ -0,0 +1,169 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.ScheduledFuture;
+
+import edu.uw.cs.cse461.net.base.NetRuntime;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Every connection the RPCService has open, in least recently used order, so that the server can hold
+ * a bounded number of them (rpc.server.connections) and close the idle ones itself:
+ * <ul>
+ * <li> A connection is busy from when it's added until its connect handshake is done, and while a call
+ *      on it is executing; otherwise it's idle.
+ * <li> One NetRuntime timer task, run every net.timeout.granularity msec., closes the connections that
+ *      have been idle for rpc.persistence.timeout msec.  Since the table is in the order the connections
+ *      were last used, it stops at the first idle connection that's too young.
+ * <li> When the table is full, a new connection replaces the least recently used idle one.  If none is
+ *      idle, the new connection is refused.
+ * </ul>
+ * Closing is done by the closer given with each connection, called on the timer thread (or the thread
+ * adding a connection), never while holding the table's lock.  It must not block, and whatever is serving
+ * the connection must expect it to close underneath it.
+ */
+class RPCConnectionTable {
+	private static final String TAG="RPCConnectionTable";
+
+	private static class Entry {
+		Runnable mCloser;
+		boolean mBusy;
+		long mIdleSince;
+	}
+
+	private int mMaxConnections;
+	private int mIdleTimeout;
+	private LinkedHashMap<Object, Entry> mEntries;   // in access order: least recently used first
+	private ScheduledFuture<?> mReaper;
+
+	private long mEvicted;      // closed to make room for new connections
+	private long mReaped;       // closed for being idle too long
+	private long mRefused;      // new connections turned away because all the others were busy
+
+	/**
+	 * @param maxConnections The most connections that may be open at once.
+	 * @param idleTimeout Time (msec.) a connection may be idle before it's closed.
+	 */
+	RPCConnectionTable(int maxConnections, int idleTimeout) {
+		mMaxConnections = maxConnections;
+		mIdleTimeout = idleTimeout;
+		mEntries = new LinkedHashMap<Object, Entry>(16, 0.75f, true);
+	}
+
+	/**
+	 * Starts closing idle connections, checking every period msec.
+	 */
+	void start(NetRuntime runtime, int period) {
+		mReaper = runtime.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					_reap();
+				} catch (Exception e) {
+					Log.w(TAG, "Reaper caught exception: " + e.getMessage());
+				}
+			}
+		}, period, period);
+	}
+
+	/**
+	 * Stops closing idle connections.  Connections still open are left to the threads serving them.
+	 */
+	void stop() {
+		if ( mReaper != null ) mReaper.cancel(false);
+	}
+
+	/**
+	 * Adds a connection, as busy.  If the table is full the least recently used idle connection is closed.
+	 * @param closer Closes the connection.
+	 * @return false if the table is full and no connection is idle.  The new connection isn't added,
+	 *         and the caller should close it.
+	 */
+	boolean add(Object conn, Runnable closer) {
+		Entry entry = new Entry();
+		entry.mCloser = closer;
+		entry.mBusy = true;
+		Runnable evict = null;
+		synchronized(this) {
+			if ( mEntries.size() >= mMaxConnections ) {
+				Iterator<Entry> it = mEntries.values().iterator();
+				while ( it.hasNext() ) {
+					Entry e = it.next();
+					if ( e.mBusy ) continue;
+					evict = e.mCloser;
+					it.remove();
+					mEvicted++;
+					break;
+				}
+				if ( evict == null ) {
+					mRefused++;
+					return false;
+				}
+			}
+			mEntries.put(conn, entry);
+		}
+		if ( evict != null ) _close(evict);
+		return true;
+	}
+
+	/**
+	 * Marks a connection busy, so that it won't be closed.
+	 */
+	synchronized void busy(Object conn) {
+		Entry entry = mEntries.get(conn);
+		if ( entry != null ) entry.mBusy = true;
+	}
+
+	/**
+	 * Marks a connection idle, as of now, and makes it the most recently used.
+	 */
+	synchronized void idle(Object conn) {
+		Entry entry = mEntries.get(conn);
+		if ( entry == null ) return;
+		entry.mBusy = false;
+		entry.mIdleSince = System.currentTimeMillis();
+	}
+
+	/**
+	 * Removes a connection that has closed.
+	 */
+	synchronized void remove(Object conn) {
+		mEntries.remove(conn);
+	}
+
+	private void _reap() {
+		List<Runnable> closers = new ArrayList<Runnable>();
+		long now = System.currentTimeMillis();
+		synchronized(this) {
+			Iterator<Entry> it = mEntries.values().iterator();
+			while ( it.hasNext() ) {
+				Entry e = it.next();
+				if ( e.mBusy ) continue;
+				// everything after this was used more recently
+				if ( now - e.mIdleSince < mIdleTimeout ) break;
+				closers.add(e.mCloser);
+				it.remove();
+				mReaped++;
+			}
+		}
+		for ( Runnable closer : closers ) _close(closer);
+	}
+
+	private static void _close(Runnable closer) {
+		try {
+			closer.run();
+		} catch (Exception e) {
+			Log.w(TAG, "Closing connection caught exception: " + e.getMessage());
+		}
+	}
+
+	@Override
+	public synchronized String toString() {
+		int busy = 0;
+		for ( Entry e : mEntries.values() ) if ( e.mBusy ) busy++;
+		return "Open connections: " + mEntries.size() + " (" + busy + " busy, max " + mMaxConnections + ")   closed idle: " +
+				mReaped + "   evicted to make room: " + mEvicted + "   refused: " + mRefused;
+	}
+}
@@ -0,0 +1,17 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.net.SocketTimeoutException;
+
+/**
+ * Thrown by RPCCall.invoke() when the remote RPCService reports that the call's deadline passed, either before
+ * it was executed or while it was, or when a handler's call would begin after its own deadline.  It's a
+ * SocketTimeoutException, as the caller would otherwise have seen.  Unlike an overloaded call, the call may
+ * have been partly executed.  Also thrown by RPCCallContext.checkDeadline().
+ */
+public class RPCDeadlineExceededException extends SocketTimeoutException {
+	private static final long serialVersionUID = 1L;
+
+	public RPCDeadlineExceededException(String msg) {
+		super(msg);
+	}
+}
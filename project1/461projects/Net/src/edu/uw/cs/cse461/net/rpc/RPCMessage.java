@@ -152,6 +152,7 @@ class RPCMessage {
 				       .put("app", jsonObject.getString("app"))
 				       .put("method", jsonObject.getString("method"));
 				if ( jsonObject.has("args") ) mObject.put("args", jsonObject.getJSONObject("args"));
+				if ( jsonObject.has("timeout") ) mObject.put("timeout", jsonObject.getLong("timeout"));
 			}
 			
 			String app() throws JSONException {
@@ -161,6 +162,14 @@ class RPCMessage {
 			String method() throws JSONException {
 				return mObject.getString("method");
 			}
+			
+			/**
+			 * Returns how long (msec.) the caller will wait for the response, from when it sent the call, or 0 if it
+			 * didn't say.  The server works out the call's deadline from this; see RPCCallContext.
+			 */
+			long timeout() {
+				return mObject.optLong("timeout");
+			}
 		}
 	}
 	
@@ -219,11 +228,60 @@ class RPCMessage {
 				else mObject.put("callargs", "unrecognizable");
 			}
 			
+			/**
+			 * Creates the response to a call the server refused because it's overloaded.  It's marked
+			 * as such, so the caller knows the call wasn't executed.
+			 */
+			RPCErrorResponseMessage(int callid, String msg, boolean overloaded) throws JSONException {
+				this(callid, msg, overloaded, false);
+			}
+			
+			/**
+			 * Creates the response to a call the server refused, as overloaded, or as throttled because the caller
+			 * went over its rate limit.  A throttled response is marked overloaded too, so that callers that
+			 * don't know about throttling still know the call wasn't executed.
+			 */
+			RPCErrorResponseMessage(int callid, String msg, boolean overloaded, boolean throttled) throws JSONException {
+				super(callid);
+				mObject.put("type", "ERROR");
+				mObject.put("message", msg);
+				if ( overloaded || throttled ) mObject.put("overloaded", true);
+				if ( throttled ) mObject.put("throttled", true);
+			}
+			
+			/**
+			 * Creates the response to a call whose deadline passed before it was executed, or while it was.
+			 */
+			static RPCErrorResponseMessage expired(int callid, String msg) throws JSONException {
+				RPCErrorResponseMessage response = new RPCErrorResponseMessage(callid, msg, false, false);
+				response.mObject.put("expired", true);
+				return response;
+			}
+			
 			RPCErrorResponseMessage(JSONObject jsonObj) throws JSONException {
 				super(jsonObj);
 				mObject.put("type", "ERROR");
 				mObject.put("message", jsonObj.getString("message") );
-				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.getJSONObject("callargs"));
+				if ( jsonObj.has("callargs") ) mObject.put("callargs", jsonObj.get("callargs"));
+				if ( jsonObj.optBoolean("overloaded") ) mObject.put("overloaded", true);
+				if ( jsonObj.optBoolean("throttled") ) mObject.put("throttled", true);
+				if ( jsonObj.optBoolean("expired") ) mObject.put("expired", true);
+			}
+			
+			String message() throws JSONException {
+				return mObject.getString("message");
+			}
+			
+			boolean overloaded() {
+				return mObject.optBoolean("overloaded");
+			}
+			
+			boolean throttled() {
+				return mObject.optBoolean("throttled");
+			}
+			
+			boolean expired() {
+				return mObject.optBoolean("expired");
 			}
 		}
 	}
@@ -0,0 +1,15 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.IOException;
+
+/**
+ * Thrown by RPCCall.invoke() when the remote RPCService refuses a call because it's overloaded.  The call
+ * wasn't executed, so it's safe to make it again, preferably after backing off.
+ */
+public class RPCOverloadedException extends IOException {
+	private static final long serialVersionUID = 1L;
+
+	public RPCOverloadedException(String msg) {
+		super(msg);
+	}
+}
@@ -0,0 +1,186 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.util.Iterator;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetRuntime;
+import edu.uw.cs.cse461.util.ConfigManager;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Per client limits on the calls the RPCService executes (rpc.ratelimit.calls per second) and on the response
+ * bytes it sends back (rpc.ratelimit.bytes per second), so that one client making back-to-back calls can't
+ * take the whole server.  A client is identified by its IP address, or, with rpc.ratelimit.by=host, by the
+ * host field of its invoke messages.  Each client may go rpc.ratelimit.burst msec. of traffic over a limit
+ * before it's throttled: its calls are answered with a throttled error, without being executed.
+ * <p>
+ * Each limit is a token bucket, kept as the time at which the bucket will be full again.  Taking a token
+ * moves that time forward, with a single compare and set, so checking a call takes no lock.  The size of a
+ * response isn't known until it's sent, so response bytes (as sent, after any compression) are charged
+ * afterwards; a client whose byte bucket is overdrawn has its calls throttled until it has refilled.
+ * <p>
+ * A limit of 0 means there's no limit.
+ */
+class RPCRateLimiter {
+	private static final String TAG="RPCRateLimiter";
+
+	private static class Bucket {
+		final AtomicLong mCallsFull;     // when the calls bucket is full again (System.nanoTime())
+		final AtomicLong mBytesFull;     // and the response bytes bucket
+
+		Bucket() {
+			long now = System.nanoTime();
+			mCallsFull = new AtomicLong(now);
+			mBytesFull = new AtomicLong(now);
+		}
+	}
+
+	private int mCallsPerSec;
+	private int mBytesPerSec;
+	private int mBurst;
+	private boolean mByHost;
+	private long mCallNanos;          // refill time for one call
+	private long mBurstNanos;
+	private long mCallBurstNanos;
+
+	private ConcurrentHashMap<String, Bucket> mBuckets = new ConcurrentHashMap<String, Bucket>();
+	private ScheduledFuture<?> mReaper;
+
+	private final AtomicLong mThrottledCalls = new AtomicLong();
+	private final AtomicLong mThrottledBytes = new AtomicLong();
+
+	static RPCRateLimiter fromConfig(ConfigManager config) {
+		return new RPCRateLimiter(config.getAsInt("rpc.ratelimit.calls", 0, 0), config.getAsInt("rpc.ratelimit.bytes", 0, 0),
+				config.getAsInt("rpc.ratelimit.burst", 1000, 0), config.getProperty("rpc.ratelimit.by", "ip").trim().equals("host"));
+	}
+
+	/**
+	 * @param callsPerSec Most calls per second from one client.
+	 * @param bytesPerSec Most response bytes per second to one client.
+	 * @param burst How far (msec. of traffic) a client may get ahead of its limits.
+	 * @param byHost Identify clients by the host field of their messages, rather than by IP address.
+	 */
+	RPCRateLimiter(int callsPerSec, int bytesPerSec, int burst, boolean byHost) {
+		mCallsPerSec = callsPerSec;
+		mBytesPerSec = bytesPerSec;
+		mBurst = burst;
+		mByHost = byHost;
+		mCallNanos = callsPerSec > 0 ? 1000000000L / callsPerSec : 0;
+		mBurstNanos = burst * 1000000L;
+		// at least one call's worth, or no call would ever get through
+		mCallBurstNanos = Math.max(mBurstNanos, mCallNanos);
+	}
+
+	boolean enabled() {
+		return mCallsPerSec > 0 || mBytesPerSec > 0;
+	}
+
+	/**
+	 * Starts forgetting clients whose buckets are full, checking every period msec.  A full bucket is the
+	 * same as a new one, so a client that returns later is treated no differently.
+	 */
+	void start(NetRuntime runtime, int period) {
+		if ( !enabled() ) return;
+		mReaper = runtime.scheduleAtFixedRate(new Runnable() {
+			public void run() {
+				try {
+					long now = System.nanoTime();
+					Iterator<Bucket> it = mBuckets.values().iterator();
+					while ( it.hasNext() ) {
+						Bucket b = it.next();
+						if ( b.mCallsFull.get() - now <= 0 && b.mBytesFull.get() - now <= 0 ) it.remove();
+					}
+				} catch (Exception e) {
+					Log.w(TAG, "Reaper caught exception: " + e.getMessage());
+				}
+			}
+		}, period, period);
+	}
+
+	void stop() {
+		if ( mReaper != null ) mReaper.cancel(false);
+	}
+
+	/**
+	 * Returns the name the limits are kept under for the client that sent an invoke message.
+	 * @param remoteAddress The connection's remoteAddress().
+	 */
+	String clientOf(JSONObject invokeJSON, String remoteAddress) {
+		if ( mByHost ) return invokeJSON.optString("host");
+		// "/1.2.3.4:5678" to "1.2.3.4"
+		String client = remoteAddress.startsWith("/") ? remoteAddress.substring(1) : remoteAddress;
+		int colon = client.lastIndexOf(':');
+		return colon > 0 ? client.substring(0, colon) : client;
+	}
+
+	/**
+	 * Called when a call arrives from client.  If it's admitted, one call is taken from the client's allowance.
+	 * @return null if the call is admitted, or why it's throttled.
+	 */
+	String check(String client) {
+		Bucket b = _bucket(client);
+		long now = System.nanoTime();
+		if ( mBytesPerSec > 0 ) {
+			long over = b.mBytesFull.get() - now - mBurstNanos;
+			if ( over > 0 ) {
+				mThrottledBytes.incrementAndGet();
+				return "Throttled: over " + mBytesPerSec + " response bytes/sec.; retry in " + (over / 1000000 + 1) + " msec.";
+			}
+		}
+		if ( mCallsPerSec > 0 ) {
+			while ( true ) {
+				long full = b.mCallsFull.get();
+				long next = _later(full, now) + mCallNanos;
+				long over = next - now - mCallBurstNanos;
+				if ( over > 0 ) {
+					mThrottledCalls.incrementAndGet();
+					return "Throttled: over " + mCallsPerSec + " calls/sec.; retry in " + (over / 1000000 + 1) + " msec.";
+				}
+				if ( b.mCallsFull.compareAndSet(full, next) ) break;
+			}
+		}
+		return null;
+	}
+
+	/**
+	 * Called when a response has been sent to client, to charge it for the bytes.
+	 */
+	void sent(String client, long bytes) {
+		if ( mBytesPerSec <= 0 ) return;
+		Bucket b = _bucket(client);
+		long cost = bytes * 1000000000L / mBytesPerSec;
+		while ( true ) {
+			long now = System.nanoTime();
+			long full = b.mBytesFull.get();
+			if ( b.mBytesFull.compareAndSet(full, _later(full, now) + cost) ) return;
+		}
+	}
+
+	// nanoTime() values may wrap, so they're compared by their difference
+	private static long _later(long a, long b) {
+		return a - b > 0 ? a : b;
+	}
+
+	private Bucket _bucket(String client) {
+		Bucket b = mBuckets.get(client);
+		if ( b == null ) {
+			Bucket fresh = new Bucket();
+			b = mBuckets.putIfAbsent(client, fresh);
+			if ( b == null ) b = fresh;
+		}
+		return b;
+	}
+
+	@Override
+	public String toString() {
+		if ( !enabled() ) return "Rate limits per client: none";
+		return "Rate limits per client (by " + (mByHost ? "host" : "ip") + "): " +
+				(mCallsPerSec > 0 ? mCallsPerSec + " calls/sec." : "no call limit") + ", " +
+				(mBytesPerSec > 0 ? mBytesPerSec + " response bytes/sec." : "no byte limit") + ", burst " + mBurst + " msec.   clients: " +
+				mBuckets.size() + "   throttled calls: " + mThrottledCalls.get() + " over call limit, " + mThrottledBytes.get() + " over byte limit";
+	}
+}
@@ -0,0 +1,426 @@
+package edu.uw.cs.cse461.net.rpc;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
+
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.tcpmessagehandler.NIOTCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportListener;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * The RPCService's event driven server (rpc.server.mode=reactor).  Instead of a worker blocking on each
+ * connection, a small number of selector threads (rpc.server.selectors) own all the connections.  They
+ * read whatever has arrived, decode it into messages with an NIOTCPMessageHandler, answer connect messages
+ * themselves, and hand each complete invoke message to the service's worker pool (or to its RPCBulkhead, if it
+ * has one).  When a worker finishes, it passes the response back to the connection's selector thread, which
+ * writes it as the channel allows.  A call to an asynchronous method (see RPCCallableMethod) frees its worker
+ * as soon as the method returns, and its response is passed back when it's ready.
+ * A thread is busy only while a call is actually executing, however many idle keep-alive connections
+ * there are.
+ * <p>
+ * Each time a connection is writable it's given at most rpc.server.writeslice bytes, so a selector thread
+ * writing a large response takes turns with its other connections rather than finishing it first, and
+ * small responses aren't held up behind it.  (Within a connection responses are whole frames, in order.)
+ * <p>
+ * The protocol is the one RPCCall speaks, with one exception: the reactor never agrees to compress, since
+ * its frame decoder can't read compressed frames.  Calls on one connection are executed one at a time,
+ * in the order they arrive.  Connections are entered in the service's RPCConnectionTable, which limits how
+ * many there are and closes idle ones, by asking the owning selector thread to close them.
+ * <p>
+ * Selector thread 0 also accepts connections, and deals them out to the selector threads in turn.  If the
+ * listener is sharded (net.listen.shards) each shard is accepted on by a different selector thread, and
+ * once every thread has a shard of its own each keeps the connections it accepts.
+ */
+class RPCReactor {
+	private static final String TAG="RPCReactor";
+
+	private RPCService mService;
+	private ExecutorService mWorkers;
+	private RPCConnectionTable mConnectionTable;
+	private RPCAdmission mAdmission;
+	private RPCRateLimiter mRateLimiter;
+	private TCPMessageHandlerStats mClosedStats;   // the service's totals for closed connections
+	private int mWriteSlice;                       // most bytes written to a connection at a turn
+
+	private TransportListener mListener;
+	private List<TCPTransport.TCPListener> mShards;
+	private SelectorLoop[] mLoops;
+	private final AtomicInteger mNextLoop = new AtomicInteger();
+	private volatile boolean mAmShutdown;
+
+	private final AtomicLong mAccepted = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicInteger mOpen = new AtomicInteger();
+
+	/**
+	 * Binds the listening channel(s).  Nothing is accepted until start() is called.
+	 * @param nSelectors The number of selector threads.
+	 * @param connectionTable Each connection is added to this when it's accepted.
+	 * @param admission Decides which calls are handed to the workers and executed.
+	 * @param rateLimiter Throttles calls from clients over their limits, before admission.
+	 * @param closedStats Traffic on each connection is added to this when it closes.
+	 */
+	RPCReactor(RPCService service, String ip, int port, int nSelectors, ExecutorService workers, RPCConnectionTable connectionTable,
+			RPCAdmission admission, RPCRateLimiter rateLimiter, TCPMessageHandlerStats closedStats) throws IOException {
+		mService = service;
+		mWorkers = workers;
+		mConnectionTable = connectionTable;
+		mAdmission = admission;
+		mRateLimiter = rateLimiter;
+		mClosedStats = closedStats;
+		mWriteSlice = NetBase.theNetBase().config().getAsInt("rpc.server.writeslice", 65536, 0);
+		if ( mWriteSlice == 0 ) mWriteSlice = Integer.MAX_VALUE;
+		mListener = TCPTransport.theTCPTransport().listen(ip, port);
+		mShards = new ArrayList<TCPTransport.TCPListener>();
+		if ( mListener instanceof TCPTransport.ShardedListener ) mShards.addAll(((TCPTransport.ShardedListener)mListener).shards());
+		else mShards.add((TCPTransport.TCPListener)mListener);
+		mLoops = new SelectorLoop[nSelectors];
+		for ( int i=0; i<nSelectors; i++ ) mLoops[i] = new SelectorLoop(i);
+		for ( int i=0; i<mShards.size(); i++ ) {
+			TCPTransport.TCPListener shard = mShards.get(i);
+			shard.serverSocket().getChannel().configureBlocking(false);
+			shard.serverSocket().getChannel().register(mLoops[i % nSelectors].mSelector, SelectionKey.OP_ACCEPT, shard);
+		}
+		mAmShutdown = false;
+	}
+
+	void start() {
+		for ( SelectorLoop loop : mLoops ) {
+			Thread t = new Thread(loop, "RPCService-selector-" + loop.mIndex);
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops accepting connections and closes the open ones.  Calls already handed to workers finish,
+	 * but their responses are dropped.
+	 */
+	void shutdown() {
+		mAmShutdown = true;
+		for ( SelectorLoop loop : mLoops ) loop.mSelector.wakeup();
+	}
+
+	int localPort() {
+		return mListener.localPort();
+	}
+
+	String dumpState() {
+		StringBuilder sb = new StringBuilder();
+		sb.append("Listening on: ").append(mListener).append("\n");
+		sb.append("Reactor: ").append(mLoops.length).append(" selector thread(s)   open connections: ").append(mOpen.get()).append("\n");
+		sb.append("Connections accepted: ").append(mAccepted.get()).append("   rejected calls: ").append(mRejected.get()).append("\n");
+		return sb.toString();
+	}
+
+	/**
+	 * A connection's state, owned by one selector thread.  Only that thread touches the handler.
+	 */
+	private class Connection {
+		private SelectorLoop mLoop;
+		private NIOTCPMessageHandler mHandler;
+		private SelectionKey mKey;
+		private String mRemote;
+		private boolean mConnected;      // the connect message has been answered
+		private boolean mPersistent;
+		private boolean mCallRunning;    // a worker has one of this connection's invokes
+		private boolean mCloseWhenFlushed;
+		private String mClient;          // the running call's client, for the rate limiter; null if there are no limits
+
+		Connection(SelectorLoop loop, SocketChannel channel) throws IOException {
+			mLoop = loop;
+			mHandler = new NIOTCPMessageHandler(channel);
+			mHandler.setNoDelay(true);
+			mHandler.setMaxReadLength(NetBase.theNetBase().config().getAsInt("rpc.maxmsglength", Integer.MAX_VALUE, 0));
+			mRemote = String.valueOf(channel.socket().getRemoteSocketAddress());
+			mKey = channel.register(loop.mSelector, SelectionKey.OP_READ, this);
+			mOpen.incrementAndGet();
+		}
+	}
+
+	/**
+	 * One selector thread, and the connections it owns.
+	 */
+	private class SelectorLoop implements Runnable {
+		private int mIndex;
+		private Selector mSelector;
+		private ConcurrentLinkedQueue<SocketChannel> mNewChannels = new ConcurrentLinkedQueue<SocketChannel>();
+		private ConcurrentLinkedQueue<Object[]> mResponses = new ConcurrentLinkedQueue<Object[]>();   // {Connection, JSONObject or null}
+		private ConcurrentLinkedQueue<Connection> mTableClosed = new ConcurrentLinkedQueue<Connection>();   // closed by the connection table
+
+		SelectorLoop(int index) throws IOException {
+			mIndex = index;
+			mSelector = Selector.open();
+		}
+
+		@Override
+		public void run() {
+			int granularity = NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500, 1);
+			try {
+				while ( !mAmShutdown ) {
+					mSelector.select(granularity);
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while ( it.hasNext() ) {
+						SelectionKey key = it.next();
+						it.remove();
+						if ( !key.isValid() ) continue;
+						if ( key.isAcceptable() ) {
+							_accept((TCPTransport.TCPListener)key.attachment());
+							continue;
+						}
+						Connection conn = (Connection)key.attachment();
+						try {
+							if ( key.isReadable() ) _read(conn);
+							if ( key.isValid() && key.isWritable() ) _flush(conn);
+						} catch (EOFException e) {
+							// normal termination
+							_close(conn);
+						} catch (Exception e) {
+							Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+							_close(conn);
+						}
+					}
+					_registerNewChannels();
+					_sendResponses();
+					Connection closed;
+					while ( (closed = mTableClosed.poll()) != null ) {
+						Log.d(TAG, "Connection table closed connection from " + closed.mRemote);
+						_close(closed);
+					}
+				}
+			} catch (ClosedSelectorException e) {
+			} catch (Exception e) {
+				Log.w(TAG, "Selector thread exiting due to exception: " + e.getMessage());
+			} finally {
+				for ( SelectionKey key : mSelector.keys() ) {
+					if ( key.attachment() instanceof Connection ) _close((Connection)key.attachment());
+				}
+				if ( mIndex == 0 ) try { mListener.close(); } catch (Exception e) {}
+				try { mSelector.close(); } catch (Exception e) {}
+			}
+		}
+
+		/**
+		 * Accepts every pending connection on shard, keeping each if every selector thread has a shard,
+		 * and otherwise giving each to the next selector thread in turn.
+		 */
+		private void _accept(TCPTransport.TCPListener shard) throws IOException {
+			SocketChannel channel;
+			while ( (channel = shard.acceptChannel()) != null ) {
+				mAccepted.incrementAndGet();
+				SelectorLoop loop = this;
+				if ( mShards.size() < mLoops.length ) loop = mLoops[Math.abs(mNextLoop.getAndIncrement() % mLoops.length)];
+				loop.mNewChannels.add(channel);
+				if ( loop != this ) loop.mSelector.wakeup();
+			}
+		}
+
+		private void _registerNewChannels() {
+			SocketChannel channel;
+			while ( (channel = mNewChannels.poll()) != null ) {
+				try {
+					final Connection conn = new Connection(this, channel);
+					if ( !mConnectionTable.add(conn, new Runnable() {
+							public void run() {
+								conn.mLoop.mTableClosed.add(conn);
+								conn.mLoop.mSelector.wakeup();
+							}
+						}) ) {
+						Log.w(TAG, "Too many connections, none idle; dropping connection from " + conn.mRemote);
+						_close(conn);
+					}
+				} catch (IOException e) {
+					Log.w(TAG, "Couldn't set up accepted connection: " + e.getMessage());
+					try { channel.close(); } catch (Exception ce) {}
+				}
+			}
+		}
+
+		private void _read(Connection conn) throws Exception {
+			conn.mHandler.readAvailable();
+			if ( conn.mHandler.atEOF() && !conn.mHandler.hasQueuedWrites() ) conn.mKey.interestOps(0);
+			_process(conn);
+		}
+
+		/**
+		 * Answers a waiting connect message, or starts a waiting invoke if the connection has no call running.
+		 * The invoke runs on its service's bulkhead, if it has one, or on the workers.  Invokes from a client over
+		 * its rate limit are answered with a throttled error on the spot, and those the RPCAdmission, a full
+		 * bulkhead or a full worker queue refuses with an overloaded one.
+		 */
+		private void _process(Connection conn) throws Exception {
+			if ( !conn.mConnected ) {
+				byte[] msg = conn.mHandler.pollMessage();
+				if ( msg == null ) return;
+				JSONObject connectJSON = new JSONObject(new String(msg, StandardCharsets.UTF_8));
+				if ( !connectJSON.get("action").equals("connect") ) {
+					//failed connect
+					throw new Exception("Connect message not received");
+				}
+				JSONObject option = connectJSON.optJSONObject("options");
+				conn.mPersistent = option != null && option.optString("connection").equals("keep-alive");
+				conn.mConnected = true;
+				conn.mHandler.queueMessage(mService.connectResponse(connectJSON, false).toString().getBytes(StandardCharsets.UTF_8));
+				mConnectionTable.idle(conn);
+				_flush(conn);
+			}
+			while ( !conn.mCallRunning && !conn.mCloseWhenFlushed ) {
+				byte[] msg = conn.mHandler.pollMessage();
+				if ( msg == null ) {
+					// the caller closed after its last call; close once its responses are written
+					if ( conn.mHandler.atEOF() ) {
+						conn.mCloseWhenFlushed = true;
+						_flush(conn);
+					}
+					return;
+				}
+				final Connection c = conn;
+				final JSONObject invokeJSON = new JSONObject(new String(msg, StandardCharsets.UTF_8));
+				conn.mClient = null;
+				if ( mRateLimiter.enabled() ) {
+					String client = mRateLimiter.clientOf(invokeJSON, conn.mRemote);
+					String throttled = mRateLimiter.check(client);
+					if ( throttled != null ) {
+						if ( !_refuse(conn, mService.throttledResponse(invokeJSON, throttled)) ) return;
+						continue;
+					}
+					conn.mClient = client;
+				}
+				RPCService.Priority priority = mService.priorityFor(invokeJSON);
+				String refusal = mAdmission.admit(priority);
+				if ( refusal != null ) {
+					if ( !_refuse(conn, mService.overloadedResponse(invokeJSON, refusal)) ) return;
+					continue;
+				}
+				final long submitted = System.nanoTime();
+				conn.mCallRunning = true;
+				mConnectionTable.busy(conn);
+				RPCBulkhead bulkhead = mService.bulkheadFor(invokeJSON);
+				Runnable call = new RPCCallQueue.Task(priority) {
+					public void run() {
+						CompletionStage<JSONObject> response;
+						try {
+							String tooLate = mAdmission.checkQueueDelay(System.nanoTime() - submitted);
+							if ( tooLate != null ) response = CompletableFuture.completedFuture(mService.overloadedResponse(invokeJSON, tooLate));
+							else response = mService.dispatchAsync(invokeJSON, submitted);
+						} catch (Exception e) {
+							CompletableFuture<JSONObject> failed = new CompletableFuture<JSONObject>();
+							failed.completeExceptionally(e);
+							response = failed;
+						}
+						// an asynchronous call may finish later, on some other thread; this one is free either way
+						response.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+							public void accept(JSONObject responseJSON, Throwable t) {
+								if ( t != null ) Log.i(TAG, "Unexpected exception while handling call: " + t.getMessage());
+								mAdmission.done(System.nanoTime() - submitted);
+								c.mLoop.mResponses.add(new Object[] { c, t == null ? responseJSON : null });
+								c.mLoop.mSelector.wakeup();
+							}
+						});
+					}
+				};
+				try {
+					if ( bulkhead != null ) bulkhead.execute(call, priority);
+					else mWorkers.execute(call);
+				} catch (RejectedExecutionException e) {
+					conn.mCallRunning = false;
+					mConnectionTable.idle(conn);
+					if ( bulkhead == null ) {
+						mRejected.incrementAndGet();
+						refusal = mAdmission.queueFull();
+					} else {
+						mAdmission.done();
+						refusal = bulkhead.refusal();
+					}
+					if ( !_refuse(conn, mService.overloadedResponse(invokeJSON, refusal)) ) return;
+				}
+			}
+		}
+
+		/**
+		 * Answers an invoke with an error, without executing it.
+		 * @return false if that closed the connection.
+		 */
+		private boolean _refuse(Connection conn, JSONObject response) throws Exception {
+			conn.mHandler.queueMessage(response.toString().getBytes(StandardCharsets.UTF_8));
+			if ( !conn.mPersistent ) conn.mCloseWhenFlushed = true;
+			_flush(conn);
+			return conn.mKey.isValid();
+		}
+
+		/**
+		 * Queues the responses workers have finished, and starts each connection's next call.
+		 * A null response means the call failed, which closes the connection, as it does in pool mode.
+		 */
+		private void _sendResponses() {
+			Object[] entry;
+			while ( (entry = mResponses.poll()) != null ) {
+				Connection conn = (Connection)entry[0];
+				JSONObject response = (JSONObject)entry[1];
+				conn.mCallRunning = false;
+				if ( !conn.mKey.isValid() ) continue;
+				if ( response == null ) {
+					_close(conn);
+					continue;
+				}
+				try {
+					byte[] bytes = response.toString().getBytes(StandardCharsets.UTF_8);
+					conn.mHandler.queueMessage(bytes);
+					if ( conn.mClient != null ) mRateLimiter.sent(conn.mClient, bytes.length);
+					mConnectionTable.idle(conn);
+					if ( !conn.mPersistent ) conn.mCloseWhenFlushed = true;
+					_flush(conn);
+					if ( conn.mKey.isValid() ) _process(conn);
+				} catch (Exception e) {
+					Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+					_close(conn);
+				}
+			}
+		}
+
+		/**
+		 * Writes what the channel will take, up to a slice, and asks for OP_WRITE if something's left over.
+		 * Once the caller has closed its end there's nothing more to read, so OP_READ is dropped.
+		 */
+		private void _flush(Connection conn) throws IOException {
+			boolean flushed = conn.mHandler.flushQueued(mWriteSlice);
+			if ( flushed && conn.mCloseWhenFlushed ) {
+				_close(conn);
+				return;
+			}
+			int ops = conn.mHandler.atEOF() ? 0 : SelectionKey.OP_READ;
+			if ( !flushed ) ops |= SelectionKey.OP_WRITE;
+			conn.mKey.interestOps(ops);
+		}
+
+		private void _close(Connection conn) {
+			if ( !conn.mKey.isValid() ) return;
+			mConnectionTable.remove(conn);
+			conn.mKey.cancel();
+			conn.mHandler.close();
+			mClosedStats.add(conn.mHandler.getStats(), conn.mRemote);
+			mOpen.decrementAndGet();
+		}
+	}
+}
@@ -4,19 +4,33 @@ import java.io.EOFException;
 import java.io.IOException;
 import java.lang.reflect.InvocationTargetException;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.channels.SocketChannel;
 import java.util.ArrayList;
-import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.BiConsumer;
 
 import org.json.JSONObject;
 
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetRuntime;
 import edu.uw.cs.cse461.net.base.NetLoadable.NetLoadableService;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCCallMessage.RPCControlMessage;
@@ -25,6 +39,11 @@ import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCErrorResponseMessage;
 import edu.uw.cs.cse461.net.rpc.RPCMessage.RPCResponseMessage.RPCNormalResponseMessage;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -35,20 +54,82 @@ import edu.uw.cs.cse461.util.Log;
  * @author zahorjan
  *
  */
-public class RPCService extends NetLoadableService implements Runnable, RPCServiceInterface {
+public class RPCService extends NetLoadableService implements RPCServiceInterface {
 	private static final String TAG="RPCService";
 	
-	private ServerSocket mServerSocket;
+	/**
+	 * How urgently a method's calls are scheduled.  Waiting calls of a higher priority are executed first,
+	 * whatever order they arrived in.  A method's priority is given when it's registered, or in the config
+	 * file (which takes precedence) as rpc.priority.&lt;service&gt;.&lt;method&gt; or rpc.priority.&lt;service&gt;,
+	 * with value high, normal, or low.
+	 */
+	public static enum Priority { HIGH, NORMAL, LOW }
+	
+	private TransportListener mListener;    // see rpc.transport; null in reactor mode
+	private RPCReactor mReactor;            // null in pool mode; see rpc.server.mode
+	
+	// Connections are accepted by one thread and served by a fixed size pool of workers, with a
+	// bounded queue of connections waiting for one.  See rpc.server.threads and rpc.server.queue.
+	// The queue is in priority order; a connection has the priority of the last call made on it.
+	private ThreadPoolExecutor mWorkers;
+	private int mQueueCapacity;
+	private static final int YIELD_POLL_MSEC = 1;     // idle check on a persistent connection when others are waiting
+	private static final int CALLS_PER_TURN = 16;     // calls a busy connection gets before making way for waiting ones
+	
+	// every open connection, for the connection limit and closing idle ones; see RPCConnectionTable
+	private RPCConnectionTable mConnectionTable;
+	
+	// refuses calls when the server is overloaded; see RPCAdmission
+	private RPCAdmission mAdmission;
+	
+	// throttles clients that go over their rate limits; see RPCRateLimiter
+	private RPCRateLimiter mRateLimiter;
+	
+	// Calls to services (or methods) with bulkheads of their own run on them instead of the workers.  In pool
+	// mode the connection waits for the bulkhead holding no worker, as it does for an asynchronous call.  See RPCBulkhead.
+	private Map<String, RPCBulkhead> mBulkheads = new LinkedHashMap<String, RPCBulkhead>();   // by name
+	private Map<String, RPCBulkhead> mBulkheadFor = new ConcurrentHashMap<String, RPCBulkhead>();   // by "service.method"
+	
+	// priorities other than NORMAL, by "service.method"
+	private Map<String, Priority> mPriorityFor = new ConcurrentHashMap<String, Priority>();
+	
+	// calls whose deadlines passed (see RPCCallContext): before they were dispatched, and while they ran
+	private boolean mInterruptAtDeadline;     // see rpc.deadline.interrupt
+	private final AtomicLong mExpiredWaiting = new AtomicLong();
+	private final AtomicLong mExpiredRunning = new AtomicLong();
+	
+	// calls to asynchronous methods that were still going when the method returned; see dispatchAsync()
+	private final AtomicLong mAsyncCalls = new AtomicLong();
+	private final AtomicInteger mAsyncPending = new AtomicInteger();
+	
+	// With net.threading=virtual, pool mode gives each connection its own virtual thread instead of
+	// queueing it for a worker.  (The other net.threading values don't apply; the pool replaces them.)
+	private ConnectionExecutor mVirtualThreads;
+	
+	// worker pool metrics
+	private final long mStartNanos = System.nanoTime();
+	private final AtomicLong mAccepted = new AtomicLong();
+	private final AtomicLong mRejected = new AtomicLong();
+	private final AtomicLong mRequeued = new AtomicLong();
+	private final AtomicLong mCalls = new AtomicLong();
+	private final AtomicLong mCallNanos = new AtomicLong();     // time workers spent handling calls
+	private volatile int mMaxQueueDepth;
 	
-	//Hashmap of serviceName to <hashmap of methodName to RPCCallableMethod>
+	// traffic on the connections this service has closed
+	private TCPMessageHandlerStats mConnectionStats = new TCPMessageHandlerStats();
+	
+	//Hashmap of serviceName to <hashmap of methodName to RPCCallableMethod>; read by workers without a lock
 	private Map<String, Map<String, RPCCallableMethod>> handlers;
 	
 	/**
-	 * Constructor.  Creates the Java ServerSocket and binds it to a port.
+	 * Constructor.  Creates the listener (a Java ServerSocket, unless rpc.transport says otherwise) and binds it to a port.
 	 * If the config file specifies an rpc.server.port value, it should be bound to that port.
 	 * Otherwise, you should specify port 0, meaning the operating system should choose a currently unused port.
 	 * <p>
-	 * Once the port is created, a thread needs to be spun up to listen for connections on it.
+	 * Once the port is created, it's handed to the NetRuntime, which accepts connections on it.
+	 * Calls are executed by a pool of rpc.server.threads worker threads (by default, two per processor).
+	 * In pool mode each worker serves a whole connection; in reactor mode (rpc.server.mode=reactor) selector
+	 * threads own the connections, and workers see only individual calls.  See RPCReactor.
 	 * 
 	 * @throws Exception
 	 */
@@ -56,130 +137,640 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 		super("rpc");
 	
 		//init registered handlers hashmap
-		handlers = new HashMap<String, Map<String, RPCCallableMethod>>();
+		handlers = new ConcurrentHashMap<String, Map<String, RPCCallableMethod>>();
 		
 		ConfigManager config = NetBase.theNetBase().config();
 		String serverIP = IPFinder.localIP();
 		int basePort = 0; //config.getAsInt("dataxferraw.server.baseport", 0);
-		mServerSocket = new ServerSocket();
-		InetSocketAddress addr = new InetSocketAddress(serverIP, (basePort));
-		mServerSocket.bind(addr);
-		mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		Transport transport = Transport.fromConfig("rpc.transport");
+		boolean reactor = config.getProperty("rpc.server.mode", "pool").trim().equals("reactor");
+		if ( reactor && !transport.name().equals("tcp") ) {
+			Log.w(TAG, "rpc.server.mode=reactor requires rpc.transport=tcp; using pool mode");
+			reactor = false;
+		}
+		
+		int nThreads = config.getAsInt("rpc.server.threads", 2 * Runtime.getRuntime().availableProcessors(), 1);
+		mQueueCapacity = config.getAsInt("rpc.server.queue", 1024, 1);
+		mWorkers = new ThreadPoolExecutor(nThreads, nThreads, 60, TimeUnit.SECONDS,
+				new RPCCallQueue(mQueueCapacity), new ThreadFactory() {
+					private int mCount = 0;
+					public synchronized Thread newThread(Runnable r) {
+						Thread t = new Thread(r, "RPCService-worker-" + (++mCount));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		mWorkers.allowCoreThreadTimeOut(true);
 		
-		Thread tcpThread = new Thread(this);
-		tcpThread.start();
+		mConnectionTable = new RPCConnectionTable(config.getAsInt("rpc.server.connections", 1000, 1),
+				config.getAsInt("rpc.persistence.timeout", 30000));
+		mConnectionTable.start(NetBase.theNetBase().runtime(), config.getAsInt("net.timeout.granularity", 500, 1));
+		int maxInFlight = config.getAsInt("rpc.server.maxinflight", 0, 0);
+		RPCConcurrencyLimit limit = null;
+		if ( config.getProperty("rpc.server.concurrency", "fixed").trim().equals("gradient") ) {
+			// start with what the workers can do at once; grow to what they can hold, queue included
+			limit = new RPCConcurrencyLimit(nThreads, 1, maxInFlight > 0 ? maxInFlight : nThreads + mQueueCapacity);
+		}
+		mAdmission = new RPCAdmission(maxInFlight, config.getAsInt("rpc.server.maxqueuedelay", 0, 0), limit);
+		mRateLimiter = RPCRateLimiter.fromConfig(config);
+		mRateLimiter.start(NetBase.theNetBase().runtime(), config.getAsInt("net.timeout.granularity", 500, 1));
+		mInterruptAtDeadline = config.getAsInt("rpc.deadline.interrupt", 1, 0, 1) == 1;
+		
+		if ( reactor ) {
+			// one selector thread per listener shard, at least
+			int nSelectors = Math.max(config.getAsInt("rpc.server.selectors", 1, 1), config.getAsInt("net.listen.shards", 1, 1));
+			mReactor = new RPCReactor(this, serverIP, basePort, nSelectors, mWorkers, mConnectionTable, mAdmission, mRateLimiter,
+					mConnectionStats);
+			mReactor.start();
+			return;
+		}
+		
+		ConnectionExecutor executor = ConnectionExecutor.fromConfig(TAG);
+		if ( executor.mode().equals(ConnectionExecutor.VIRTUAL) ) mVirtualThreads = executor;
+		mListener = transport.listen(serverIP, basePort);
+		NetBase.theNetBase().runtime().accept(mListener, new NetRuntime.AcceptHandler() {
+			public void accepted(TransportConnection socket) throws Exception {
+				_accepted(socket);
+			}
+		}, TAG);
 	}
 	
 	/**
-	 * Executed by an RPCService-created thread.  Sits in loop waiting for
-	 * connections, then creates an RPCCalleeSocket to handle each one.
+	 * Called by the NetRuntime with each accepted connection, which it adds to the connection table
+	 * and hands to the worker pool.  If the table or the pool's queue is full the connection is closed at once.
+	 * If the pool is backed up (see RPCAdmission) the connection doesn't join the queue; instead a NetRuntime
+	 * worker answers its first call with an overloaded error and closes it.
 	 */
-	@Override
-	public void run() {
+	private void _accepted(TransportConnection socket) throws Exception {
+		mAccepted.incrementAndGet();
+		final RPCConnection conn = new RPCConnection(socket);
+		conn.mCallAt = System.nanoTime();
+		if ( !mConnectionTable.add(conn, new Runnable() {
+				public void run() {
+					conn.mClosedByTable = true;
+					try { conn.mSocket.close(); } catch (Exception e) {}
+					// no thread has a watched connection to notice, so clean up after it here
+					if ( conn.mWatched.compareAndSet(true, false) ) _close(conn);
+				}
+			}) ) {
+			Log.w(TAG, "Too many connections, none idle; dropping connection from " + socket.remoteAddress());
+			try { socket.close(); } catch (Exception ce) {}
+			return;
+		}
+		if ( mVirtualThreads != null ) {
+			mVirtualThreads.execute(conn);
+			return;
+		}
+		conn.mRefusal = mAdmission.checkBacklog(_oldestQueuedNanos());
+		if ( conn.mRefusal != null ) {
+			NetBase.theNetBase().runtime().execute(conn);
+			return;
+		}
+		try {
+			mWorkers.execute(conn);
+		} catch (RejectedExecutionException e) {
+			mRejected.incrementAndGet();
+			mConnectionTable.remove(conn);
+			Log.w(TAG, "Worker queue full; dropping connection from " + socket.remoteAddress());
+			try { socket.close(); } catch (Exception ce) {}
+			return;
+		}
+		int depth = mWorkers.getQueue().size();
+		if ( depth > mMaxQueueDepth ) mMaxQueueDepth = depth;
+	}
+	
+	/**
+	 * Returns how long the oldest call waiting for a worker has waited, or 0.  Idle connections put back
+	 * on the queue to make way for others have no call, and don't count.
+	 */
+	private long _oldestQueuedNanos() {
+		long oldest = 0;
+		for ( Runnable r : mWorkers.getQueue() ) {
+			if ( !(r instanceof RPCConnection) ) continue;
+			long callAt = ((RPCConnection)r).mCallAt;
+			if ( callAt != 0 && (oldest == 0 || callAt - oldest < 0) ) oldest = callAt;
+		}
+		return oldest == 0 ? 0 : System.nanoTime() - oldest;
+	}
+	
+	/**
+	 * An accepted connection, as a task for the worker pool.  A worker runs the connect handshake
+	 * and then serves calls until the connection goes idle, closes or times out.  An idle persistent
+	 * TCP connection is handed to a NetRuntime event loop (see NetRuntime.watch()), and comes back to the
+	 * queue when its next call starts to arrive, so idle keep-alive callers hold no workers.  Connections
+	 * with no selectable channel (other transports) stay with their worker while idle, but are put back at
+	 * the end of the queue, behind work of every priority, if any other connection is waiting for a worker.
+	 * A busy persistent connection is put back too once it has had CALLS_PER_TURN calls and work of its
+	 * priority or higher is waiting, so that keep-alive callers can't occupy every worker.  Idle connections
+	 * are closed by the connection table, not by the worker.
+	 * <p>
+	 * A call to an asynchronous method that hasn't finished when the method returns releases the worker
+	 * too.  The connection waits, holding no thread, until the call's response is ready, and then goes
+	 * back on the queue so that a worker can send it and carry on.
+	 */
+	private class RPCConnection extends RPCCallQueue.Task {
+		private TransportConnection mSocket;
+		private TCPMessageHandler mHandler;     // null until the worker first picks up the connection
+		private boolean mPersistent;
+		private volatile boolean mClosedByTable;
+		private volatile long mCallAt;          // when the call it's queued with began to arrive (System.nanoTime()); 0 if idle
+		private String mRefusal;                // non-null if the connection's call is to be refused
+		private volatile CompletionStage<JSONObject> mPending;   // a finished asynchronous call's response, not yet sent
+		private String mPendingClient;          // its client, for the rate limiter
+		private final AtomicBoolean mWatched = new AtomicBoolean();   // idle, on an event loop; whoever clears this owns it
+		private volatile boolean mWoken;        // put back on the queue by the event loop, so a call is arriving
+		
+		RPCConnection(TransportConnection socket) {
+			super(Priority.NORMAL);
+			mSocket = socket;
+		}
+		
+		@Override
+		public void run() {
+			boolean requeued = false;
+			try {
+				requeued = _serve(this);
+			} catch (SocketTimeoutException e) {
+				Log.e(TAG, "Timed out waiting for data on tcp connection");
+			} catch (EOFException e) {
+				// normal termination of loop
+				Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+			} catch (Exception e) {
+				if ( mClosedByTable ) Log.d(TAG, "Connection from " + mSocket.remoteAddress() + " closed by the connection table");
+				else Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+			} finally {
+				if ( !requeued ) _close(this);
+			}
+		}
+	}
+	
+	/**
+	 * Closes a connection that's finished with, and removes it from the connection table.
+	 */
+	private void _close(RPCConnection conn) {
+		mConnectionTable.remove(conn);
+		if ( conn.mHandler != null ) {
+			try { conn.mHandler.close(); } catch (Exception e) {}
+			mConnectionStats.add(conn.mHandler.getStats(), conn.mSocket.remoteAddress());
+		} else {
+			try { conn.mSocket.close(); } catch (Exception e) {}
+		}
+	}
+	
+	/**
+	 * Puts a connection (back) on the worker queue, or, if the queue is full, gives it to a NetRuntime
+	 * worker, since it has work that mustn't be lost: a response to send, or a call arriving.
+	 */
+	private void _resubmit(RPCConnection conn) {
+		conn.mCallAt = System.nanoTime();
 		try {
-			while (!mAmShutdown) {
-				Socket socket = null;
+			mWorkers.execute(conn);
+		} catch (RejectedExecutionException e) {
+			NetBase.theNetBase().runtime().execute(conn);
+		}
+	}
+	
+	/**
+	 * Hands an idle connection to a NetRuntime event loop, which resubmits it when its next call starts
+	 * to arrive.
+	 * @return false if the connection has no selectable channel, and so can't be watched.
+	 */
+	private boolean _watch(final RPCConnection conn) throws IOException {
+		if ( !(conn.mSocket instanceof TCPTransport.TCPConnection) ) return false;
+		SocketChannel channel = ((TCPTransport.TCPConnection)conn.mSocket).socket().getChannel();
+		if ( channel == null ) return false;
+		conn.mWatched.set(true);
+		try {
+			NetBase.theNetBase().runtime().watch(channel, new Runnable() {
+				public void run() {
+					if ( !conn.mWatched.compareAndSet(true, false) ) return;    // the connection table closed it
+					conn.mWoken = true;
+					_resubmit(conn);
+				}
+			});
+		} catch (IOException e) {
+			// closed underneath us; if the connection table did it, it has cleaned up
+			if ( conn.mWatched.compareAndSet(true, false) ) throw e;
+		}
+		return true;
+	}
+	
+	/**
+	 * Does a worker's share of the work on a connection.
+	 * @return true if the connection was put back on the queue, and so must be left open.
+	 */
+	private boolean _serve(RPCConnection conn) throws Exception {
+		ConfigManager config = NetBase.theNetBase().config();
+		// a call that arrived while the connection waited for a worker waited this long; a call to a
+		// connection that was queued idle arrived at some unknown point in its wait, and isn't charged for it
+		long queueNanos = conn.mCallAt == 0 ? 0 : System.nanoTime() - conn.mCallAt;
+		if ( conn.mHandler == null ) {
+			conn.mHandler = new TCPMessageHandler(conn.mSocket);
+			_connect(conn);
+			if ( conn.mRefusal != null ) {
+				conn.mHandler.sendMessage(overloadedResponse(conn.mHandler.readMessageAsJSONObject(), conn.mRefusal));
+				return false;
+			}
+			if ( !conn.mPersistent ) {
+				return _handleInvoke(conn, queueNanos);
+			}
+			conn.mHandler.setTimeout(config.getAsInt("rpc.persistence.timeout", 30000));
+			mConnectionTable.idle(conn);
+		} else if ( conn.mPending != null ) {
+			// back from waiting for an asynchronous call
+			CompletionStage<JSONObject> pending = conn.mPending;
+			conn.mPending = null;
+			_respond(conn, _join(pending), conn.mPendingClient);
+			if ( !conn.mPersistent ) return false;
+			mConnectionTable.idle(conn);
+			queueNanos = 0;
+		}
+		
+		int granularity = config.getAsInt("net.timeout.granularity", 500, 1);
+		int calls = 0;
+		boolean woken = conn.mWoken;
+		conn.mWoken = false;
+		while ( !mAmShutdown ) {
+			// idle: wait on an event loop rather than on this worker, if the connection allows it
+			if ( !woken && mVirtualThreads == null && !conn.mHandler.hasBufferedInput() && _watch(conn) ) return true;
+			woken = false;
+			// an idle connection makes way for anything waiting, a connection that isn't yet known to
+			// have a call included; a busy one only for work of its own priority or higher
+			boolean othersWaiting = mVirtualThreads == null && mWorkers.getQueue().peek() != null;
+			boolean ready = conn.mHandler.awaitInput(othersWaiting ? YIELD_POLL_MSEC : granularity);
+			if ( ready && (calls < CALLS_PER_TURN || !_othersWaiting(conn.mPriority)) ) {
+				mConnectionTable.busy(conn);
+				if ( _handleInvoke(conn, queueNanos) ) return true;
+				mConnectionTable.idle(conn);
+				queueNanos = 0;
+				calls++;
+				continue;
+			}
+			if ( othersWaiting ) {
 				try {
-					socket = mServerSocket.accept();
-					
-					TCPMessageHandler handler = null;
-					try {
-						handler = new TCPMessageHandler(socket);
-						boolean wantPersistent = false;
-		
-						//Connect
-						JSONObject connectJSON = handler.readMessageAsJSONObject();
-						if (!connectJSON.get("action").equals("connect")) {
-							//failed connect
-							throw new Exception("Connect message not received");
-						}
-						if(connectJSON.has("options")) {
-							JSONObject option = connectJSON.getJSONObject("options");
-							if(option.has("connection") && option.getString("connection").equals("keep-alive")) {
-								wantPersistent = true;
-							}
-						}
-						
-						JSONObject responseJSON = new RPCMessage().marshall();
-						responseJSON.put("type", "OK");
-						responseJSON.put("callid", connectJSON.getInt("id"));
-						responseJSON.put("value", new JSONObject().put("connection", "keep-alive"));
-						
-						RPCMessage response = RPCMessage.unmarshall(responseJSON.toString());
-
-						handler.sendMessage(response.marshall());
-						
-						if(wantPersistent) {
-							Thread tcpThread = new Thread(this);
-							tcpThread.start();
-							
-							handler.setTimeout(NetBase.theNetBase().config().getAsInt("rpc.persistence.timeout"));
-							
-							//invoke
-							while (true) {
-								JSONObject invokeJSON = handler.readMessageAsJSONObject();
-								String type = invokeJSON.getString("type");
-								if (!type.equals("invoke")) {
-									//failed connect
-									throw new Exception("Invoke message not received");
-								}
-								
-								RPCCallableMethod method = getRegistrationFor(invokeJSON.getString("app"), invokeJSON.getString("method"));
-								
-								JSONObject returnJSON = method.handleCall(invokeJSON.getJSONObject("args"));
-								
-								responseJSON = new RPCMessage().marshall();
-								responseJSON.put("type", "OK");
-								responseJSON.put("value", returnJSON);
-								responseJSON.put("callid", invokeJSON.getInt("id"));
-		
-		
-								response = RPCMessage.unmarshall(responseJSON.toString());
-		
-								handler.sendMessage(response.marshall());	
-							}
-						} else {
-							JSONObject invokeJSON = handler.readMessageAsJSONObject();
-							String type = invokeJSON.getString("type");
-							if (!type.equals("invoke")) {
-								//failed connect
-								throw new Exception("Invoke message not received");
-							}
-							
-							RPCCallableMethod method = getRegistrationFor(invokeJSON.getString("app"), invokeJSON.getString("method"));
-							
-							JSONObject returnJSON = method.handleCall(invokeJSON.getJSONObject("args"));
-							
-							responseJSON = new RPCMessage().marshall();
-							responseJSON.put("type", "OK");
-							responseJSON.put("value", returnJSON);
-							responseJSON.put("callid", invokeJSON.getInt("id"));
-	
-	
-							response = RPCMessage.unmarshall(responseJSON.toString());
-	
-							handler.sendMessage(response.marshall());	
+					// idle, it goes behind everything waiting; busy, behind the work of its priority
+					if ( !ready ) conn.mPriority = Priority.LOW;
+					conn.mCallAt = ready ? System.nanoTime() : 0;
+					mWorkers.execute(conn);
+					mRequeued.incrementAndGet();
+					return true;
+				} catch (RejectedExecutionException e) {
+					// the queue filled up since we looked; keep serving this connection
+					calls = 0;
+				}
+			}
+		}
+		return false;
+	}
+	
+	/**
+	 * Returns true if connections of the given priority, or a higher one, are waiting for a worker.
+	 */
+	private boolean _othersWaiting(Priority priority) {
+		Runnable head = mWorkers.getQueue().peek();
+		if ( head == null ) return false;
+		return !(head instanceof RPCCallQueue.Task) || ((RPCCallQueue.Task)head).mPriority.compareTo(priority) <= 0;
+	}
+	
+	/**
+	 * Reads the connect message and answers it, agreeing to keep the connection open and to
+	 * compress if the caller asked.
+	 */
+	private void _connect(RPCConnection conn) throws Exception {
+		TCPMessageHandler handler = conn.mHandler;
+		handler.setMaxReadLength(NetBase.theNetBase().config().getAsInt("rpc.maxmsglength", Integer.MAX_VALUE, 0));
+		boolean wantCompression = false;
+		
+		//Connect
+		JSONObject connectJSON = handler.readMessageAsJSONObject();
+		if (!connectJSON.get("action").equals("connect")) {
+			//failed connect
+			throw new Exception("Connect message not received");
+		}
+		if(connectJSON.has("options")) {
+			JSONObject option = connectJSON.getJSONObject("options");
+			if(option.has("connection") && option.getString("connection").equals("keep-alive")) {
+				conn.mPersistent = true;
+			}
+			if(option.has("compression") && option.getString("compression").equals("deflate")) {
+				wantCompression = NetBase.theNetBase().config().getProperty("rpc.compression", "none").equals("deflate");
+			}
+		}
+		
+		handler.sendMessage(connectResponse(connectJSON, wantCompression));
+		// everything after the connect response is compressed, if the caller asked for it and we agreed
+		if(wantCompression) {
+			handler.setCompression(true);
+			Log.d(TAG, "Compression enabled on connection from " + conn.mSocket.remoteAddress());
+		}
+	}
+	
+	/**
+	 * Returns the response to a connect message.
+	 * @param compression Whether to tell the caller that its request for compression was granted.
+	 */
+	JSONObject connectResponse(JSONObject connectJSON, boolean compression) throws Exception {
+		JSONObject responseJSON = new RPCMessage().marshall();
+		responseJSON.put("type", "OK");
+		responseJSON.put("callid", connectJSON.getInt("id"));
+		JSONObject connectValue = new JSONObject().put("connection", "keep-alive");
+		if(compression) {
+			connectValue.put("compression", "deflate");
+		}
+		responseJSON.put("value", connectValue);
+		
+		RPCMessage response = RPCMessage.unmarshall(responseJSON.toString());
+		return response.marshall();
+	}
+	
+	/**
+	 * Reads one invoke message, calls the method it names, and sends back the result, or a throttled or
+	 * overloaded error if the call isn't admitted.  The connection is given the call's priority.
+	 * If the method is asynchronous and hasn't finished, or the call is waiting for or running on a bulkhead,
+	 * the connection is left to wait for it without a thread (except with net.threading=virtual, where waiting costs next to nothing); see _await().
+	 * @param queueNanos How long the call waited for this worker.
+	 * @return true if the connection is waiting for the call, and so must be left open.
+	 */
+	private boolean _handleInvoke(RPCConnection conn, long queueNanos) throws Exception {
+		TCPMessageHandler handler = conn.mHandler;
+		JSONObject invokeJSON = handler.readMessageAsJSONObject();
+		conn.mPriority = priorityFor(invokeJSON);
+		String client = null;
+		if ( mRateLimiter.enabled() ) {
+			client = mRateLimiter.clientOf(invokeJSON, conn.mSocket.remoteAddress());
+			String throttled = mRateLimiter.check(client);
+			if ( throttled != null ) {
+				handler.sendMessage(throttledResponse(invokeJSON, throttled));
+				return false;
+			}
+		}
+		String refusal = mAdmission.admit(conn.mPriority);
+		if ( refusal == null ) {
+			long admitted = System.nanoTime();
+			long arrived = admitted - queueNanos;
+			boolean bulkheadFull = false;
+			boolean waiting = false;
+			try {
+				refusal = mAdmission.checkQueueDelay(queueNanos);
+				if ( refusal == null ) {
+					RPCBulkhead bulkhead = bulkheadFor(invokeJSON);
+					CompletionStage<JSONObject> response = bulkhead == null ? dispatchAsync(invokeJSON, arrived) :
+						_dispatchOn(bulkhead, invokeJSON, arrived);
+					if ( response != null ) {
+						if ( mVirtualThreads == null && !response.toCompletableFuture().isDone() ) {
+							_await(conn, response, client, arrived);
+							waiting = true;
+							return true;
 						}
-					} catch (SocketTimeoutException e) {
-						Log.e(TAG, "Timed out waiting for data on tcp connection");
-					} catch (EOFException e) {
-						// normal termination of loop
-						Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-					} catch (Exception e) {
-						Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-					} finally {
-						if ( handler != null ) try { handler.close(); } catch (Exception e) {}
+						_respond(conn, _join(response), client);
+						return false;
 					}
-				} catch (SocketTimeoutException e) {
-					// this is normal.  Just loop back and see if we're terminating.
+					refusal = bulkhead.refusal();
+					bulkheadFull = true;
 				}
+			} finally {
+				// a call being waited for is done when it finishes
+				if ( bulkheadFull ) mAdmission.done();
+				else if ( !waiting ) mAdmission.done(queueNanos + System.nanoTime() - admitted);
+			}
+		}
+		handler.sendMessage(overloadedResponse(invokeJSON, refusal));
+		return false;
+	}
+	
+	/**
+	 * Sends a call's response.
+	 * @param client The call's client, for the rate limiter, or null.
+	 */
+	private void _respond(RPCConnection conn, JSONObject response, String client) throws Exception {
+		TCPMessageHandler handler = conn.mHandler;
+		long bytesOut = handler.getStats().getPayloadBytesOut();
+		handler.sendMessage(response);
+		if ( client != null ) mRateLimiter.sent(client, handler.getStats().getPayloadBytesOut() - bytesOut);
+	}
+	
+	/**
+	 * Leaves a connection to wait for an asynchronous call.  When the call finishes the connection is put
+	 * back on the worker queue, behind the work of its priority already waiting, and the worker that picks it
+	 * up sends the response.  The connection stays busy in the connection table meanwhile.
+	 * @param arrived When the call arrived (System.nanoTime()).
+	 */
+	private void _await(final RPCConnection conn, CompletionStage<JSONObject> response, String client, final long arrived) {
+		conn.mPendingClient = client;
+		conn.mPending = response;    // before the callback, which can run at once
+		response.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+			public void accept(JSONObject responseJSON, Throwable t) {
+				mAdmission.done(System.nanoTime() - arrived);
+				_resubmit(conn);
+			}
+		});
+	}
+	
+	/**
+	 * Dispatches an invoke message on one of bulkhead's threads, without waiting for it.  The caller treats the
+	 * result like an asynchronous call's, so no worker waits while the call runs or queues in the bulkhead.
+	 * (If the method is asynchronous, the bulkhead's thread is free once it returns, whether or not the call
+	 * has finished.)
+	 * @return The response, or null if the bulkhead is full.
+	 */
+	private CompletionStage<JSONObject> _dispatchOn(RPCBulkhead bulkhead, final JSONObject invokeJSON, final long arrived) {
+		return bulkhead.submit(new Callable<CompletionStage<JSONObject>>() {
+			public CompletionStage<JSONObject> call() throws Exception {
+				return dispatchAsync(invokeJSON, arrived);
 			}
+		}, priorityFor(invokeJSON));
+	}
+	
+	/**
+	 * Returns the bulkhead calls named by an invoke message run on, or null if they run on the workers.
+	 */
+	RPCBulkhead bulkheadFor(JSONObject invokeJSON) {
+		return mBulkheadFor.get(invokeJSON.optString("app") + "." + invokeJSON.optString("method"));
+	}
+	
+	/**
+	 * Returns the priority of the method an invoke message calls.
+	 */
+	Priority priorityFor(JSONObject invokeJSON) {
+		Priority priority = mPriorityFor.get(invokeJSON.optString("app") + "." + invokeJSON.optString("method"));
+		return priority == null ? Priority.NORMAL : priority;
+	}
+	
+	/**
+	 * Returns the response to an invoke message that wasn't admitted.
+	 */
+	JSONObject overloadedResponse(JSONObject invokeJSON, String why) throws Exception {
+		return new RPCErrorResponseMessage(invokeJSON.getInt("id"), why, true).marshall();
+	}
+	
+	/**
+	 * Returns the response to an invoke message whose caller's deadline passed.
+	 */
+	JSONObject expiredResponse(JSONObject invokeJSON, String why) throws Exception {
+		return RPCErrorResponseMessage.expired(invokeJSON.getInt("id"), why).marshall();
+	}
+	
+	/**
+	 * Returns the response to an invoke message naming a service or method that isn't registered.
+	 */
+	JSONObject noSuchMethodResponse(JSONObject invokeJSON) throws Exception {
+		return new RPCErrorResponseMessage(invokeJSON.getInt("id"), "No such method: " + invokeJSON.getString("app") + "." +
+				invokeJSON.getString("method"), false).marshall();
+	}
+	
+	/**
+	 * Returns the response to an invoke message from a client over its rate limit.
+	 */
+	JSONObject throttledResponse(JSONObject invokeJSON, String why) throws Exception {
+		return new RPCErrorResponseMessage(invokeJSON.getInt("id"), why, true, true).marshall();
+	}
+	
+	/**
+	 * Calls the method named by an invoke message, and returns the response to send back.  If the caller's
+	 * deadline has passed the method isn't called, and if it passes while the method runs its result is dropped;
+	 * either way the response is a deadline exceeded error.  See RPCCallContext.  An asynchronous method is
+	 * waited for; see dispatchAsync().
+	 * @param arrived When the message arrived (System.nanoTime()).
+	 * @throws Exception The message isn't an invoke, or the method threw an exception.
+	 */
+	JSONObject dispatch(JSONObject invokeJSON, long arrived) throws Exception {
+		try {
+			return dispatchAsync(invokeJSON, arrived).toCompletableFuture().get();
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof Exception ) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Like dispatch(), but doesn't wait for an asynchronous method (one returning a CompletionStage, see
+	 * RPCCallableMethod) to finish.  The calling thread is done with the call once the method returns, and the
+	 * returned stage completes with the response when the method's does.  If the caller's deadline passes
+	 * first the stage completes with a deadline exceeded error right then, and, with rpc.deadline.interrupt=1,
+	 * the method's stage is cancelled.
+	 * @param arrived When the message arrived (System.nanoTime()).
+	 * @return The response, completed exceptionally if the method's stage was.
+	 * @throws Exception The message isn't an invoke, or the method threw an exception.
+	 */
+	CompletionStage<JSONObject> dispatchAsync(final JSONObject invokeJSON, long arrived) throws Exception {
+		long start = System.nanoTime();
+		String type = invokeJSON.getString("type");
+		if (!type.equals("invoke")) {
+			//failed connect
+			throw new Exception("Invoke message not received");
+		}
+		
+		final RPCCallContext context = new RPCCallContext(arrived, invokeJSON.optLong("timeout"));
+		if ( context.expired() ) {
+			mExpiredWaiting.incrementAndGet();
+			return CompletableFuture.completedFuture(expiredResponse(invokeJSON, "Deadline exceeded: call waited " +
+					(start - arrived) / 1000000 + " msec. of the caller's " + context.timeout()));
+		}
+		
+		RPCCallableMethod method = getRegistrationFor(invokeJSON.getString("app"), invokeJSON.getString("method"));
+		if ( method == null ) return CompletableFuture.completedFuture(noSuchMethodResponse(invokeJSON));
+		
+		CompletionStage<JSONObject> result = null;
+		context.begin(mInterruptAtDeadline ? NetBase.theNetBase().runtime() : null);
+		try {
+			result = method.handleCallAsync(invokeJSON.getJSONObject("args"));
 		} catch (Exception e) {
-			Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
-			System.out.println(e.getMessage());
+			// a method that gave up at its deadline (or was interrupted) gets the error below
+			if ( !context.expired() ) throw e;
 		} finally {
-			if ( mServerSocket != null )  try { mServerSocket.close(); } catch (Exception e) {}
-			mServerSocket = null;
+			context.end();
+			mCallNanos.addAndGet(System.nanoTime() - start);
+		}
+		if ( result == null || result.toCompletableFuture().isDone() ) {
+			JSONObject returnJSON = null;
+			try {
+				if ( result != null ) returnJSON = _join(result);
+			} catch (Exception e) {
+				if ( !context.expired() ) throw e;
+			}
+			return CompletableFuture.completedFuture(_response(invokeJSON, context, returnJSON));
+		}
+		
+		// the method is still going; answer when it finishes, or at the deadline, whichever is first
+		final CompletionStage<JSONObject> pending = result;
+		final CompletableFuture<JSONObject> response = new CompletableFuture<JSONObject>();
+		mAsyncCalls.incrementAndGet();
+		mAsyncPending.incrementAndGet();
+		final ScheduledFuture<?> deadline = !context.hasDeadline() ? null : NetBase.theNetBase().runtime().schedule(new Runnable() {
+			public void run() {
+				try {
+					if ( response.complete(_response(invokeJSON, context, null)) && mInterruptAtDeadline ) {
+						pending.toCompletableFuture().cancel(true);
+					}
+				} catch (Exception e) {
+					response.completeExceptionally(e);
+				}
+			}
+		}, Math.max(0, context.remaining() + 1));
+		pending.whenComplete(new BiConsumer<JSONObject, Throwable>() {
+			public void accept(JSONObject returnJSON, Throwable t) {
+				if ( deadline != null ) deadline.cancel(false);
+				mAsyncPending.decrementAndGet();
+				if ( response.isDone() ) return;
+				try {
+					// a method that gave up at its deadline gets the error, as above
+					if ( t != null && !context.expired() ) response.completeExceptionally(t);
+					else response.complete(_response(invokeJSON, context, t == null ? returnJSON : null));
+				} catch (Exception e) {
+					response.completeExceptionally(e);
+				}
+			}
+		});
+		return response;
+	}
+	
+	/**
+	 * Returns the value of a completed stage.
+	 * @throws Exception The stage completed exceptionally.
+	 */
+	private static JSONObject _join(CompletionStage<JSONObject> stage) throws Exception {
+		try {
+			return stage.toCompletableFuture().get();
+		} catch (ExecutionException e) {
+			if ( e.getCause() instanceof Exception ) throw (Exception)e.getCause();
+			throw e;
+		}
+	}
+	
+	/**
+	 * Returns the response to a call that returned returnJSON, or a deadline exceeded error if the
+	 * call's deadline has passed.
+	 */
+	private JSONObject _response(JSONObject invokeJSON, RPCCallContext context, JSONObject returnJSON) throws Exception {
+		if ( context.expired() ) {
+			mExpiredRunning.incrementAndGet();
+			return expiredResponse(invokeJSON, "Deadline exceeded: call ran past the caller's " + context.timeout() + " msec.");
+		}
+		
+		JSONObject responseJSON = new RPCMessage().marshall();
+		responseJSON.put("type", "OK");
+		responseJSON.put("value", returnJSON);
+		responseJSON.put("callid", invokeJSON.getInt("id"));
+		
+		RPCMessage response = RPCMessage.unmarshall(responseJSON.toString());
+		mCalls.incrementAndGet();
+		return response.marshall();
+	}
+	
+	/**
+	 * Stops accepting connections.  Workers finish the call they're on, and connections
+	 * close at their next idle check.
+	 */
+	@Override
+	public void shutdown() {
+		super.shutdown();
+		mConnectionTable.stop();
+		mRateLimiter.stop();
+		if ( mReactor != null ) mReactor.shutdown();
+		if ( mListener != null ) try { mListener.close(); } catch (Exception e) {}
+		mWorkers.shutdown();
+		synchronized(this) {
+			for ( RPCBulkhead bulkhead : mBulkheads.values() ) bulkhead.shutdown();
 		}
 	}
 	
@@ -192,11 +783,21 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	 * @throws Exception
 	 */
 	@Override
-	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
+	public void registerHandler(String serviceName, String methodName, RPCCallableMethod method) throws Exception {
+		registerHandler(serviceName, methodName, method, null);
+	}
+	
+	/**
+	 * Registers a method, as registerHandler(serviceName, methodName, method) does, with the priority its
+	 * calls should be scheduled at.  A priority in the config file overrides this one.  A null priority
+	 * keeps the one the method was last registered with (NORMAL for a new method), so that replacing a
+	 * method's handler doesn't change how its calls are scheduled.
+	 */
+	public synchronized void registerHandler(String serviceName, String methodName, RPCCallableMethod method, Priority priority) throws Exception {
 		Map<String, RPCCallableMethod> serviceMap = handlers.get(serviceName);
 		if(serviceMap == null) {
 			//first method for this serviceName
-			serviceMap = new HashMap<String, RPCCallableMethod>();
+			serviceMap = new ConcurrentHashMap<String, RPCCallableMethod>();
 			serviceMap.put(methodName, method);
 			handlers.put(serviceName, serviceMap);
 		} else {
@@ -204,6 +805,41 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 			serviceMap.put(methodName, method);
 			//handlers.put(serviceName, serviceMap);
 		}
+		
+		// the method's own bulkhead, if it has one, or else its service's
+		RPCBulkhead bulkhead = _bulkhead(serviceName + "." + methodName);
+		if ( bulkhead == null ) bulkhead = _bulkhead(serviceName);
+		if ( bulkhead != null ) mBulkheadFor.put(serviceName + "." + methodName, bulkhead);
+		else mBulkheadFor.remove(serviceName + "." + methodName);
+		
+		ConfigManager config = NetBase.theNetBase().config();
+		String configured = config.getProperty("rpc.priority." + serviceName + "." + methodName, "").trim();
+		if ( configured.length() == 0 ) configured = config.getProperty("rpc.priority." + serviceName, "").trim();
+		if ( configured.length() > 0 ) {
+			try {
+				priority = Priority.valueOf(configured.toUpperCase());
+			} catch (IllegalArgumentException e) {
+				Log.w(TAG, "Ignoring unknown priority '" + configured + "' for " + serviceName + "." + methodName);
+			}
+		}
+		if ( priority == null ) {
+			priority = mPriorityFor.get(serviceName + "." + methodName);
+			if ( priority == null ) priority = Priority.NORMAL;
+		}
+		if ( priority != Priority.NORMAL ) mPriorityFor.put(serviceName + "." + methodName, priority);
+		else mPriorityFor.remove(serviceName + "." + methodName);
+	}
+	
+	/**
+	 * Returns the bulkhead with the given name, creating it if the config file describes one.
+	 */
+	private RPCBulkhead _bulkhead(String name) {
+		RPCBulkhead bulkhead = mBulkheads.get(name);
+		if ( bulkhead == null ) {
+			bulkhead = RPCBulkhead.fromConfig(NetBase.theNetBase().config(), name);
+			if ( bulkhead != null ) mBulkheads.put(name, bulkhead);
+		}
+		return bulkhead;
 	}
 	
 	/**
@@ -223,16 +859,47 @@ public class RPCService extends NetLoadableService implements Runnable, RPCServi
 	}
 	
 	/**
-	 * Returns the port to which the RPC ServerSocket is bound.
+	 * Returns the port to which the RPC listener is bound.
 	 * @return The RPC service's port number on this node
 	 */
 	@Override
 	public int localPort() {
-		return mServerSocket.getLocalPort();
+		if ( mReactor != null ) return mReactor.localPort();
+		return mListener.localPort();
 	}
 	
 	@Override
 	public String dumpState() {
-		return "baseport: " + localPort();
+		StringBuilder sb = new StringBuilder();
+		sb.append("baseport: ").append(localPort()).append("\n");
+		sb.append("Workers: ").append(mWorkers.getActiveCount()).append(" busy of ").append(mWorkers.getPoolSize());
+		sb.append(" (max ").append(mWorkers.getMaximumPoolSize()).append(")");
+		sb.append("   queue: ").append(mWorkers.getQueue().size()).append(" (max ").append(mMaxQueueDepth);
+		sb.append(", capacity ").append(mQueueCapacity).append(")\n");
+		double elapsedNanos = (double)(System.nanoTime() - mStartNanos) * mWorkers.getMaximumPoolSize();
+		if ( mVirtualThreads != null ) sb.append(mVirtualThreads).append("\n");
+		if ( mReactor != null ) {
+			sb.append(mReactor.dumpState());
+		} else {
+			sb.append("Listening on: ").append(mListener).append("\n");
+			sb.append("Connections accepted: ").append(mAccepted.get()).append("   rejected: ").append(mRejected.get());
+			sb.append("   requeued to make way for others: ").append(mRequeued.get()).append("\n");
+		}
+		sb.append(mConnectionTable).append("\n");
+		sb.append(mAdmission).append("\n");
+		sb.append(mRateLimiter).append("\n");
+		synchronized(this) {
+			if ( !mBulkheads.isEmpty() ) sb.append("Bulkheads:\n");
+			for ( RPCBulkhead bulkhead : mBulkheads.values() ) sb.append("\t").append(bulkhead).append("\n");
+		}
+		if ( !mPriorityFor.isEmpty() ) sb.append("Priorities: ").append(mPriorityFor).append("\n");
+		sb.append("Calls past their deadlines: ").append(mExpiredWaiting.get()).append(" dropped before executing, ");
+		sb.append(mExpiredRunning.get()).append(" ran over\n");
+		sb.append("Asynchronous calls that outlasted their methods: ").append(mAsyncCalls.get());
+		sb.append(" (").append(mAsyncPending.get()).append(" still going)\n");
+		sb.append("Calls: ").append(mCalls.get());
+		sb.append(String.format("   worker utilization: %.1f%%", 100.0 * mCallNanos.get() / elapsedNanos)).append("\n");
+		sb.append("Closed connections:\n").append(mConnectionStats);
+		return sb.toString();
 	}
 }
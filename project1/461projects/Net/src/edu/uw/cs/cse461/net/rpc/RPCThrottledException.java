@@ -0,0 +1,14 @@
+package edu.uw.cs.cse461.net.rpc;
+
+/**
+ * Thrown by RPCCall.invoke() when the remote RPCService refuses a call because this client has gone over its
+ * rate limit there (see rpc.ratelimit.*).  The call wasn't executed; the message says how long to wait before
+ * trying again.
+ */
+public class RPCThrottledException extends RPCOverloadedException {
+	private static final long serialVersionUID = 1L;
+
+	public RPCThrottledException(String msg) {
+		super(msg);
+	}
+}
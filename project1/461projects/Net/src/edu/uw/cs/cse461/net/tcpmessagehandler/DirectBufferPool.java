@@ -0,0 +1,96 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Process-wide pool of direct ByteBuffers, used by readMessageAsDirectBuffer() so that
+ * receiving a message doesn't allocate.  Direct buffers are expensive to create and are
+ * only reclaimed when the garbage collector gets around to their (small) heap objects, so
+ * allocating one per message is far worse than allocating a heap array per message.
+ * <p>
+ * Buffers are kept in power-of-two size classes, from MIN_CLASS_SIZE up.  At most
+ * MAX_PER_CLASS idle buffers are retained per class; anything released beyond that is
+ * dropped and left for the collector.
+ */
+public class DirectBufferPool {
+
+	private static final int MIN_CLASS_SHIFT = 12;                    // 4KB
+	private static final int MIN_CLASS_SIZE = 1 << MIN_CLASS_SHIFT;
+	private static final int NUM_CLASSES = 31 - MIN_CLASS_SHIFT;      // up to 1GB
+	private static final int MAX_PER_CLASS = 8;
+
+	/**
+	 * The largest buffer the pool hands out.
+	 */
+	public static final int MAX_CAPACITY = MIN_CLASS_SIZE << (NUM_CLASSES - 1);
+
+	private static final DirectBufferPool theDirectBufferPool = new DirectBufferPool();
+
+	public static DirectBufferPool theDirectBufferPool() {
+		return theDirectBufferPool;
+	}
+
+	private ConcurrentLinkedQueue<ByteBuffer>[] mFree;
+	private AtomicInteger[] mFreeCount;
+	private AtomicInteger mAllocations;
+
+	@SuppressWarnings({"unchecked","rawtypes"})
+	private DirectBufferPool() {
+		mFree = new ConcurrentLinkedQueue[NUM_CLASSES];
+		mFreeCount = new AtomicInteger[NUM_CLASSES];
+		for ( int i=0; i<NUM_CLASSES; i++ ) {
+			mFree[i] = new ConcurrentLinkedQueue<ByteBuffer>();
+			mFreeCount[i] = new AtomicInteger();
+		}
+		mAllocations = new AtomicInteger();
+	}
+
+	/**
+	 * Returns the index of the smallest size class holding at least capacity bytes.
+	 */
+	private static int _sizeClass(int capacity) {
+		if ( capacity <= MIN_CLASS_SIZE ) return 0;
+		return 32 - Integer.numberOfLeadingZeros(capacity - 1) - MIN_CLASS_SHIFT;
+	}
+
+	/**
+	 * Returns a cleared direct buffer with capacity at least minCapacity.
+	 * The buffer should be given back with release() when the caller is done with it.
+	 * @throws IllegalArgumentException minCapacity is more than MAX_CAPACITY.
+	 */
+	public ByteBuffer acquire(int minCapacity) {
+		int sizeClass = _sizeClass(minCapacity);
+		if ( sizeClass >= NUM_CLASSES ) throw new IllegalArgumentException("Can't pool a buffer of " + minCapacity + " bytes");
+		ByteBuffer buf = mFree[sizeClass].poll();
+		if ( buf != null ) {
+			mFreeCount[sizeClass].decrementAndGet();
+			buf.clear();
+			return buf;
+		}
+		mAllocations.incrementAndGet();
+		return ByteBuffer.allocateDirect(MIN_CLASS_SIZE << sizeClass);
+	}
+
+	/**
+	 * Returns a buffer obtained from acquire() to the pool.  The caller must not use it afterwards.
+	 */
+	public void release(ByteBuffer buf) {
+		if ( buf == null ) return;
+		int sizeClass = _sizeClass(buf.capacity());
+		if ( sizeClass >= NUM_CLASSES || (MIN_CLASS_SIZE << sizeClass) != buf.capacity() ) return;  // not one of ours
+		if ( mFreeCount[sizeClass].incrementAndGet() > MAX_PER_CLASS ) {
+			mFreeCount[sizeClass].decrementAndGet();
+			return;
+		}
+		mFree[sizeClass].add(buf);
+	}
+
+	/**
+	 * Returns the number of direct buffers the pool has had to create.
+	 */
+	public int allocations() {
+		return mAllocations.get();
+	}
+}
@@ -0,0 +1,147 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+/**
+ * Incremental decoder for the TCPMessageHandler wire format (a 4-byte little endian length
+ * followed by that many payload bytes).  Unlike TCPMessageHandler, which blocks until a whole
+ * message has arrived, a FrameDecoder is handed whatever bytes happen to be available and
+ * remembers where it is in the current message between calls.  That makes it usable from a
+ * Selector loop, where a read may return part of a length field or part of a payload.
+ * <p>
+ * The decoder is a two state machine: reading the length, then reading the payload.
+ * It is not thread safe; each connection has its own.
+ * <p>
+ * Version 2 frames (see TCPMessageHandler.setFrameVersion()) are decoded too, once the peer
+ * switches to them; the length is then read from the varint in the frame header.  Compressed
+ * and continued version 2 frames aren't supported and are rejected with an IOException.
+ */
+public class FrameDecoder {
+
+	private static final int STATE_LENGTH = 0;
+	private static final int STATE_PAYLOAD = 1;
+	private static final int STATE_HEADER = 2;      // version 2: type, flags and varint length
+
+	private static final int FRAME_V2_MAGIC = 0xff7f3256;   // must match TCPMessageHandler's
+
+	private int mState;
+	private int mMaxLength;
+	private int mVersion;
+	private int mLastType;
+
+	private int mLength;           // while in STATE_LENGTH, the bytes accumulated so far
+	private int mLengthBytesRead;
+	private byte[] mPayload;       // while in STATE_PAYLOAD, the message being filled
+	private int mPayloadRead;
+
+	/**
+	 * @param maxLength Frames claiming to be longer than this are rejected before any space is allocated for them.
+	 */
+	public FrameDecoder(int maxLength) {
+		mMaxLength = maxLength;
+		mVersion = 1;
+		mLastType = TCPMessageHandlerInterface.TYPE_UNKNOWN;
+		reset();
+	}
+
+	public int setMaxLength(int maxLength) {
+		int old = mMaxLength;
+		mMaxLength = maxLength;
+		return old;
+	}
+
+	public int getMaxLength() {
+		return mMaxLength;
+	}
+
+	/**
+	 * Returns the type tag of the frame most recently completed, or TYPE_UNKNOWN for version 1 frames.
+	 */
+	public int lastType() {
+		return mLastType;
+	}
+
+	/**
+	 * Discards any partially decoded frame.
+	 */
+	public void reset() {
+		mState = mVersion == 1 ? STATE_LENGTH : STATE_HEADER;
+		mLength = 0;
+		mLengthBytesRead = 0;
+		mPayload = null;
+		mPayloadRead = 0;
+	}
+
+	/**
+	 * Returns true if the decoder is between frames (i.e., it holds no part of a frame).
+	 * A connection that reaches EOF in this state was closed cleanly.
+	 */
+	public boolean isIdle() {
+		return mState != STATE_PAYLOAD && mLengthBytesRead == 0;
+	}
+
+	/**
+	 * Consumes bytes from src until either one frame is complete or src has no more remaining bytes.
+	 * Bytes beyond the end of a completed frame are left in src, so callers loop until
+	 * decode() returns null to extract every frame a read produced.
+	 * @param src Buffer in read mode (i.e., flipped).
+	 * @return The payload of the completed frame, or null if more input is needed.
+	 * @throws IOException The frame's length is negative or longer than the max length.
+	 */
+	public byte[] decode(ByteBuffer src) throws IOException {
+		if ( mState == STATE_LENGTH ) {
+			while ( mLengthBytesRead < 4 && src.hasRemaining() ) {
+				mLength |= (src.get() & 0xff) << (8 * mLengthBytesRead);
+				mLengthBytesRead++;
+			}
+			if ( mLengthBytesRead < 4 ) return null;
+			if ( mLength == FRAME_V2_MAGIC ) {
+				mVersion = 2;
+				reset();
+			} else {
+				mLastType = TCPMessageHandlerInterface.TYPE_UNKNOWN;
+				_startPayload();
+			}
+		}
+
+		if ( mState == STATE_HEADER ) {
+			// mLengthBytesRead counts header bytes: type, flags, then the varint
+			while ( mState == STATE_HEADER && src.hasRemaining() ) {
+				int b = src.get() & 0xff;
+				if ( mLengthBytesRead == 0 ) {
+					mLastType = b;
+				} else if ( mLengthBytesRead == 1 ) {
+					if ( b != 0 ) throw new IOException("Unsupported frame flags " + b);
+				} else {
+					int shift = 7 * (mLengthBytesRead - 2);
+					if ( shift == 28 && (b & 0xf8) != 0 ) throw new IOException("Message length doesn't fit in 31 bits");
+					mLength |= (b & 0x7f) << shift;
+					if ( (b & 0x80) == 0 ) _startPayload();
+				}
+				if ( mState == STATE_HEADER ) mLengthBytesRead++;
+			}
+			if ( mState == STATE_HEADER ) return null;
+		}
+
+		int n = Math.min(src.remaining(), mPayload.length - mPayloadRead);
+		src.get(mPayload, mPayloadRead, n);
+		mPayloadRead += n;
+		if ( mPayloadRead < mPayload.length ) return null;
+
+		byte[] result = mPayload;
+		reset();
+		return result;
+	}
+
+	/**
+	 * Checks the length just decoded and moves on to reading the payload.
+	 */
+	private void _startPayload() throws IOException {
+		if ( mLength < 0 || mLength > mMaxLength )
+			throw new IOException("Message length " + mLength + " is outside allowed range [0, " + mMaxLength + "]");
+		mPayload = new byte[mLength];
+		mPayloadRead = 0;
+		mState = STATE_PAYLOAD;
+	}
+}
@@ -0,0 +1,24 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.InputStream;
+
+/**
+ * An InputStream over the payload of a single message, returned by
+ * TCPMessageHandlerInterface.openMessageInputStream().  It reports end-of-file at the end
+ * of the message.  Closing it before then discards the unread remainder, so the handler is
+ * positioned at the start of the next message either way.
+ */
+public abstract class MessageInputStream extends InputStream {
+
+	/**
+	 * Returns the length of the message, as given by its length prefix, or -1 if it was sent
+	 * without a declared length (as a series of continuation frames).
+	 */
+	public abstract int length();
+
+	/**
+	 * Returns the number of payload bytes not yet read, or -1 if the message has no declared length
+	 * and its last frame hasn't been reached.
+	 */
+	public abstract int remaining();
+}
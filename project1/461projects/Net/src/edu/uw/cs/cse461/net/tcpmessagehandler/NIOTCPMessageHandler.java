@@ -0,0 +1,372 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayDeque;
+import java.util.LinkedList;
+import java.util.List;
+
+/**
+ * A TCPMessageHandlerInterface implementation over a non-blocking java.nio SocketChannel.
+ * The wire format is identical to TCPMessageHandler's, so either end of a connection can use
+ * either implementation.  Version 2 frames are read (see FrameDecoder), but only version 1 frames
+ * are sent, which a TCPMessageHandler reads whichever version it sends.
+ * <p>
+ * There are two ways to use it:
+ * <ul>
+ * <li> Event driven.  The channel is registered with a Selector owned by the caller.  When the
+ *      channel is readable the caller invokes readAvailable(), which reads whatever has arrived and
+ *      feeds it through a FrameDecoder, and then collects completed messages with pollMessage().
+ *      Outgoing messages are added with queueMessage() and written by flushQueued() whenever
+ *      the channel is writable.  Nothing blocks, so one thread can service any number of connections.
+ * <li> Blocking.  The TCPMessageHandlerInterface send and read routines are a thin adapter over the
+ *      event driven ones: they wait for the channel on a private Selector, honoring the timeout set
+ *      with setTimeout().  This lets code written against the blocking interface (the TCPMessageHandler
+ *      services, RPC) move to channels without being rewritten first.
+ * </ul>
+ * A single handler should be used one way or the other, and by one thread at a time.
+ */
+public class NIOTCPMessageHandler extends TCPMessageHandlerBase {
+	private static final String TAG="NIOTCPMessageHandler";
+
+	private static final int RECV_BUFFER_SIZE = 64 * 1024;
+	private static final int MAX_GATHER = 64;       // max buffers handed to one gathering write
+	private static final int HEADER_SLOTS = 256;    // length prefixes queued before falling back to allocating them
+
+	private SocketChannel mChannel;
+	private int mTimeout;
+	private boolean mNoDelay;
+
+	private FrameDecoder mDecoder;
+	private ByteBuffer mRecvBuf;                    // kept in write (fill) mode between reads
+	private LinkedList<byte[]> mReadyMessages;      // decoded but not yet returned to the caller
+	private LinkedList<Integer> mReadyTypes;        // the type of each of mReadyMessages
+	private int mLastType;                          // of the message last returned to the caller
+	private boolean mEOF;
+
+	private ArrayDeque<ByteBuffer> mWriteQueue;     // length and payload buffers, in wire order
+	private ByteBuffer[] mGather;
+
+	// Length prefixes are 4 byte slices of one array, handed out round robin.  Messages leave the write
+	// queue in the order they joined it, so the slots free up in the same order.
+	private byte[] mHeaderBlock;
+	private ByteBuffer[] mHeaders;
+	private int mNextHeader;
+	private int mHeadersInUse;
+
+	private Selector mBlockingSelector;             // created on first use by a blocking routine
+	private boolean mCorked;
+
+	/**
+	 * Constructor, associating this handler with a connected channel.  The channel is
+	 * put into non-blocking mode.
+	 * @param channel
+	 * @throws IOException
+	 */
+	public NIOTCPMessageHandler(SocketChannel channel) throws IOException {
+		mChannel = channel;
+		mChannel.configureBlocking(false);
+		mTimeout = 0;
+		mNoDelay = false;
+		mDecoder = new FrameDecoder(maxReadLength);
+		mRecvBuf = ByteBuffer.allocate(RECV_BUFFER_SIZE);
+		mReadyMessages = new LinkedList<byte[]>();
+		mReadyTypes = new LinkedList<Integer>();
+		mLastType = TYPE_UNKNOWN;
+		mEOF = false;
+		mWriteQueue = new ArrayDeque<ByteBuffer>();
+		mGather = new ByteBuffer[MAX_GATHER];
+		mHeaderBlock = new byte[4 * HEADER_SLOTS];
+		mHeaders = new ByteBuffer[HEADER_SLOTS];
+		for ( int i=0; i<HEADER_SLOTS; i++ ) {
+			mHeaders[i] = ByteBuffer.wrap(mHeaderBlock, 4 * i, 4).slice().order(ByteOrder.LITTLE_ENDIAN);
+		}
+	}
+
+	/**
+	 * Returns the wrapped channel, e.g., so that it can be registered with a Selector.
+	 */
+	public SocketChannel channel() {
+		return mChannel;
+	}
+
+	/**
+	 * Closes the underlying channel and renders this handler useless.
+	 */
+	@Override
+	public void close() {
+		try {
+			if ( mBlockingSelector != null ) mBlockingSelector.close();
+		} catch (IOException e) {}
+		try {
+			mChannel.close();
+		} catch (IOException e) {
+			e.printStackTrace();
+		}
+		_releaseDirectBuffer();
+	}
+
+	/**
+	 * Sets the time the blocking read routines wait for a message before throwing SocketTimeoutException.
+	 * Zero means wait forever.
+	 * @param timeout Time out, in msec.
+	 * @return The previous time out.
+	 */
+	@Override
+	public int setTimeout(int timeout) throws SocketException {
+		int old_timeout = mTimeout;
+		mTimeout = timeout;
+		return old_timeout;
+	}
+
+	@Override
+	public boolean setNoDelay(boolean value) throws SocketException {
+		boolean old_noDelay = mNoDelay;
+		mNoDelay = value;
+		mChannel.socket().setTcpNoDelay(value);
+		return old_noDelay;
+	}
+
+	@Override
+	public int setMaxReadLength(int maxLen) {
+		mDecoder.setMaxLength(maxLen);
+		return super.setMaxReadLength(maxLen);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// event driven routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Performs one read from the channel and decodes whatever it returned.
+	 * Call when the channel is readable.
+	 * @return The number of complete messages now waiting to be collected with pollMessage().
+	 * @throws EOFException The peer closed the connection and there are no more messages to collect.
+	 * @throws IOException The peer closed the connection part way through a message, or sent an unacceptable length.
+	 */
+	public int readAvailable() throws IOException {
+		if ( mEOF ) {
+			if ( mReadyMessages.isEmpty() ) throw new EOFException("EOF reading message");
+			return mReadyMessages.size();
+		}
+		int n = mChannel.read(mRecvBuf);
+		mStats.read(n, 0);
+		if ( n > 0 ) {
+			mRecvBuf.flip();
+			byte[] msg;
+			while ( (msg = mDecoder.decode(mRecvBuf)) != null ) {
+				mStats.frameIn(msg.length);
+				mReadyMessages.add(msg);
+				mReadyTypes.add(mDecoder.lastType());
+			}
+			mRecvBuf.compact();
+		} else if ( n < 0 ) {
+			mEOF = true;
+			if ( !mDecoder.isIdle() ) throw new IOException("Connection closed part way through a message");
+			if ( mReadyMessages.isEmpty() ) throw new EOFException("EOF reading message");
+		}
+		return mReadyMessages.size();
+	}
+
+	/**
+	 * Returns true once readAvailable() has seen the peer close the connection.  Messages
+	 * decoded before that may still be waiting for pollMessage().
+	 */
+	public boolean atEOF() {
+		return mEOF;
+	}
+
+	/**
+	 * Returns the next message decoded by readAvailable(), or null if there isn't one.
+	 */
+	public byte[] pollMessage() {
+		if ( mReadyMessages.isEmpty() ) return null;
+		mLastType = mReadyTypes.removeFirst();
+		return mReadyMessages.removeFirst();
+	}
+
+	/**
+	 * Returns the type tag of the message last returned by pollMessage() or a read routine.
+	 * Only version 2 frames carry one.
+	 */
+	@Override
+	public int lastMessageType() {
+		return mLastType;
+	}
+
+	/**
+	 * Adds a message to the outgoing queue.  Nothing is written until flushQueued() is called.
+	 */
+	public void queueMessage(byte[] buf) {
+		queueMessage(ByteBuffer.wrap(buf));
+	}
+	
+	/**
+	 * Adds the bytes between buf's position and limit to the outgoing queue as one message.
+	 * The buffer itself is queued, not a copy, so the caller must leave its contents alone until
+	 * hasQueuedWrites() returns false.
+	 */
+	public void queueMessage(ByteBuffer buf) {
+		ByteBuffer length;
+		if ( mHeadersInUse < HEADER_SLOTS ) {
+			length = mHeaders[mNextHeader];
+			mNextHeader = (mNextHeader + 1) % HEADER_SLOTS;
+			mHeadersInUse++;
+			length.clear();
+		} else {
+			length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+		}
+		length.putInt(buf.remaining()).flip();
+		mStats.frameOut(buf.remaining());
+		mWriteQueue.add(length);
+		mWriteQueue.add(buf);
+	}
+
+	/**
+	 * Returns true if there are queued bytes that haven't yet been written to the channel.
+	 * Event driven callers use this to decide whether to ask their Selector for OP_WRITE.
+	 */
+	public boolean hasQueuedWrites() {
+		return !mWriteQueue.isEmpty();
+	}
+
+	/**
+	 * Writes as much of the outgoing queue as the channel will accept without blocking.
+	 * Queued messages are written with gathering writes, so a length and its payload (and
+	 * any messages queued behind them) go to the kernel in a single call.
+	 * @return true if the queue is now empty, false if the channel filled up first.
+	 */
+	public boolean flushQueued() throws IOException {
+		return flushQueued(Integer.MAX_VALUE);
+	}
+
+	/**
+	 * Writes as much of the outgoing queue as the channel will accept without blocking, but no more
+	 * than maxBytes, so that a caller serving many channels can take turns among them.
+	 * @return true if the queue is now empty, false if the channel filled up or maxBytes were written first.
+	 */
+	public boolean flushQueued(int maxBytes) throws IOException {
+		long budget = maxBytes;
+		while ( !mWriteQueue.isEmpty() && budget > 0 ) {
+			int count = 0;
+			long queued = 0;
+			for ( ByteBuffer b : mWriteQueue ) {
+				mGather[count++] = b;
+				queued += b.remaining();
+				if ( count == MAX_GATHER || queued >= budget ) break;
+			}
+			// the last buffer may hold more than the budget allows; hide the rest of it for this write
+			ByteBuffer last = mGather[count-1];
+			int limit = last.limit();
+			if ( queued > budget ) last.limit(limit - (int)(queued - budget));
+			long written;
+			try {
+				written = mChannel.write(mGather, 0, count);
+			} finally {
+				last.limit(limit);
+			}
+			mStats.write((int)written, 0);
+			budget -= written;
+			while ( !mWriteQueue.isEmpty() && !mWriteQueue.getFirst().hasRemaining() ) {
+				ByteBuffer done = mWriteQueue.removeFirst();
+				if ( done.hasArray() && done.array() == mHeaderBlock ) mHeadersInUse--;
+			}
+			for ( int i=0; i<count; i++ ) mGather[i] = null;
+			if ( written == 0 ) return false;
+		}
+		return mWriteQueue.isEmpty();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// blocking adapter
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Waits on the private Selector until the channel is ready for op.
+	 * @param deadline System.currentTimeMillis() value after which to give up, or 0 to wait forever.
+	 */
+	private void _await(int op, long deadline) throws IOException {
+		if ( mBlockingSelector == null ) mBlockingSelector = Selector.open();
+		SelectionKey key = mChannel.keyFor(mBlockingSelector);
+		if ( key == null ) mChannel.register(mBlockingSelector, op);
+		else key.interestOps(op);
+
+		long start = System.nanoTime();
+		while ( true ) {
+			long wait = 0;
+			if ( deadline > 0 ) {
+				wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) {
+					mStats.timeout(System.nanoTime() - start);
+					throw new SocketTimeoutException("Timed out waiting for message");
+				}
+			}
+			int n = mBlockingSelector.select(wait);
+			mBlockingSelector.selectedKeys().clear();
+			if ( n > 0 ) {
+				mStats.waited(op == SelectionKey.OP_READ, System.nanoTime() - start);
+				return;
+			}
+		}
+	}
+
+	@Override
+	public void sendMessage(byte[] buf) throws IOException {
+		queueMessage(buf);
+		if ( !mCorked ) _flushBlocking();
+	}
+	
+	private void _flushBlocking() throws IOException {
+		while ( !flushQueued() ) _await(SelectionKey.OP_WRITE, 0);
+	}
+	
+	/**
+	 * The messages are queued and then written with gathering writes.
+	 */
+	@Override
+	public void sendMessages(List<byte[]> msgs) throws IOException {
+		for ( byte[] msg : msgs ) queueMessage(msg);
+		if ( !mCorked ) _flushBlocking();
+	}
+	
+	/**
+	 * While corked, the blocking send routines only queue their messages.
+	 */
+	@Override
+	public void cork() {
+		mCorked = true;
+	}
+	
+	@Override
+	public void uncork() throws IOException {
+		mCorked = false;
+		_flushBlocking();
+	}
+
+	/**
+	 * The buffer is written to the channel directly, with no copy.  Since the caller may reuse
+	 * the buffer as soon as this returns, it is written (along with anything queued ahead of it)
+	 * even when the handler is corked.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		queueMessage(buf);
+		_flushBlocking();
+	}
+	
+	@Override
+	public byte[] readMessageAsBytes() throws IOException {
+		long deadline = mTimeout > 0 ? System.currentTimeMillis() + mTimeout : 0;
+		while ( mReadyMessages.isEmpty() ) {
+			if ( readAvailable() == 0 ) _await(SelectionKey.OP_READ, deadline);
+		}
+		return pollMessage();
+	}
+}
@@ -1,18 +1,27 @@
 package edu.uw.cs.cse461.net.tcpmessagehandler;
 
-import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
 import java.net.Socket;
 import java.net.SocketException;
+import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
-import java.nio.ByteOrder;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
 
 
 /**
@@ -21,79 +30,200 @@ import org.json.JSONObject;
  * In this implementation, that's done by prefixing the data with a 4-byte
  * length field.
  * <p>
+ * Connections can instead use version 2 frames, whose header is a type tag, a flags byte,
+ * and a variable length encoding of the length (see setFrameVersion()).  A handler reading
+ * version 1 frames switches to version 2 when the peer does, so only one end has to ask for it.
+ * <p>
  * Design note: TCPMessageHandler cannot usefully subclass Socket, but rather must
  * wrap an existing Socket, because servers must use ServerSocket.accept(), which
  * returns a Socket that must then be turned into a TCPMessageHandler.
+ * More generally, it wraps a TransportConnection, of which a Socket is one kind
+ * (see edu.uw.cs.cse461.net.transport.Transport).
+ * <p>
+ * Reads are done in bulk through a receive buffer owned by the handler and reused
+ * for the life of the connection.  Because that buffer may hold bytes belonging to the next
+ * message, there must be only one TCPMessageHandler per Socket, created once and used
+ * for every message exchanged on the connection.
  *  
  * @author zahorjan
  *
  */
-public class TCPMessageHandler implements TCPMessageHandlerInterface {
+public class TCPMessageHandler extends TCPMessageHandlerBase {
 	private static final String TAG="TCPMessageHandler";
 	
-	private Socket socket; 
-	private int timeout;
-	private boolean noDelay;
-	private int maxReadLength;
-	private InputStream in;
+	/**
+	 * Size of the reusable receive buffer.  Messages no longer than this are decoded in place;
+	 * longer payloads are read straight into the array returned to the caller.
+	 */
+	private static final int RECV_BUFFER_SIZE = 8192;
 	
-	//--------------------------------------------------------------------------------------
-	// helper routines
-	//--------------------------------------------------------------------------------------
-
 	/**
-	 * We need an "on the wire" format for a binary integer.
-	 * This method encodes into that format, which is little endian
-	 * (low order bits of int are in element [0] of byte array, etc.).
-	 * @param i
-	 * @return A byte[4] encoding the integer argument.
+	 * Initial size of the reusable send buffer.  The buffer grows (and stays grown) to hold the
+	 * largest message sent, up to SEND_BUFFER_MAX; longer payloads are sent as the length plus as
+	 * much payload as fits in one write, followed by the remainder written straight from the caller's array.
 	 */
-	protected static byte[] intToByte(int i) {
-		ByteBuffer b = ByteBuffer.allocate(4);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		b.putInt(i);
-		byte buf[] = b.array();
-		return buf;
-	}
+	private static final int SEND_BUFFER_SIZE = 8192;
+	private static final int SEND_BUFFER_MAX = 64 * 1024;
+	
+	private static ScheduledExecutorService theFlusher;     // see _flusher()
 	
 	/**
-	 * We need an "on the wire" format for a binary integer.
-	 * This method decodes from that format, which is little endian
-	 * (low order bits of int are in element [0] of byte array, etc.).
-	 * @param buf
-	 * @return 
+	 * Once compression is enabled, the high bit of a frame's length word marks a compressed frame.
+	 * Its payload is the uncompressed length (4 bytes, little endian) followed by the deflated message.
 	 */
-	protected static int byteToInt(byte buf[]) {
-		ByteBuffer b = ByteBuffer.wrap(buf);
-		b.order(ByteOrder.LITTLE_ENDIAN);
-		int ans = b.getInt();
-		return ans;
-	}
-
+	private static final int COMPRESSED_FLAG = 0x80000000;
+	
+	/**
+	 * Frames shorter than this aren't worth compressing, by default (see tcpmessagehandler.compression.minlength).
+	 */
+	private static final int DEFAULT_COMPRESSION_MIN_LENGTH = 128;
+	
+	/**
+	 * Preset dictionary shared by both ends.  Most frames are small RPC JSON messages, which are too
+	 * short to compress well on their own; priming the compressor with the strings they're made of
+	 * lets even the first occurrence of each be encoded as a back reference.  Strings that occur
+	 * most often go last, where references to them are shortest.
+	 */
+	private static final byte[] COMPRESSION_DICTIONARY = _dictionary(
+			"{\"transferSize\":\"xferLength\":\"dataxferrpc\",\"echorpc\",\"echo\",\"ping\",\"data\":\"" +
+			"\"message\":\"callargs\":\"ERROR\",\"connect\",\"control\",\"options\":{\"connection\":\"keep-alive\"}," +
+			"\"header\":{\"tag\":\"port\":\"host\":\"action\":\"args\":{\"method\":\"app\":\"callid\":" +
+			"\"value\":{\"type\":\"OK\",\"type\":\"invoke\",\"id\":");
+	
+	/**
+	 * A connection switches to version 2 frames when a frame boundary holds these four bytes.  Read as a
+	 * version 1 length word they're an impossible length, so a version 1 handler that receives them
+	 * rejects the connection rather than misreading it.  (The bytes are "V2" followed by 0x7f 0xff.)
+	 * <p>
+	 * Each version 2 frame starts with a type tag (one of the TYPE_ constants), a flags byte, and the payload
+	 * length as an unsigned varint: 7 bits per byte, low order bits first, with the high bit set on every
+	 * byte but the last.  Messages shorter than 128 bytes therefore have a 3 byte header.
+	 */
+	private static final int FRAME_V2_MAGIC = 0xff7f3256;
+	
+	private static final int V2_FLAG_COMPRESSED = 0x01;    // payload is as described for COMPRESSED_FLAG
+	private static final int V2_FLAG_CONTINUED = 0x02;     // message continues in the next frame
+	
+	private static final int MAX_HEADER_LENGTH = 4 + 2 + 5;     // magic, type and flags, 32 bit varint
+	
+	private TransportConnection connection; 
+	private int timeout;
+	private boolean noDelay;
+	private InputStream in;
+	private OutputStream out;
+	private boolean mOptionsApplied;     // have timeout and noDelay been pushed to the socket yet?
+	private boolean mOutputStreamOpen;   // is a MessageOutputStream part way through a message?
+	private boolean mInputStreamOpen;    // is a MessageInputStream part way through a message?
+	
+	// send buffer: length prefix and payload are assembled here so they go out in a single write.
+	// When corked or flushing adaptively, mSendBuf[0..mPending) holds messages not yet written.
+	private byte[] mSendBuf;
+	private int mPending;
+	private boolean mCorked;
+	private long mAdaptiveDelayNanos;    // 0 when adaptive flushing is off
+	private int mAdaptiveThreshold;
+	private boolean mFlushScheduled;
+	private IOException mFlushError;     // raised by the flush task, reported by the next send
+	private final Object mSendLock = new Object();
+	
+	// compression; see setCompression()
+	private boolean mCompressionEnabled;
+	private int mCompressionMinLength;
+	private Deflater mDeflater;
+	private Inflater mInflater;
+	private byte[] mDeflateBuf;          // compressed frame being sent: uncompressed length, then deflated bytes
+	private byte[] mCompressedInBuf;     // compressed frame being received
+	private byte[] mInflateBuf;          // spare receive buffer; see _inflateFrame()
+	
+	private final Runnable mFlushTask = new Runnable() {
+		public void run() {
+			synchronized(mSendLock) {
+				mFlushScheduled = false;
+				if ( mCorked ) return;
+				try {
+					_flushPending();
+				} catch (IOException e) {
+					mFlushError = e;
+				}
+			}
+		}
+	};
+	
+	// frame format; see setFrameVersion()
+	private int mWriteVersion;
+	private boolean mMagicSent;
+	private int mReadVersion;
+	private int mLastType;
+	private int mLastFlags;
+	private final byte[] mHeader = new byte[MAX_HEADER_LENGTH];   // header of the frame being sent
+	
+	// send path counters
+	private long mMessagesSent;
+	private long mSendBufferAllocations;
+	
+	// receive buffer: bytes [mRecvPos, mRecvLimit) have been read from the socket but not yet consumed
+	private byte[] mRecvBuf;
+	private int mRecvPos;
+	private int mRecvLimit;
+	
 	/**
 	 * Constructor, associating this TCPMessageHandler with a connected socket.
 	 * @param sock
 	 * @throws IOException
 	 */
 	public TCPMessageHandler(Socket sock) throws IOException {
-		this.socket = sock; 
+		this(new TCPTransport.TCPConnection(sock));
+	}
+	
+	/**
+	 * Constructor, associating this TCPMessageHandler with a connection made by any transport.
+	 * @param conn
+	 * @throws IOException
+	 */
+	public TCPMessageHandler(TransportConnection conn) throws IOException {
+		this.connection = conn; 
 		this.timeout = 1000;
 		this.noDelay = true;
-		this.maxReadLength = 1000;
-		this.in = this.socket.getInputStream();
+		this.in = this.connection.getInputStream();
+		this.out = this.connection.getOutputStream();
+		this.mOptionsApplied = false;
+		this.mSendBuf = new byte[SEND_BUFFER_SIZE];
+		this.mPending = 0;
+		this.mCorked = false;
+		this.mAdaptiveDelayNanos = _configInt("tcpmessagehandler.adaptiveflush.delay", 0) * 1000L;
+		this.mAdaptiveThreshold = _configInt("tcpmessagehandler.adaptiveflush.threshold", SEND_BUFFER_SIZE);
+		this.mFlushScheduled = false;
+		this.mCompressionEnabled = false;
+		this.mCompressionMinLength = _configInt("tcpmessagehandler.compression.minlength", DEFAULT_COMPRESSION_MIN_LENGTH);
+		this.mRecvBuf = new byte[RECV_BUFFER_SIZE];
+		this.mRecvPos = 0;
+		this.mRecvLimit = 0;
+		this.mWriteVersion = 1;
+		this.mMagicSent = false;
+		this.mReadVersion = 1;
+		this.mLastType = TYPE_UNKNOWN;
 	}
 	
 	/**
 	 * Closes the underlying socket and renders this TCPMessageHandler useless.
 	 */
 	public void close() {
-		if(this.socket != null) {
+		synchronized(mSendLock) {
+			// anything sent while corked or waiting for an adaptive flush still goes out
+			try {
+				if ( !this.connection.isClosed() ) _flushPending();
+			} catch (IOException e) {}
+		}
+		if(this.connection != null) {
 			try {
-				this.socket.close();
+				this.connection.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
 		}
+		_releaseDirectBuffer();
+		if ( mDeflater != null ) mDeflater.end();
+		if ( mInflater != null ) mInflater.end();
 	}
 	
 	/**
@@ -105,7 +235,7 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	public int setTimeout(int timeout) throws SocketException {
 		int old_timeout = this.timeout;
 		this.timeout = timeout;
-		this.socket.setSoTimeout(this.timeout);
+		this.connection.setTimeout(this.timeout);
 		return old_timeout;
 	}
 	
@@ -118,81 +248,410 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	public boolean setNoDelay(boolean value) throws SocketException {
 		boolean old_noDelay = this.noDelay;
 		this.noDelay = value;
-		this.socket.setTcpNoDelay(this.noDelay);
+		this.connection.setNoDelay(this.noDelay);
 		return old_noDelay;
 	}
 	
 	/**
-	 * Sets the maximum allowed size for which decoding of a message will be attempted.
-	 * @return The previous setting of the maximum allowed message length.
+	 * Selects the frame format used for messages sent from now on.  Version 1 frames have a 4 byte
+	 * length prefix.  Version 2 frames have a 1 byte type tag, a 1 byte flags field, and a 1 to 5 byte
+	 * length, so they're shorter for messages under 2MB and let the receiver tell what kind of value
+	 * a message holds (see readMessage()).  A handler switches to version 2 by itself once it reads a
+	 * version 2 frame, so only the end that wants version 2 needs to call this.  A connection can't go
+	 * back to version 1 once it has sent a version 2 frame.
+	 * @param version 1 or 2
+	 * @return The previous version
 	 */
-	@Override
-	public int setMaxReadLength(int maxLen) {
-		int old_maxReadLength = this.maxReadLength;
-		this.maxReadLength = maxLen;
-		return old_maxReadLength;
+	public int setFrameVersion(int version) {
+		if ( version != 1 && version != 2 ) throw new IllegalArgumentException("Unknown frame version " + version);
+		synchronized(mSendLock) {
+			int old = mWriteVersion;
+			if ( version == 1 && mMagicSent ) throw new IllegalStateException("Version 2 frames have already been sent");
+			mWriteVersion = version;
+			return old;
+		}
 	}
-
-	/**
-	 * Returns the current setting for the maximum read length
-	 */
-	@Override
-	public int getMaxReadLength() {
-		return this.maxReadLength;
+	
+	public int getFrameVersion() {
+		return mWriteVersion;
 	}
 	
 	//--------------------------------------------------------------------------------------
 	// send routines
 	//--------------------------------------------------------------------------------------
 	
+	/**
+	 * The length and payload are copied into the send buffer and handed to the socket in one write,
+	 * so a message costs one system call and, on a NoDelay socket, doesn't put the length in a segment of its own.
+	 * Socket options are set only when they change (see setTimeout() and setNoDelay()), not on every send.
+	 * When corked, or in adaptive flush mode, the message may instead wait in the send buffer to be
+	 * written along with the messages after it.
+	 */
 	@Override
-	public void sendMessage(byte[] buf) throws IOException {		
-		//Set up socket and streams
-		OutputStream out = new DataOutputStream(this.socket.getOutputStream());
-		this.socket.setSoTimeout(this.timeout);
-		this.socket.setTcpNoDelay(this.noDelay);
-		
-		byte[] len = intToByte(buf.length);
-		
-		out.write(len);
-		out.write(buf);
-		out.flush();
+	public void sendMessage(byte[] buf) throws IOException {
+		_send(buf, 0, buf.length, TYPE_BYTES);
 	}
 	
 	/**
-	 * Uses str.getBytes() for conversion.
+	 * The type goes in the tag of a version 2 frame.
 	 */
 	@Override
-	public void sendMessage(String str) throws IOException {
-		byte[] buf = str.getBytes("UTF-8");
-		sendMessage(buf);
+	protected void _sendTyped(byte[] buf, int type) throws IOException {
+		_send(buf, 0, buf.length, type);
 	}
-
+	
+	/**
+	 * Heap buffers are sent straight from their backing array, exactly as a byte[] would be.
+	 * Direct buffers are copied through the send buffer a chunk at a time.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		if ( buf.hasArray() ) {
+			_send(buf.array(), buf.arrayOffset() + buf.position(), buf.remaining(), TYPE_BYTES);
+			buf.position(buf.limit());
+			return;
+		}
+		synchronized(mSendLock) {
+			_checkCanSend();
+			_flushPending();
+			int length = buf.remaining();
+			int headerLength = _encodeHeader(TYPE_BYTES, 0, length);
+			_growSendBuffer(headerLength + length);
+			System.arraycopy(mHeader, 0, mSendBuf, 0, headerLength);
+			int chunk = Math.min(length, mSendBuf.length - headerLength);
+			buf.get(mSendBuf, headerLength, chunk);
+			_write(mSendBuf, 0, headerLength + chunk);
+			while ( buf.hasRemaining() ) {
+				chunk = Math.min(buf.remaining(), mSendBuf.length);
+				buf.get(mSendBuf, 0, chunk);
+				_write(mSendBuf, 0, chunk);
+			}
+			mStats.frameOut(length);
+			mMessagesSent++;
+		}
+	}
+	
+	/**
+	 * Sends buf[offset..offset+length) as one message of the given type.
+	 */
+	private void _send(byte[] buf, int offset, int length, int type) throws IOException {
+		synchronized(mSendLock) {
+			_checkCanSend();
+			if ( mCompressionEnabled ) {
+				if ( length >= mCompressionMinLength ) {
+					int compressedLength = _deflate(buf, offset, length);
+					if ( compressedLength > 0 ) {
+						_sendFrame(mDeflateBuf, 0, compressedLength, type, V2_FLAG_COMPRESSED);
+						return;
+					}
+				}
+				mStats.sentUncompressed();
+			}
+			_sendFrame(buf, offset, length, type, 0);
+		}
+	}
+	
+	/**
+	 * Sends buf[offset..offset+length) as the payload of one frame with the given type and flags.
+	 * Called with mSendLock held.
+	 */
+	private void _sendFrame(byte[] buf, int offset, int length, int type, int flags) throws IOException {
+		int headerLength = _encodeHeader(type, flags, length);
+		if ( mCorked || mAdaptiveDelayNanos > 0 ) {
+			// append to whatever is already waiting, writing that first if there isn't room
+			int total = headerLength + length;
+			if ( mPending + total > mSendBuf.length ) _growSendBuffer(mPending + total);
+			if ( mPending + total > mSendBuf.length ) _flushPending();
+			if ( total <= mSendBuf.length ) {
+				System.arraycopy(mHeader, 0, mSendBuf, mPending, headerLength);
+				System.arraycopy(buf, offset, mSendBuf, mPending + headerLength, length);
+				mPending += total;
+				mStats.frameOut(length);
+				mMessagesSent++;
+				if ( !mCorked ) {
+					if ( mPending >= mAdaptiveThreshold ) _flushPending();
+					else _scheduleFlush();
+				}
+				return;
+			}
+			// too big to ever fit in the send buffer -- nothing is pending now, so just send it
+		}
+		
+		_growSendBuffer(headerLength + length);
+		System.arraycopy(mHeader, 0, mSendBuf, 0, headerLength);
+		int firstPart = Math.min(length, mSendBuf.length - headerLength);
+		System.arraycopy(buf, offset, mSendBuf, headerLength, firstPart);
+		_write(mSendBuf, 0, headerLength + firstPart);
+		if ( firstPart < length ) {
+			_write(buf, offset + firstPart, length - firstPart);
+		}
+		mStats.frameOut(length);
+		mMessagesSent++;
+	}
+	
 	/**
-	 * We convert the int to the one the wire format and send as bytes.
+	 * Sends all the messages in a single write, if they fit in the send buffer (and otherwise in as few
+	 * writes as the send buffer allows).
 	 */
 	@Override
-	public void sendMessage(int value) throws IOException{
-		byte[] buf = intToByte(value); 
-		sendMessage(buf);
+	public void sendMessages(List<byte[]> msgs) throws IOException {
+		synchronized(mSendLock) {
+			boolean wasCorked = mCorked;
+			mCorked = true;
+			try {
+				for ( byte[] msg : msgs ) _send(msg, 0, msg.length, TYPE_BYTES);
+			} finally {
+				mCorked = wasCorked;
+			}
+			if ( !wasCorked ) _flushPending();
+		}
 	}
 	
 	/**
-	 * Sends JSON string representation of the JSONArray.
+	 * Holds subsequently sent messages in the send buffer until uncork() is called (or the buffer fills).
 	 */
 	@Override
-	public void sendMessage(JSONArray jsArray) throws IOException {
-		byte[] buf = jsArray.toString().getBytes("UTF-8"); 
-		sendMessage(buf);
+	public void cork() {
+		synchronized(mSendLock) {
+			mCorked = true;
+		}
 	}
 	
 	/**
-	 * Sends JSON string representation of the JSONObject.
+	 * Writes everything sent since cork() was called.
 	 */
 	@Override
-	public void sendMessage(JSONObject jsObject) throws IOException {
-		byte[] buf = jsObject.toString().getBytes("UTF-8");
-		sendMessage(buf);
+	public void uncork() throws IOException {
+		synchronized(mSendLock) {
+			mCorked = false;
+			_flushPending();
+		}
+	}
+	
+	/**
+	 * Turns adaptive flushing on or off.  When it's on, a sent message waits in the send buffer until
+	 * delayMicros have passed since the oldest waiting message was sent, the buffer holds thresholdBytes,
+	 * or the handler is about to block on a read, whichever comes first.  Messages sent back to back are
+	 * then coalesced into one write, while a lone message is delayed only a few microseconds (rather
+	 * than waiting for an ACK, as Nagle's algorithm would).
+	 * @param delayMicros Longest time a message may wait.  0 turns adaptive flushing off.
+	 * @param thresholdBytes Amount of waiting data that causes an immediate write.
+	 */
+	public void setAdaptiveFlush(int delayMicros, int thresholdBytes) throws IOException {
+		synchronized(mSendLock) {
+			mAdaptiveDelayNanos = delayMicros > 0 ? delayMicros * 1000L : 0;
+			mAdaptiveThreshold = thresholdBytes;
+			if ( mAdaptiveDelayNanos == 0 && !mCorked ) _flushPending();
+		}
+	}
+	
+	/**
+	 * Turns per-frame compression on or off.  Compressed frames can't be read by a handler that
+	 * doesn't have compression on, so both ends must agree to turn it on, and must do so at
+	 * the same point in the message exchange -- e.g., each side right after the exchange of messages
+	 * in which they agree to it.  (Version 2 frames flag compression in their own header, so a handler
+	 * inflates those whether or not it has compression on; it still only sends compressed frames when
+	 * it does.)  Messages sent with sendMessage(ByteBuffer) from a direct buffer,
+	 * or through a message output stream, are never compressed.
+	 */
+	public void setCompression(boolean enable) {
+		synchronized(mSendLock) {
+			mCompressionEnabled = enable;
+			if ( enable ) _initCompression();
+		}
+	}
+	
+	/**
+	 * Creates the compressor and its buffers, if they don't exist yet.
+	 */
+	private void _initCompression() {
+		synchronized(mSendLock) {
+			if ( mDeflater == null ) {
+				mDeflater = new Deflater(Deflater.BEST_SPEED);
+				mInflater = new Inflater();
+				mDeflateBuf = new byte[SEND_BUFFER_SIZE];
+				mCompressedInBuf = new byte[RECV_BUFFER_SIZE];
+				mInflateBuf = new byte[RECV_BUFFER_SIZE];
+			}
+		}
+	}
+	
+	public boolean getCompression() {
+		return mCompressionEnabled;
+	}
+	
+	/**
+	 * Compresses buf[offset..offset+length) into mDeflateBuf, preceded by its uncompressed length.
+	 * @return The length of the compressed frame payload, or 0 if compressing didn't make it any shorter.
+	 */
+	private int _deflate(byte[] buf, int offset, int length) {
+		long start = System.nanoTime();
+		if ( mDeflateBuf.length < length ) mDeflateBuf = new byte[length];
+		mDeflater.reset();
+		mDeflater.setDictionary(COMPRESSION_DICTIONARY);
+		mDeflater.setInput(buf, offset, length);
+		mDeflater.finish();
+		byte[] lengthBytes = intToByte(length);
+		System.arraycopy(lengthBytes, 0, mDeflateBuf, 0, 4);
+		// the output space is just short of the input length, so incompressible input is detected
+		// as soon as it overflows rather than after it has all been compressed
+		int n = 4;
+		while ( !mDeflater.finished() && n < length ) n += mDeflater.deflate(mDeflateBuf, n, length - n);
+		boolean shrank = mDeflater.finished() && n < length;
+		mStats.deflated(length, shrank ? n : 0, System.nanoTime() - start);
+		return shrank ? n : 0;
+	}
+	
+	/**
+	 * Called with mSendLock held before anything is sent.
+	 */
+	private void _checkCanSend() throws IOException {
+		_checkNoOutputStream();
+		if ( mFlushError != null ) {
+			IOException e = mFlushError;
+			mFlushError = null;
+			throw new IOException("Background flush failed: " + e.getMessage(), e);
+		}
+		_applyOptions();
+	}
+	
+	private void _checkNoOutputStream() throws IOException {
+		if ( mOutputStreamOpen ) throw new IOException("Can't send a message while a message output stream is open");
+	}
+	
+	private void _applyOptions() throws SocketException {
+		if ( !mOptionsApplied ) {
+			// the original implementation applied the timeout and noDelay values on every send;
+			// doing it once on the first send preserves the behavior callers have come to rely on
+			this.connection.setTimeout(this.timeout);
+			this.connection.setNoDelay(this.noDelay);
+			mOptionsApplied = true;
+		}
+	}
+	
+	/**
+	 * Makes the send buffer large enough for total bytes, if that's allowed, keeping any pending bytes.
+	 */
+	private void _growSendBuffer(int total) {
+		if ( total > mSendBuf.length && mSendBuf.length < SEND_BUFFER_MAX ) {
+			byte[] bigger = new byte[Math.min(Math.max(total, 2 * mSendBuf.length), SEND_BUFFER_MAX)];
+			System.arraycopy(mSendBuf, 0, bigger, 0, mPending);
+			mSendBuf = bigger;
+			mSendBufferAllocations++;
+		}
+	}
+	
+	/**
+	 * Writes the header of a frame into mHeader, in the current frame version.  The first version 2
+	 * header is preceded by FRAME_V2_MAGIC.  Flags are the V2_FLAG_ values; in a version 1 header only
+	 * V2_FLAG_COMPRESSED can be represented.  Called with mSendLock held.
+	 * @return The length of the header
+	 */
+	private int _encodeHeader(int type, int flags, int length) {
+		if ( mWriteVersion == 1 ) {
+			_putInt(mHeader, 0, (flags & V2_FLAG_COMPRESSED) != 0 ? length | COMPRESSED_FLAG : length);
+			return 4;
+		}
+		int n = 0;
+		if ( !mMagicSent ) {
+			_putInt(mHeader, 0, FRAME_V2_MAGIC);
+			mMagicSent = true;
+			n = 4;
+		}
+		mHeader[n++] = (byte)type;
+		mHeader[n++] = (byte)flags;
+		while ( (length & ~0x7f) != 0 ) {
+			mHeader[n++] = (byte)((length & 0x7f) | 0x80);
+			length >>>= 7;
+		}
+		mHeader[n++] = (byte)length;
+		return n;
+	}
+	
+	/**
+	 * Writes the wire encoding of an int into buf at the given offset.
+	 */
+	private static void _putInt(byte[] buf, int at, int value) {
+		buf[at] = (byte)value;
+		buf[at+1] = (byte)(value >>> 8);
+		buf[at+2] = (byte)(value >>> 16);
+		buf[at+3] = (byte)(value >>> 24);
+	}
+	
+	/**
+	 * All writes to the socket go through here, so they're counted and timed.
+	 */
+	private void _write(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		out.write(b, off, len);
+		mStats.write(len, System.nanoTime() - start);
+	}
+	
+	/**
+	 * Writes any messages waiting in the send buffer.  Called with mSendLock held.
+	 */
+	private void _flushPending() throws IOException {
+		if ( mPending == 0 ) return;
+		int n = mPending;
+		mPending = 0;
+		_write(mSendBuf, 0, n);
+	}
+	
+	/**
+	 * Arranges for the flush task to run mAdaptiveDelayNanos from now, unless it already will.
+	 * Called with mSendLock held.
+	 */
+	private void _scheduleFlush() {
+		if ( mFlushScheduled ) return;
+		mFlushScheduled = true;
+		_flusher().schedule(mFlushTask, mAdaptiveDelayNanos, TimeUnit.NANOSECONDS);
+	}
+	
+	private static byte[] _dictionary(String s) {
+		try {
+			return s.getBytes("UTF-8");
+		} catch (UnsupportedEncodingException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	/**
+	 * Returns the thread, shared by all handlers, that runs adaptive flush tasks.
+	 */
+	private static synchronized ScheduledExecutorService _flusher() {
+		if ( theFlusher == null ) {
+			theFlusher = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+				public Thread newThread(Runnable r) {
+					Thread t = new Thread(r, "TCPMessageHandler flusher");
+					t.setDaemon(true);
+					return t;
+				}
+			});
+		}
+		return theFlusher;
+	}
+	
+	/**
+	 * Returns the number of messages sent through this handler.
+	 */
+	public long getMessagesSent() {
+		return mMessagesSent;
+	}
+	
+	/**
+	 * Returns the number of writes made to the socket.  For messages that fit in the send buffer
+	 * this equals getMessagesSent().
+	 */
+	public long getSendCalls() {
+		return mStats.getWriteCalls();
+	}
+	
+	/**
+	 * Returns the number of times the send buffer has been replaced by a larger one.
+	 * This stops increasing once the buffer has grown to the size of the largest message sent.
+	 */
+	public long getSendBufferAllocations() {
+		return mSendBufferAllocations;
 	}
 	
 	//--------------------------------------------------------------------------------------
@@ -200,52 +659,613 @@ public class TCPMessageHandler implements TCPMessageHandlerInterface {
 	//   All of these invert any encoding done by the corresponding send method.
 	//--------------------------------------------------------------------------------------
 	
+	/**
+	 * All reads from the socket go through here, so they're counted and timed.
+	 */
+	private int _read(byte[] b, int off, int len) throws IOException {
+		long start = System.nanoTime();
+		int n;
+		try {
+			n = in.read(b, off, len);
+		} catch (SocketTimeoutException e) {
+			mStats.timeout(System.nanoTime() - start);
+			throw e;
+		}
+		mStats.read(n, System.nanoTime() - start);
+		return n;
+	}
+	
+	/**
+	 * Makes sure at least n bytes (n no larger than the receive buffer) are buffered,
+	 * reading from the socket as many bytes as are available, not just the n needed.
+	 * @return false if end-of-file is reached first, true otherwise.
+	 */
+	private boolean _fill(int n) throws IOException {
+		if ( mRecvLimit - mRecvPos >= n ) return true;
+		if ( mRecvBuf.length - mRecvPos < n ) {
+			// not enough room after the unconsumed bytes -- slide them to the front
+			System.arraycopy(mRecvBuf, mRecvPos, mRecvBuf, 0, mRecvLimit - mRecvPos);
+			mRecvLimit -= mRecvPos;
+			mRecvPos = 0;
+		}
+		while ( mRecvLimit - mRecvPos < n ) {
+			int len = _read(mRecvBuf, mRecvLimit, mRecvBuf.length - mRecvLimit);
+			if ( len < 0 ) return false;
+			mRecvLimit += len;
+		}
+		return true;
+	}
+	
+	/**
+	 * Reads the length prefix of the next message and checks it against the maximum read length.
+	 * @return The length of the message payload
+	 * @throws EOFException The connection was closed cleanly, between messages.
+	 * @throws IOException The connection was closed part way through the prefix, or the length isn't acceptable.
+	 */
+	private int _readLength() throws IOException {
+		return _readLength(maxReadLength);
+	}
+	
+	/**
+	 * Reads the header of the next message and checks its length against the given limit.
+	 * Messages split into continuation frames can only be read with openMessageInputStream().
+	 */
+	private int _readLength(int limit) throws IOException {
+		_beginRead();
+		int length = _readHeader(limit);
+		if ( (mLastFlags & V2_FLAG_CONTINUED) != 0 ) throw new IOException("Message was sent without a declared length; read it with openMessageInputStream()");
+		return length;
+	}
+	
+	/**
+	 * Checks that a message can be read, and gets anything waiting to be sent on its way first.
+	 */
+	private void _beginRead() throws IOException {
+		if ( mInputStreamOpen ) throw new IOException("Can't read a message while a message input stream is open");
+		if ( mAdaptiveDelayNanos > 0 ) {
+			// we're presumably about to wait for a response to what's pending, so don't make it wait
+			synchronized(mSendLock) {
+				if ( !mCorked ) _flushPending();
+			}
+		}
+	}
+	
+	/**
+	 * Reads the next frame header, in whichever version the peer is sending, leaving its type and flags in
+	 * mLastType and mLastFlags.  A compressed frame is inflated before this returns.
+	 * @return The length of the frame's (uncompressed) payload
+	 */
+	private int _readHeader(int limit) throws IOException {
+		if ( mReadVersion == 1 ) {
+			if ( !_fill(4) ) {
+				if ( mRecvLimit == mRecvPos ) throw new EOFException("EOF reading message length");
+				throw new IOException("Connection closed after " + (mRecvLimit - mRecvPos) + " of 4 length bytes");
+			}
+			int length = byteToInt(mRecvBuf, mRecvPos);
+			mRecvPos += 4;
+			if ( length != FRAME_V2_MAGIC ) {
+				mLastType = TYPE_UNKNOWN;
+				mLastFlags = 0;
+				if ( mCompressionEnabled && (length & COMPRESSED_FLAG) != 0 ) {
+					mStats.frameIn(length & ~COMPRESSED_FLAG);
+					return _inflateFrame(length & ~COMPRESSED_FLAG);
+				}
+				if ( length < 0 || length > limit )
+					throw new IOException("Message length " + length + " is outside allowed range [0, " + limit + "]");
+				mStats.frameIn(length);
+				return length;
+			}
+			// the peer has switched to version 2 frames, so answer in kind
+			mReadVersion = 2;
+			synchronized(mSendLock) {
+				mWriteVersion = 2;
+			}
+		}
+		
+		if ( !_fill(3) ) {
+			if ( mRecvLimit == mRecvPos ) throw new EOFException("EOF reading message header");
+			throw new IOException("Connection closed part way through a message header");
+		}
+		int type = mRecvBuf[mRecvPos] & 0xff;
+		int flags = mRecvBuf[mRecvPos+1] & 0xff;
+		int length = 0;
+		int i = 2;
+		for ( int shift = 0; ; shift += 7 ) {
+			if ( !_fill(i + 1) ) throw new IOException("Connection closed part way through a message header");
+			int b = mRecvBuf[mRecvPos + i++] & 0xff;
+			if ( shift == 28 && (b & 0xf8) != 0 ) throw new IOException("Message length doesn't fit in 31 bits");
+			length |= (b & 0x7f) << shift;
+			if ( (b & 0x80) == 0 ) break;
+		}
+		mRecvPos += i;
+		mLastType = type;
+		mLastFlags = flags;
+		mStats.frameIn(length);
+		if ( (flags & V2_FLAG_COMPRESSED) != 0 ) {
+			_initCompression();
+			return _inflateFrame(length);
+		}
+		if ( length > limit )
+			throw new IOException("Message length " + length + " is outside allowed range [0, " + limit + "]");
+		return length;
+	}
+	
+	/**
+	 * Returns the type tag of the message most recently read.  Only version 2 frames carry one.
+	 */
 	@Override
-	public byte[] readMessageAsBytes() throws IOException {
-		//read length header
-		int next;
-		byte[] length_byte = new byte[4];
-		for(int i = 0; i < 4; i++) {
-			next = in.read();
-			length_byte[i] = new Integer(next).byteValue();
+	public int lastMessageType() {
+		return mLastType;
+	}
+	
+	/**
+	 * Reads a compressed frame's payload and inflates it into the front of a receive buffer, ahead of any
+	 * bytes already buffered that follow the frame.  That buffer then replaces mRecvBuf, so the caller
+	 * reads the inflated message exactly as if it had arrived uncompressed.  The two receive buffers
+	 * trade places each time, so this doesn't allocate once they've grown to the largest message.
+	 * @return The uncompressed length of the message
+	 */
+	private int _inflateFrame(int wireLength) throws IOException {
+		if ( wireLength < 4 || wireLength > maxReadLength )
+			throw new IOException("Compressed message length " + wireLength + " is outside allowed range [4, " + maxReadLength + "]");
+		if ( mCompressedInBuf.length < wireLength ) mCompressedInBuf = new byte[wireLength];
+		_readFully(mCompressedInBuf, 0, wireLength);
+		int length = byteToInt(mCompressedInBuf, 0);
+		if ( length < 0 || length > maxReadLength )
+			throw new IOException("Message length " + length + " is outside allowed range [0, " + maxReadLength + "]");
+		
+		long start = System.nanoTime();
+		int leftover = mRecvLimit - mRecvPos;
+		if ( mInflateBuf.length < length + leftover ) mInflateBuf = new byte[Math.max(length + leftover, RECV_BUFFER_SIZE)];
+		mInflater.reset();
+		mInflater.setInput(mCompressedInBuf, 4, wireLength - 4);
+		int n = 0;
+		try {
+			while ( n < length ) {
+				int k = mInflater.inflate(mInflateBuf, n, length - n);
+				if ( k == 0 ) {
+					if ( mInflater.needsDictionary() ) mInflater.setDictionary(COMPRESSION_DICTIONARY);
+					else if ( mInflater.finished() || mInflater.needsInput() ) break;
+				}
+				n += k;
+			}
+		} catch (DataFormatException e) {
+			throw new IOException("Corrupt compressed message: " + e.getMessage());
 		}
-		int length = byteToInt(length_byte);
+		if ( n != length ) throw new IOException("Compressed message inflated to " + n + " bytes, but should have been " + length);
+		mStats.inflated(System.nanoTime() - start);
 		
-		//read content
-		byte[] response = new byte[length];
-		int count = 0;
-		while((count < length) && ((next = in.read()) != -1))
-		{
-			byte b = new Integer(next).byteValue();
-			response[count] = b;
-			count++;
+		System.arraycopy(mRecvBuf, mRecvPos, mInflateBuf, length, leftover);
+		byte[] spare = mRecvBuf;
+		mRecvBuf = mInflateBuf;
+		mInflateBuf = spare;
+		mRecvPos = 0;
+		mRecvLimit = length + leftover;
+		return length;
+	}
+	
+	/**
+	 * Fills dest[offset..offset+len) with payload bytes, first from the receive buffer and then
+	 * with bulk reads from the socket.  Large remainders are read directly into dest.
+	 */
+	private void _readFully(byte[] dest, int offset, int len) throws IOException {
+		int total = len;
+		int buffered = Math.min(len, mRecvLimit - mRecvPos);
+		System.arraycopy(mRecvBuf, mRecvPos, dest, offset, buffered);
+		mRecvPos += buffered;
+		offset += buffered;
+		len -= buffered;
+		
+		if ( len >= mRecvBuf.length ) {
+			while ( len > 0 ) {
+				int n = _read(dest, offset, len);
+				if ( n < 0 ) throw new IOException("Connection closed after " + (total - len) + " of " + total + " payload bytes");
+				offset += n;
+				len -= n;
+			}
+		} else if ( len > 0 ) {
+			if ( !_fill(len) ) throw new IOException("Connection closed after " + (total - len + mRecvLimit - mRecvPos) + " of " + total + " payload bytes");
+			System.arraycopy(mRecvBuf, mRecvPos, dest, offset, len);
+			mRecvPos += len;
+		}
+	}
+	
+	/**
+	 * Makes sure an entire payload of the given length, which must fit in the receive buffer,
+	 * is buffered at mRecvBuf[mRecvPos].
+	 */
+	private void _fillPayload(int length) throws IOException {
+		if ( !_fill(length) ) throw new IOException("Connection closed after " + (mRecvLimit - mRecvPos) + " of " + length + " payload bytes");
+	}
+	
+	/**
+	 * Copies len payload bytes into dest, a chunk at a time through the receive buffer.
+	 * Used when dest has no backing array (i.e., is direct).
+	 */
+	private void _readFully(ByteBuffer dest, int len) throws IOException {
+		int total = len;
+		while ( len > 0 ) {
+			if ( !_fill(1) ) throw new IOException("Connection closed after " + (total - len) + " of " + total + " payload bytes");
+			int n = Math.min(len, mRecvLimit - mRecvPos);
+			dest.put(mRecvBuf, mRecvPos, n);
+			mRecvPos += n;
+			len -= n;
+		}
+	}
+	
+	/**
+	 * Consumes and discards len payload bytes, so that the stream stays in sync after a message is rejected.
+	 */
+	private void _skip(int len) throws IOException {
+		int total = len;
+		while ( len > 0 ) {
+			if ( !_fill(1) ) throw new IOException("Connection closed after " + (total - len) + " of " + total + " payload bytes");
+			int n = Math.min(len, mRecvLimit - mRecvPos);
+			mRecvPos += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Returns true if bytes of the next message have already been read from the connection, so that
+	 * there's no point waiting for it to become readable before reading the message.
+	 */
+	public boolean hasBufferedInput() {
+		return mRecvLimit > mRecvPos;
+	}
+
+	/**
+	 * Waits up to timeout msec. for the next message to start arriving, without reading any of it.
+	 * A server can use this to wait on an idle connection in short slices, doing other things in
+	 * between, without the risk of a timeout striking part way through a message.  Timeouts here
+	 * aren't counted in the handler's stats.
+	 * @param timeout Time to wait, in msec. (at least 1)
+	 * @return true if there are bytes to read, or the peer has closed (so that a read will report EOF).
+	 */
+	public boolean awaitInput(int timeout) throws IOException {
+		if ( mRecvLimit > mRecvPos ) return true;
+		mRecvPos = 0;
+		mRecvLimit = 0;
+		this.connection.setTimeout(Math.max(timeout, 1));
+		try {
+			long start = System.nanoTime();
+			int n = in.read(mRecvBuf, mRecvLimit, mRecvBuf.length - mRecvLimit);
+			mStats.read(n, System.nanoTime() - start);
+			if ( n > 0 ) mRecvLimit += n;
+			return true;
+		} catch (SocketTimeoutException e) {
+			return false;
+		} finally {
+			this.connection.setTimeout(this.timeout);
 		}
+	}
+
+	@Override
+	public byte[] readMessageAsBytes() throws IOException {
+		int length = _readLength();
+		byte[] response = new byte[length];
+		_readFully(response, 0, length);
 		return response;
 	}
 	
+	/**
+	 * Short messages are decoded directly from the receive buffer, without an intermediate byte[].
+	 */
 	@Override
 	public String readMessageAsString() throws IOException {
-		byte[] buf = readMessageAsBytes();
-		return new String(buf);
+		int length = _readLength();
+		if ( length <= mRecvBuf.length ) {
+			_fillPayload(length);
+			String result = new String(mRecvBuf, mRecvPos, length, "UTF-8");
+			mRecvPos += length;
+			return result;
+		}
+		byte[] buf = new byte[length];
+		_readFully(buf, 0, length);
+		return new String(buf, "UTF-8");
 	}
 
 	@Override
 	public int readMessageAsInt() throws IOException {
-		byte[] buf = readMessageAsBytes();
-		return byteToInt(buf);
+		int length = _readLength();
+		if ( length != 4 ) {
+			// consume the message so the stream stays in sync, then complain
+			_skip(length);
+			throw new IOException("Expected a 4 byte int message but got " + length + " bytes");
+		}
+		_fillPayload(4);
+		int value = byteToInt(mRecvBuf, mRecvPos);
+		mRecvPos += 4;
+		return value;
+	}
+	
+	/**
+	 * Heap buffers are filled straight from the socket, exactly as the byte[] returned by
+	 * readMessageAsBytes() would be, but without allocating it.
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dest) throws IOException {
+		int length = _readLength();
+		if ( length > dest.remaining() ) {
+			_skip(length);
+			throw new IOException("Message of " + length + " bytes doesn't fit in the " + dest.remaining() + " bytes remaining in the buffer");
+		}
+		if ( dest.hasArray() ) {
+			_readFully(dest.array(), dest.arrayOffset() + dest.position(), length);
+			dest.position(dest.position() + length);
+		} else {
+			_readFully(dest, length);
+		}
+		return length;
+	}
+	
+	@Override
+	public ByteBuffer readMessageAsDirectBuffer() throws IOException {
+		int length = _readLength();
+		_readFully(_directBuffer(length), length);
+		return _directView(length);
+	}
+	
+	//--------------------------------------------------------------------------------------
+	// streaming routines
+	//   These let a message be produced or consumed a piece at a time, so its size isn't
+	//   limited by memory.  The max read length doesn't apply to streamed reads, since the
+	//   message is never held in memory all at once.
+	//--------------------------------------------------------------------------------------
+	
+	/**
+	 * The payload is accumulated in the send buffer, which is written whenever it fills; writes at least
+	 * as large as the buffer go straight to the socket.  The length goes out with the first piece of payload.
+	 * <p>
+	 * A message without a declared length (length -1) needs version 2 frames: each time the send buffer
+	 * fills, or flush() is called, what it holds is sent as a frame flagged as continued, and closing the
+	 * stream sends the last frame.
+	 */
+	@Override
+	public OutputStream openMessageOutputStream(int length) throws IOException {
+		if ( length < -1 ) throw new IOException("Invalid message length " + length);
+		synchronized(mSendLock) {
+			if ( length < 0 && mWriteVersion < 2 ) throw new IOException("A message without a declared length needs version 2 frames");
+			_checkCanSend();
+			_flushPending();
+			return new MessageOutputStream(length);
+		}
 	}
 	
+	/**
+	 * Returns openMessageOutputStream(length) as a channel.  The adapter copies each write through
+	 * a small intermediate array, so for the fewest copies write to the stream itself.
+	 */
 	@Override
-	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
-		byte[] buf = readMessageAsBytes();
-		String sourceStr = new String(buf);
-		return new JSONArray(sourceStr); 
+	public WritableByteChannel openMessageChannel(int length) throws IOException {
+		return Channels.newChannel(openMessageOutputStream(length));
 	}
 	
+	/**
+	 * A message sent without a declared length arrives as a series of frames, all but the last flagged
+	 * as continued.  The stream reads through them as if they were one payload.
+	 */
 	@Override
-	public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
-		byte[] buf = readMessageAsBytes();
-		String sourceStr = new String(buf);
-		return new JSONObject(sourceStr); 
+	public MessageInputStream openMessageInputStream() throws IOException {
+		_beginRead();
+		int length = _readHeader(Integer.MAX_VALUE);
+		return new BoundedMessageInputStream(length, (mLastFlags & V2_FLAG_CONTINUED) != 0);
+	}
+	
+	private class MessageOutputStream extends OutputStream {
+		private int mLength;         // declared length
+		private int mRemaining;      // payload bytes not yet written by the caller
+		private int mBuffered;       // bytes of mSendBuf waiting to be written to the socket
+		private boolean mDeclared;   // false if the message is being sent as continuation frames
+		private boolean mClosed;
+		
+		MessageOutputStream(int length) {
+			mOutputStreamOpen = true;
+			mDeclared = length >= 0;
+			mLength = length;
+			if ( mDeclared ) {
+				mRemaining = length;
+				mBuffered = _encodeHeader(TYPE_BYTES, 0, length);
+				System.arraycopy(mHeader, 0, mSendBuf, 0, mBuffered);
+			} else {
+				// leave room in front of the payload for the header of the frame it will go out in
+				mRemaining = Integer.MAX_VALUE;
+				mBuffered = MAX_HEADER_LENGTH;
+			}
+			mClosed = false;
+		}
+		
+		private void _check(int len) throws IOException {
+			if ( mClosed ) throw new IOException("Message output stream is closed");
+			if ( len > mRemaining ) throw new IOException("Write of " + len + " bytes exceeds the declared message length; " + mRemaining + " bytes remain");
+		}
+		
+		private void _writeBuffered() throws IOException {
+			if ( !mDeclared ) {
+				_writeFrame(true);
+				return;
+			}
+			if ( mBuffered == 0 ) return;
+			_write(mSendBuf, 0, mBuffered);
+			mBuffered = 0;
+		}
+		
+		/**
+		 * Sends the buffered payload of a message without a declared length as one frame, with its header
+		 * written into the space left in front of it.  Empty frames are sent only to end the message.
+		 */
+		private void _writeFrame(boolean continued) throws IOException {
+			int length = mBuffered - MAX_HEADER_LENGTH;
+			if ( length == 0 && continued ) return;
+			int headerLength = _encodeHeader(TYPE_BYTES, continued ? V2_FLAG_CONTINUED : 0, length);
+			int start = MAX_HEADER_LENGTH - headerLength;
+			System.arraycopy(mHeader, 0, mSendBuf, start, headerLength);
+			_write(mSendBuf, start, headerLength + length);
+			mStats.frameOut(length);
+			mBuffered = MAX_HEADER_LENGTH;
+		}
+		
+		@Override
+		public void write(int b) throws IOException {
+			_check(1);
+			if ( mBuffered == mSendBuf.length ) _writeBuffered();
+			mSendBuf[mBuffered++] = (byte)b;
+			mRemaining--;
+		}
+		
+		@Override
+		public void write(byte[] b, int off, int len) throws IOException {
+			_check(len);
+			if ( !mDeclared ) {
+				while ( len > 0 ) {
+					if ( mBuffered == mSendBuf.length ) _writeFrame(true);
+					int n = Math.min(len, mSendBuf.length - mBuffered);
+					System.arraycopy(b, off, mSendBuf, mBuffered, n);
+					mBuffered += n;
+					off += n;
+					len -= n;
+				}
+				return;
+			}
+			mRemaining -= len;
+			int n = Math.min(len, mSendBuf.length - mBuffered);
+			System.arraycopy(b, off, mSendBuf, mBuffered, n);
+			mBuffered += n;
+			off += n;
+			len -= n;
+			if ( len == 0 ) return;
+			_writeBuffered();
+			if ( len >= mSendBuf.length ) {
+				_write(b, off, len);
+			} else {
+				System.arraycopy(b, off, mSendBuf, 0, len);
+				mBuffered = len;
+			}
+		}
+		
+		/**
+		 * Writes any buffered payload to the socket.
+		 */
+		@Override
+		public void flush() throws IOException {
+			if ( mClosed ) return;
+			_writeBuffered();
+		}
+		
+		@Override
+		public void close() throws IOException {
+			if ( mClosed ) return;
+			mClosed = true;
+			mOutputStreamOpen = false;
+			if ( mDeclared ) _writeBuffered();
+			else _writeFrame(false);
+			if ( mDeclared && mRemaining > 0 ) throw new IOException("Message output stream closed with " + mRemaining + " of its declared bytes unwritten");
+			if ( mDeclared ) mStats.frameOut(mLength);
+			mMessagesSent++;
+		}
+	}
+	
+	private class BoundedMessageInputStream extends MessageInputStream {
+		private int mLength;         // of the current frame
+		private int mRemaining;      // in the current frame
+		private boolean mContinued;  // is there another frame after this one?
+		private boolean mSplit;      // was the message sent as continuation frames?
+		private boolean mClosed;
+		
+		BoundedMessageInputStream(int length, boolean continued) {
+			mInputStreamOpen = true;
+			mLength = length;
+			mRemaining = length;
+			mContinued = continued;
+			mSplit = continued;
+			mClosed = false;
+		}
+		
+		@Override
+		public int length() {
+			return mSplit ? -1 : mLength;
+		}
+		
+		@Override
+		public int remaining() {
+			return mContinued ? -1 : mRemaining;
+		}
+		
+		private IOException _truncated() {
+			return new IOException("Connection closed after " + (mLength - mRemaining) + " of " + mLength + " payload bytes");
+		}
+		
+		/**
+		 * Moves on to the next frame when the current one is used up and more follow.
+		 * @return false at the end of the message
+		 */
+		private boolean _more() throws IOException {
+			while ( mRemaining == 0 ) {
+				if ( !mContinued ) return false;
+				try {
+					mLength = mRemaining = _readHeader(Integer.MAX_VALUE);
+				} catch (EOFException e) {
+					throw new IOException("Connection closed between the frames of a message");
+				}
+				mContinued = (mLastFlags & V2_FLAG_CONTINUED) != 0;
+			}
+			return true;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			if ( mClosed ) throw new IOException("Message input stream is closed");
+			if ( !_more() ) return -1;
+			if ( !_fill(1) ) throw _truncated();
+			mRemaining--;
+			return mRecvBuf[mRecvPos++] & 0xff;
+		}
+		
+		/**
+		 * Bytes already in the receive buffer are returned first; reads at least as large as the
+		 * buffer go straight from the socket into b.
+		 */
+		@Override
+		public int read(byte[] b, int off, int len) throws IOException {
+			if ( mClosed ) throw new IOException("Message input stream is closed");
+			if ( len == 0 ) return 0;
+			if ( !_more() ) return -1;
+			len = Math.min(len, mRemaining);
+			int n;
+			if ( mRecvLimit == mRecvPos && len >= mRecvBuf.length ) {
+				n = _read(b, off, len);
+				if ( n < 0 ) throw _truncated();
+			} else {
+				if ( !_fill(1) ) throw _truncated();
+				n = Math.min(len, mRecvLimit - mRecvPos);
+				System.arraycopy(mRecvBuf, mRecvPos, b, off, n);
+				mRecvPos += n;
+			}
+			mRemaining -= n;
+			return n;
+		}
+		
+		@Override
+		public int available() {
+			return Math.min(mRemaining, mRecvLimit - mRecvPos);
+		}
+		
+		/**
+		 * Discards whatever part of the message hasn't been read.
+		 */
+		@Override
+		public void close() throws IOException {
+			if ( mClosed ) return;
+			mClosed = true;
+			try {
+				do {
+					_skip(mRemaining);
+					mRemaining = 0;
+				} while ( _more() );
+			} finally {
+				mRemaining = 0;
+				mInputStreamOpen = false;
+			}
+		}
 	}
 }
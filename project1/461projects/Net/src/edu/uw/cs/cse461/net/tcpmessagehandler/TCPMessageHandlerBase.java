@@ -0,0 +1,384 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.nio.channels.WritableByteChannel;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+
+/**
+ * Code shared by the TCPMessageHandlerInterface implementations.  What goes over the wire is
+ * always a length-prefixed byte[], so all the typed send and read routines are defined here
+ * in terms of sendMessage(byte[]) and readMessageAsBytes(), which subclasses implement over
+ * whatever kind of connection they wrap.  Subclasses can override the typed routines when they
+ * can do the conversion more cheaply (e.g., decoding a String straight out of a receive buffer).
+ */
+public abstract class TCPMessageHandlerBase implements TCPMessageHandlerInterface {
+
+	/**
+	 * Used as the maximum message length when there is no tcpmessagehandler.maxmsglength config file entry.
+	 */
+	public static final int DEFAULT_MAX_READ_LENGTH = 2097148;
+
+	protected int maxReadLength;
+
+	// traffic counters; see TCPMessageHandlerStats
+	protected final TCPMessageHandlerStats mStats = new TCPMessageHandlerStats();
+
+	// pooled buffer backing the view returned by readMessageAsDirectBuffer(); held until the handler is closed
+	private ByteBuffer mDirectBuf;
+	private ByteBuffer mDirectView;
+
+	protected TCPMessageHandlerBase() {
+		this.maxReadLength = _configuredMaxReadLength();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// helper routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * We need an "on the wire" format for a binary integer.
+	 * This method encodes into that format, which is little endian
+	 * (low order bits of int are in element [0] of byte array, etc.).
+	 * @param i
+	 * @return A byte[4] encoding the integer argument.
+	 */
+	protected static byte[] intToByte(int i) {
+		ByteBuffer b = ByteBuffer.allocate(4);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		b.putInt(i);
+		byte buf[] = b.array();
+		return buf;
+	}
+
+	/**
+	 * We need an "on the wire" format for a binary integer.
+	 * This method decodes from that format, which is little endian
+	 * (low order bits of int are in element [0] of byte array, etc.).
+	 * @param buf
+	 * @return
+	 */
+	protected static int byteToInt(byte buf[]) {
+		ByteBuffer b = ByteBuffer.wrap(buf);
+		b.order(ByteOrder.LITTLE_ENDIAN);
+		int ans = b.getInt();
+		return ans;
+	}
+
+	/**
+	 * Same decoding as byteToInt(byte[]), but reads the 4 bytes starting at buf[offset]
+	 * without wrapping or copying the array.
+	 */
+	protected static int byteToInt(byte buf[], int offset) {
+		return (buf[offset] & 0xff) |
+			   ((buf[offset+1] & 0xff) << 8) |
+			   ((buf[offset+2] & 0xff) << 16) |
+			   ((buf[offset+3] & 0xff) << 24);
+	}
+
+	/**
+	 * Returns the tcpmessagehandler.maxmsglength config file value, or DEFAULT_MAX_READ_LENGTH
+	 * if there isn't one (or there's no NetBase running).
+	 */
+	private static int _configuredMaxReadLength() {
+		return _configInt("tcpmessagehandler.maxmsglength", DEFAULT_MAX_READ_LENGTH);
+	}
+
+	/**
+	 * Returns the non-negative integer config file value for key, or defaultVal if there isn't one
+	 * (or there's no NetBase running, as when a handler is used outside the infrastructure).
+	 */
+	protected static int _configInt(String key, int defaultVal) {
+		NetBase netBase = NetBase.theNetBase();
+		if ( netBase == null ) return defaultVal;
+		return netBase.config().getAsInt(key, defaultVal, 0);
+	}
+
+	/**
+	 * Sets the maximum allowed size for which decoding of a message will be attempted.
+	 * @return The previous setting of the maximum allowed message length.
+	 */
+	@Override
+	public int setMaxReadLength(int maxLen) {
+		int old_maxReadLength = this.maxReadLength;
+		this.maxReadLength = maxLen;
+		return old_maxReadLength;
+	}
+
+	/**
+	 * Returns the current setting for the maximum read length
+	 */
+	@Override
+	public int getMaxReadLength() {
+		return this.maxReadLength;
+	}
+
+	/**
+	 * Returns this handler's traffic counters.  Owners of handlers typically add them to an
+	 * aggregate for the whole service when the handler is closed.
+	 */
+	public TCPMessageHandlerStats getStats() {
+		return mStats;
+	}
+
+	/**
+	 * Makes sure mDirectBuf can hold length bytes, trading it in for a bigger pooled buffer if not,
+	 * and returns it cleared.
+	 * @throws IOException length is more than the pool's largest buffer (DirectBufferPool.MAX_CAPACITY).
+	 */
+	protected ByteBuffer _directBuffer(int length) throws IOException {
+		if ( length > DirectBufferPool.MAX_CAPACITY )
+			throw new IOException("Message length " + length + " is too large for a direct buffer (max " + DirectBufferPool.MAX_CAPACITY + ")");
+		if ( mDirectBuf == null || mDirectBuf.capacity() < length ) {
+			DirectBufferPool.theDirectBufferPool().release(mDirectBuf);
+			mDirectBuf = DirectBufferPool.theDirectBufferPool().acquire(length);
+			mDirectView = mDirectBuf.asReadOnlyBuffer();
+		}
+		mDirectBuf.clear();
+		return mDirectBuf;
+	}
+
+	/**
+	 * Returns the read-only view of the first length bytes of mDirectBuf.  The view is created
+	 * once per pooled buffer, so handing it out doesn't allocate.
+	 */
+	protected ByteBuffer _directView(int length) {
+		mDirectView.limit(length);
+		mDirectView.position(0);
+		return mDirectView;
+	}
+
+	/**
+	 * Returns the direct buffer, if any, to the pool.  Subclasses call this when they're closed.
+	 */
+	protected void _releaseDirectBuffer() {
+		DirectBufferPool.theDirectBufferPool().release(mDirectBuf);
+		mDirectBuf = null;
+		mDirectView = null;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// send routines
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Uses str.getBytes() for conversion.
+	 */
+	@Override
+	public void sendMessage(String str) throws IOException {
+		byte[] buf = str.getBytes("UTF-8");
+		_sendTyped(buf, TYPE_STRING);
+	}
+
+	/**
+	 * We convert the int to the one the wire format and send as bytes.
+	 */
+	@Override
+	public void sendMessage(int value) throws IOException{
+		byte[] buf = intToByte(value);
+		_sendTyped(buf, TYPE_INT);
+	}
+
+	/**
+	 * Sends JSON string representation of the JSONArray.
+	 */
+	@Override
+	public void sendMessage(JSONArray jsArray) throws IOException {
+		byte[] buf = jsArray.toString().getBytes("UTF-8");
+		_sendTyped(buf, TYPE_JSON_ARRAY);
+	}
+
+	/**
+	 * Sends JSON string representation of the JSONObject.
+	 */
+	@Override
+	public void sendMessage(JSONObject jsObject) throws IOException {
+		byte[] buf = jsObject.toString().getBytes("UTF-8");
+		_sendTyped(buf, TYPE_JSON_OBJECT);
+	}
+
+	/**
+	 * Sends buf, which a typed send routine produced from a value of the given type (one of the
+	 * TYPE_ constants).  Subclasses whose wire format can carry the type override this; by default
+	 * the type is dropped and buf is sent with sendMessage(byte[]).
+	 */
+	protected void _sendTyped(byte[] buf, int type) throws IOException {
+		sendMessage(buf);
+	}
+
+	/**
+	 * Copies the buffer's contents to a byte[].  Subclasses override this when they can hand
+	 * the buffer to the connection directly.
+	 */
+	@Override
+	public void sendMessage(ByteBuffer buf) throws IOException {
+		byte[] bytes = new byte[buf.remaining()];
+		buf.get(bytes);
+		sendMessage(bytes);
+	}
+
+	/**
+	 * Collects the payload in memory and sends it with sendMessage(byte[]) when the stream is closed.
+	 * Subclasses override this when they can write the payload to the connection as it's produced.
+	 * A length of -1 is accepted, since the whole payload is in hand before anything is sent.
+	 */
+	@Override
+	public OutputStream openMessageOutputStream(int declaredLength) throws IOException {
+		if ( declaredLength < -1 ) throw new IOException("Invalid message length " + declaredLength);
+		final int length = declaredLength < 0 ? Integer.MAX_VALUE : declaredLength;
+		final boolean declared = declaredLength >= 0;
+		return new OutputStream() {
+			private ByteArrayOutputStream mPayload = new ByteArrayOutputStream(declared ? length : 256);
+			private boolean mClosed = false;
+			@Override
+			public void write(int b) throws IOException {
+				if ( mPayload.size() >= length ) throw new IOException("Write exceeds the declared message length of " + length);
+				mPayload.write(b);
+			}
+			@Override
+			public void write(byte[] b, int off, int len) throws IOException {
+				if ( len > length - mPayload.size() ) throw new IOException("Write exceeds the declared message length of " + length);
+				mPayload.write(b, off, len);
+			}
+			@Override
+			public void close() throws IOException {
+				if ( mClosed ) return;
+				mClosed = true;
+				if ( declared && mPayload.size() != length ) throw new IOException("Message stream closed after " + mPayload.size() + " of its declared " + length + " bytes");
+				sendMessage(mPayload.toByteArray());
+			}
+		};
+	}
+
+	@Override
+	public WritableByteChannel openMessageChannel(int length) throws IOException {
+		return Channels.newChannel(openMessageOutputStream(length));
+	}
+
+	//--------------------------------------------------------------------------------------
+	// read routines
+	//   All of these invert any encoding done by the corresponding send method.
+	//--------------------------------------------------------------------------------------
+
+	@Override
+	public String readMessageAsString() throws IOException {
+		byte[] buf = readMessageAsBytes();
+		return new String(buf, "UTF-8");
+	}
+
+	@Override
+	public int readMessageAsInt() throws IOException {
+		byte[] buf = readMessageAsBytes();
+		if ( buf.length != 4 ) throw new IOException("Expected a 4 byte int message but got " + buf.length + " bytes");
+		return byteToInt(buf, 0);
+	}
+
+	/**
+	 * Reads the message as a byte[] and copies it into dest.  Subclasses override this when
+	 * they can read into dest directly.
+	 */
+	@Override
+	public int readMessageInto(ByteBuffer dest) throws IOException {
+		byte[] buf = readMessageAsBytes();
+		if ( buf.length > dest.remaining() )
+			throw new IOException("Message of " + buf.length + " bytes doesn't fit in the " + dest.remaining() + " bytes remaining in the buffer");
+		dest.put(buf);
+		return buf.length;
+	}
+
+	/**
+	 * Reads the message as a byte[] and copies it into the pooled buffer.  Subclasses override
+	 * this when they can fill the pooled buffer directly.
+	 */
+	@Override
+	public ByteBuffer readMessageAsDirectBuffer() throws IOException {
+		byte[] bytes = readMessageAsBytes();
+		_directBuffer(bytes.length).put(bytes);
+		return _directView(bytes.length);
+	}
+
+	/**
+	 * Reads the whole message with readMessageAsBytes() and streams it from memory.  Subclasses
+	 * override this when they can read the payload from the connection as it's consumed.
+	 */
+	@Override
+	public MessageInputStream openMessageInputStream() throws IOException {
+		final byte[] buf = readMessageAsBytes();
+		return new MessageInputStream() {
+			private int mPos = 0;
+			@Override
+			public int length() {
+				return buf.length;
+			}
+			@Override
+			public int remaining() {
+				return buf.length - mPos;
+			}
+			@Override
+			public int read() {
+				return mPos < buf.length ? buf[mPos++] & 0xff : -1;
+			}
+			@Override
+			public int read(byte[] b, int off, int len) {
+				if ( len == 0 ) return 0;
+				if ( mPos >= buf.length ) return -1;
+				int n = Math.min(len, buf.length - mPos);
+				System.arraycopy(buf, mPos, b, off, n);
+				mPos += n;
+				return n;
+			}
+			@Override
+			public int available() {
+				return buf.length - mPos;
+			}
+		};
+	}
+
+	/**
+	 * Subclasses that know the type of the message just read override this.
+	 */
+	@Override
+	public int lastMessageType() {
+		return TYPE_UNKNOWN;
+	}
+
+	/**
+	 * Reads the message as a byte[] and converts it according to lastMessageType().
+	 */
+	@Override
+	public Object readMessage() throws IOException, JSONException {
+		byte[] buf = readMessageAsBytes();
+		switch ( lastMessageType() ) {
+		case TYPE_STRING:
+			return new String(buf, "UTF-8");
+		case TYPE_INT:
+			if ( buf.length != 4 ) throw new IOException("Expected a 4 byte int message but got " + buf.length + " bytes");
+			return byteToInt(buf, 0);
+		case TYPE_JSON_OBJECT:
+			return new JSONObject(new String(buf, "UTF-8"));
+		case TYPE_JSON_ARRAY:
+			return new JSONArray(new String(buf, "UTF-8"));
+		default:
+			return buf;
+		}
+	}
+
+	@Override
+	public JSONArray readMessageAsJSONArray() throws IOException, JSONException {
+		return new JSONArray(readMessageAsString());
+	}
+
+	@Override
+	public JSONObject readMessageAsJSONObject() throws IOException, JSONException {
+		return new JSONObject(readMessageAsString());
+	}
+}
@@ -1,7 +1,11 @@
 package edu.uw.cs.cse461.net.tcpmessagehandler;
 
 import java.io.IOException;
+import java.io.OutputStream;
 import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.channels.WritableByteChannel;
+import java.util.List;
 
 import org.json.JSONArray;
 import org.json.JSONException;
@@ -9,6 +13,20 @@ import org.json.JSONObject;
 
 public interface TCPMessageHandlerInterface {
 	
+	//--------------------------------------------------------------------------------------
+	// message types
+	//   Version 2 frames (see TCPMessageHandler.setFrameVersion()) carry a tag saying which
+	//   send routine produced the message.  Version 1 frames don't, so messages read from
+	//   them are TYPE_UNKNOWN.
+	//--------------------------------------------------------------------------------------
+	
+	public static final int TYPE_BYTES = 0;
+	public static final int TYPE_STRING = 1;
+	public static final int TYPE_INT = 2;
+	public static final int TYPE_JSON_OBJECT = 3;
+	public static final int TYPE_JSON_ARRAY = 4;
+	public static final int TYPE_UNKNOWN = -1;
+	
 	//--------------------------------------------------------------------------------------
 	// send routines
 	//   What is actually sent is always byte[].  These routines must translate into
@@ -21,6 +39,45 @@ public interface TCPMessageHandlerInterface {
 	public void sendMessage(JSONArray jsArray) throws IOException;
 	public void sendMessage(JSONObject jsObject) throws IOException;
 	
+	/**
+	 * Sends the bytes between buf's position and limit as one message, without first copying them
+	 * into a byte[].  On return buf's position equals its limit.
+	 */
+	public void sendMessage(ByteBuffer buf) throws IOException;
+	
+	/**
+	 * Sends the messages in as few writes as possible, rather than one write per message.
+	 */
+	public void sendMessages(List<byte[]> msgs) throws IOException;
+	
+	/**
+	 * After cork(), sent messages are held by the handler rather than written to the connection,
+	 * until uncork() is called.  Use this to put several small messages that are sent back to back
+	 * (e.g., a header and the message it introduces) into a single write.
+	 */
+	public void cork();
+	
+	/**
+	 * Writes any messages held since cork() and goes back to writing each message as it's sent.
+	 */
+	public void uncork() throws IOException;
+	
+	/**
+	 * Begins sending a message whose length is declared up front, returning a stream to write its payload to.
+	 * The message is complete when exactly length bytes have been written and the stream is closed.
+	 * Writing more than length bytes, or closing the stream after fewer, throws an IOException and leaves
+	 * the connection unusable.  No other message can be sent while the stream is open.
+	 * <p>
+	 * A length of -1 means the length isn't known in advance; the message ends when the stream is closed.
+	 * Implementations that can't send such a message without buffering all of it may refuse with an IOException.
+	 */
+	public OutputStream openMessageOutputStream(int length) throws IOException;
+	
+	/**
+	 * Same as openMessageOutputStream(), but as a channel.
+	 */
+	public WritableByteChannel openMessageChannel(int length) throws IOException;
+	
 	//--------------------------------------------------------------------------------------
 	// read routines
 	//   Data comes off the network as bytes.  The various read routines
@@ -35,6 +92,38 @@ public interface TCPMessageHandlerInterface {
 	public JSONArray readMessageAsJSONArray() throws IOException, JSONException;
 	public JSONObject readMessageAsJSONObject() throws IOException, JSONException;
 	
+	/**
+	 * Reads the next message and returns it as the type it was sent as: a String, Integer, JSONObject,
+	 * JSONArray or byte[].  Messages whose type isn't known (see lastMessageType()) are returned as byte[].
+	 */
+	public Object readMessage() throws IOException, JSONException;
+	
+	/**
+	 * Returns the type tag (one of the TYPE_ constants) of the message most recently read,
+	 * or TYPE_UNKNOWN if it arrived in a frame that doesn't carry one.
+	 */
+	public int lastMessageType();
+	
+	/**
+	 * Reads the next message into dest, starting at its position, which is advanced past the message.
+	 * If the message is longer than dest.remaining() it is consumed and discarded, and an IOException is thrown.
+	 * @return The length of the message.
+	 */
+	public int readMessageInto(ByteBuffer dest) throws IOException;
+	
+	/**
+	 * Reads the next message into a direct buffer drawn from a pool and returns a read-only view of it,
+	 * positioned at the start of the message.  The view is valid only until the next read routine is
+	 * called on this handler, or the handler is closed; copy out anything that must live longer.
+	 */
+	public ByteBuffer readMessageAsDirectBuffer() throws IOException;
+	
+	/**
+	 * Reads the length of the next message and returns a stream over its payload, which is read from the
+	 * connection only as the caller consumes it.  No other message can be read until the stream is closed.
+	 */
+	public MessageInputStream openMessageInputStream() throws IOException;
+	
 	public int setMaxReadLength(int maxLen);  // don't even try to read a message claiming to be longer than the arg value
 	public int getMaxReadLength();            // returns current value of max read length
 
@@ -0,0 +1,398 @@
+package edu.uw.cs.cse461.net.tcpmessagehandler;
+
+import java.util.LinkedList;
+import java.util.ListIterator;
+
+/**
+ * Counters describing what a connection has done: frames and bytes in each direction, the reads and
+ * writes made to the socket and how long they blocked, the largest frames, read timeouts and compression,
+ * along with histograms of frame sizes and of the time each socket call blocked.
+ * <p>
+ * Each handler owns one, which it updates as it goes with plain (unsynchronized) arithmetic on
+ * preallocated fields, so keeping the counts costs a few adds and two System.nanoTime() calls per
+ * socket call.  The reading thread and the writing thread of a handler update disjoint fields.
+ * <p>
+ * A service keeps another one as an aggregate, adding each connection's counters to it with add()
+ * when the connection closes, and prints it from dumpState().  The aggregate also remembers the peers
+ * whose connections spent the most time blocked per frame.
+ * <p>
+ * Histogram bucket 0 counts zeros, and bucket i counts values v with 2^(i-1) <= v < 2^i.
+ */
+public class TCPMessageHandlerStats {
+
+	public static final int NUM_BUCKETS = 32;
+	private static final int MAX_SLOW_PEERS = 5;
+
+	private long mFramesIn;
+	private long mBytesIn;
+	private long mReadCalls;
+	private long mReadNanos;
+	private long mLargestFrameIn;
+	private long mTimeouts;
+	private final long[] mFrameSizesIn = new long[NUM_BUCKETS];
+	private final long[] mReadWaitMicros = new long[NUM_BUCKETS];
+
+	private long mFramesOut;
+	private long mPayloadOut;          // frame payloads, counted when they're sent (perhaps into a buffer)
+	private long mBytesOut;
+	private long mWriteCalls;
+	private long mWriteNanos;
+	private long mLargestFrameOut;
+	private final long[] mFrameSizesOut = new long[NUM_BUCKETS];
+	private final long[] mWriteWaitMicros = new long[NUM_BUCKETS];
+
+	private long mFramesCompressed;
+	private long mFramesUncompressed;      // sent while compression was on, but too short or didn't shrink
+	private long mBytesBeforeCompression;
+	private long mBytesAfterCompression;
+	private long mCompressNanos;
+	private long mFramesInflated;
+	private long mInflateNanos;
+
+	// aggregates only
+	private long mConnections;
+	private LinkedList<SlowPeer> mSlowPeers;
+
+	private static class SlowPeer {
+		String peer;
+		long nanosPerFrame;
+		SlowPeer(String peer, long nanosPerFrame) {
+			this.peer = peer;
+			this.nanosPerFrame = nanosPerFrame;
+		}
+	}
+
+	/**
+	 * Returns the histogram bucket for v.
+	 */
+	private static int _bucket(long v) {
+		if ( v <= 0 ) return 0;
+		return Math.min(64 - Long.numberOfLeadingZeros(v), NUM_BUCKETS - 1);
+	}
+
+	//--------------------------------------------------------------------------------------
+	// recording, by the handler
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Records a read from the socket that returned n bytes (-1 at EOF) after blocking for nanos.
+	 */
+	void read(int n, long nanos) {
+		mReadCalls++;
+		mReadNanos += nanos;
+		mReadWaitMicros[_bucket(nanos / 1000)]++;
+		if ( n > 0 ) mBytesIn += n;
+	}
+
+	/**
+	 * Records a write of n bytes to the socket that blocked for nanos.
+	 */
+	void write(int n, long nanos) {
+		mWriteCalls++;
+		mWriteNanos += nanos;
+		mWriteWaitMicros[_bucket(nanos / 1000)]++;
+		mBytesOut += n;
+	}
+
+	/**
+	 * Records time spent waiting for a non-blocking channel to become readable (or, if reading
+	 * is false, writable).  Non-blocking reads and writes are recorded with a wait of 0, and
+	 * the waits in between them with this.
+	 */
+	void waited(boolean reading, long nanos) {
+		if ( reading ) {
+			mReadNanos += nanos;
+			mReadWaitMicros[_bucket(nanos / 1000)]++;
+		} else {
+			mWriteNanos += nanos;
+			mWriteWaitMicros[_bucket(nanos / 1000)]++;
+		}
+	}
+
+	/**
+	 * Records a read that timed out after blocking for nanos.
+	 */
+	void timeout(long nanos) {
+		mTimeouts++;
+		mReadCalls++;
+		mReadNanos += nanos;
+		mReadWaitMicros[_bucket(nanos / 1000)]++;
+	}
+
+	/**
+	 * Records the arrival of a frame with a payload of length bytes (as sent, i.e., compressed if it was).
+	 */
+	void frameIn(int length) {
+		mFramesIn++;
+		mFrameSizesIn[_bucket(length)]++;
+		if ( length > mLargestFrameIn ) mLargestFrameIn = length;
+	}
+
+	/**
+	 * Records the sending of a frame with a payload of length bytes.
+	 */
+	void frameOut(int length) {
+		mFramesOut++;
+		mPayloadOut += length;
+		mFrameSizesOut[_bucket(length)]++;
+		if ( length > mLargestFrameOut ) mLargestFrameOut = length;
+	}
+
+	/**
+	 * Records an attempt to compress length bytes, which took nanos.
+	 * @param compressed The compressed length, or 0 if compressing didn't shrink it and it's sent as it was.
+	 */
+	void deflated(int length, int compressed, long nanos) {
+		mCompressNanos += nanos;
+		mBytesBeforeCompression += length;
+		if ( compressed == 0 ) {
+			mBytesAfterCompression += length;
+			return;
+		}
+		mFramesCompressed++;
+		mBytesAfterCompression += compressed;
+	}
+
+	/**
+	 * Records a frame sent uncompressed while compression was on.
+	 */
+	void sentUncompressed() {
+		mFramesUncompressed++;
+	}
+
+	/**
+	 * Records the arrival of a compressed frame, which took nanos to inflate.
+	 */
+	void inflated(long nanos) {
+		mFramesInflated++;
+		mInflateNanos += nanos;
+	}
+
+	//--------------------------------------------------------------------------------------
+	// aggregation
+	//--------------------------------------------------------------------------------------
+
+	/**
+	 * Adds the counters of a closed connection to this aggregate.
+	 * @param peer Name of the connection's peer (e.g., its address), or null
+	 */
+	public synchronized void add(TCPMessageHandlerStats other, String peer) {
+		mConnections++;
+		mFramesIn += other.mFramesIn;
+		mBytesIn += other.mBytesIn;
+		mReadCalls += other.mReadCalls;
+		mReadNanos += other.mReadNanos;
+		mLargestFrameIn = Math.max(mLargestFrameIn, other.mLargestFrameIn);
+		mTimeouts += other.mTimeouts;
+		mFramesOut += other.mFramesOut;
+		mPayloadOut += other.mPayloadOut;
+		mBytesOut += other.mBytesOut;
+		mWriteCalls += other.mWriteCalls;
+		mWriteNanos += other.mWriteNanos;
+		mLargestFrameOut = Math.max(mLargestFrameOut, other.mLargestFrameOut);
+		mFramesCompressed += other.mFramesCompressed;
+		mFramesUncompressed += other.mFramesUncompressed;
+		mBytesBeforeCompression += other.mBytesBeforeCompression;
+		mBytesAfterCompression += other.mBytesAfterCompression;
+		mCompressNanos += other.mCompressNanos;
+		mFramesInflated += other.mFramesInflated;
+		mInflateNanos += other.mInflateNanos;
+		for ( int i=0; i<NUM_BUCKETS; i++ ) {
+			mFrameSizesIn[i] += other.mFrameSizesIn[i];
+			mReadWaitMicros[i] += other.mReadWaitMicros[i];
+			mFrameSizesOut[i] += other.mFrameSizesOut[i];
+			mWriteWaitMicros[i] += other.mWriteWaitMicros[i];
+		}
+
+		long frames = other.mFramesIn + other.mFramesOut;
+		if ( peer == null || frames == 0 ) return;
+		long nanosPerFrame = (other.mReadNanos + other.mWriteNanos) / frames;
+		if ( mSlowPeers == null ) mSlowPeers = new LinkedList<SlowPeer>();
+		ListIterator<SlowPeer> it = mSlowPeers.listIterator();
+		while ( it.hasNext() ) {
+			if ( it.next().nanosPerFrame < nanosPerFrame ) {
+				it.previous();
+				break;
+			}
+		}
+		it.add(new SlowPeer(peer, nanosPerFrame));
+		if ( mSlowPeers.size() > MAX_SLOW_PEERS ) mSlowPeers.removeLast();
+	}
+
+	//--------------------------------------------------------------------------------------
+	// reporting
+	//--------------------------------------------------------------------------------------
+
+	public long getFramesIn() {
+		return mFramesIn;
+	}
+
+	public long getFramesOut() {
+		return mFramesOut;
+	}
+
+	public long getBytesIn() {
+		return mBytesIn;
+	}
+
+	public long getBytesOut() {
+		return mBytesOut;
+	}
+
+	/**
+	 * Returns the total payload (compressed, if it was) of the frames sent.  Unlike getBytesOut() it
+	 * includes frames still waiting in a send buffer, and leaves out framing.
+	 */
+	public long getPayloadBytesOut() {
+		return mPayloadOut;
+	}
+
+	public long getReadCalls() {
+		return mReadCalls;
+	}
+
+	public long getWriteCalls() {
+		return mWriteCalls;
+	}
+
+	/**
+	 * Returns the total time spent blocked in reads (including reads that timed out), in nanoseconds.
+	 */
+	public long getReadNanos() {
+		return mReadNanos;
+	}
+
+	/**
+	 * Returns the total time spent blocked in writes, in nanoseconds.
+	 */
+	public long getWriteNanos() {
+		return mWriteNanos;
+	}
+
+	public long getLargestFrameIn() {
+		return mLargestFrameIn;
+	}
+
+	public long getLargestFrameOut() {
+		return mLargestFrameOut;
+	}
+
+	public long getTimeouts() {
+		return mTimeouts;
+	}
+
+	/**
+	 * Returns the number of frames sent compressed.
+	 */
+	public long getFramesCompressed() {
+		return mFramesCompressed;
+	}
+
+	/**
+	 * Returns the number of frames sent uncompressed while compression was on, because they were
+	 * shorter than tcpmessagehandler.compression.minlength or compressing didn't shrink them.
+	 */
+	public long getFramesSentUncompressed() {
+		return mFramesUncompressed;
+	}
+
+	/**
+	 * Returns the total length of the messages compression was attempted on.
+	 */
+	public long getBytesBeforeCompression() {
+		return mBytesBeforeCompression;
+	}
+
+	/**
+	 * Returns the number of bytes those messages occupied on the wire (not counting length words).
+	 */
+	public long getBytesAfterCompression() {
+		return mBytesAfterCompression;
+	}
+
+	/**
+	 * Returns the time spent compressing, in nanoseconds.
+	 */
+	public long getCompressNanos() {
+		return mCompressNanos;
+	}
+
+	/**
+	 * Returns the number of compressed frames received.
+	 */
+	public long getFramesInflated() {
+		return mFramesInflated;
+	}
+
+	/**
+	 * Returns the time spent decompressing, in nanoseconds.
+	 */
+	public long getInflateNanos() {
+		return mInflateNanos;
+	}
+
+	/**
+	 * Returns the number of connections added to this aggregate.
+	 */
+	public long getConnections() {
+		return mConnections;
+	}
+
+	/**
+	 * Returns a multi-line summary, suitable for dumpState().  Empty histogram buckets are omitted;
+	 * each bucket is labeled with the (exclusive) upper bound of the values it counts.
+	 */
+	@Override
+	public synchronized String toString() {
+		StringBuilder sb = new StringBuilder();
+		if ( mConnections > 0 ) sb.append("connections: ").append(mConnections).append("\n");
+		sb.append("frames in/out: ").append(mFramesIn).append(" / ").append(mFramesOut);
+		sb.append("   bytes in/out: ").append(mBytesIn).append(" / ").append(mBytesOut);
+		sb.append("   largest frame in/out: ").append(mLargestFrameIn).append(" / ").append(mLargestFrameOut).append("\n");
+		sb.append("reads: ").append(mReadCalls).append(" (blocked ").append(mReadNanos / 1000000).append(" msec, ");
+		sb.append(mTimeouts).append(" timeouts)   writes: ").append(mWriteCalls);
+		sb.append(" (blocked ").append(mWriteNanos / 1000000).append(" msec)\n");
+		if ( mBytesBeforeCompression > 0 || mFramesInflated > 0 ) {
+			sb.append("frames compressed/not/inflated: ").append(mFramesCompressed).append(" / ").append(mFramesUncompressed);
+			sb.append(" / ").append(mFramesInflated);
+			sb.append("   bytes before/after compression: ").append(mBytesBeforeCompression).append(" / ").append(mBytesAfterCompression);
+			sb.append("   deflate/inflate: ").append(mCompressNanos / 1000000).append(" / ").append(mInflateNanos / 1000000).append(" msec\n");
+		}
+		_appendHistogram(sb, "frame sizes in (bytes)", mFrameSizesIn);
+		_appendHistogram(sb, "frame sizes out (bytes)", mFrameSizesOut);
+		_appendHistogram(sb, "read waits (usec)", mReadWaitMicros);
+		_appendHistogram(sb, "write waits (usec)", mWriteWaitMicros);
+		if ( mSlowPeers != null ) {
+			sb.append("most time blocked per frame:");
+			for ( SlowPeer p : mSlowPeers ) sb.append("  ").append(p.peer).append(" ").append(p.nanosPerFrame / 1000).append(" usec");
+			sb.append("\n");
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Appends a line listing the histogram's non-empty buckets, if it has any.
+	 */
+	private static void _appendHistogram(StringBuilder sb, String name, long[] buckets) {
+		boolean empty = true;
+		for ( int i=0; i<NUM_BUCKETS; i++ ) {
+			if ( buckets[i] == 0 ) continue;
+			if ( empty ) sb.append(name).append(":");
+			empty = false;
+			sb.append("  <").append(_bound(i)).append(":").append(buckets[i]);
+		}
+		if ( !empty ) sb.append("\n");
+	}
+
+	/**
+	 * Returns the upper bound of bucket i in compact form (e.g., "1", "64", "2K", "16M").
+	 */
+	private static String _bound(int i) {
+		if ( i == NUM_BUCKETS - 1 ) return "inf";
+		long b = 1L << i;
+		if ( b >= (1 << 30) ) return (b >> 30) + "G";
+		if ( b >= (1 << 20) ) return (b >> 20) + "M";
+		if ( b >= (1 << 10) ) return (b >> 10) + "K";
+		return Long.toString(b);
+	}
+}
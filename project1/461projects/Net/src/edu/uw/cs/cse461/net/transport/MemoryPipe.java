@@ -0,0 +1,93 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+
+/**
+ * One direction of a MemoryPipeTransport connection: a fixed size ring buffer that one thread
+ * writes and another reads.  A writer blocks while the ring is full, and a reader while it's empty.
+ * <p>
+ * java.io.PipedInputStream isn't used because it polls once a second while waiting, and treats
+ * the pipe as broken whenever the thread that last wrote to it exits.
+ */
+class MemoryPipe {
+
+	private final byte[] mBuf;
+	private int mHead;               // next byte to read
+	private int mCount;              // bytes waiting to be read
+	private boolean mWriterClosed;   // reads return -1 once the ring is empty
+	private boolean mReaderClosed;   // writes fail, and reads by the (closed) reader fail
+
+	MemoryPipe(int capacity) {
+		mBuf = new byte[capacity];
+	}
+
+	synchronized void write(byte[] b, int off, int len) throws IOException {
+		while ( len > 0 ) {
+			while ( mCount == mBuf.length && !mReaderClosed && !mWriterClosed ) {
+				try {
+					wait();
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();     // keep it for whoever checks, e.g. RPCCallContext
+					throw new InterruptedIOException("Interrupted while writing");
+				}
+			}
+			if ( mWriterClosed ) throw new SocketException("Socket closed");
+			if ( mReaderClosed ) throw new SocketException("Broken pipe");
+			int tail = (mHead + mCount) % mBuf.length;
+			int n = Math.min(len, Math.min(mBuf.length - mCount, mBuf.length - tail));
+			System.arraycopy(b, off, mBuf, tail, n);
+			mCount += n;
+			off += n;
+			len -= n;
+			notifyAll();
+		}
+	}
+
+	/**
+	 * Returns as many bytes as are waiting, up to len, after waiting up to timeout msec (0 meaning
+	 * forever) for there to be some.
+	 * @return The number of bytes read, or -1 if the writer has closed and everything it wrote has been read.
+	 */
+	synchronized int read(byte[] b, int off, int len, int timeout) throws IOException {
+		if ( len == 0 ) return 0;
+		long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+		while ( mCount == 0 && !mWriterClosed && !mReaderClosed ) {
+			long wait = 0;
+			if ( deadline > 0 ) {
+				wait = deadline - System.currentTimeMillis();
+				if ( wait <= 0 ) throw new SocketTimeoutException("Read timed out");
+			}
+			try {
+				wait(wait);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while reading");
+			}
+		}
+		if ( mReaderClosed ) throw new SocketException("Socket closed");
+		if ( mCount == 0 ) return -1;
+		int n = Math.min(len, Math.min(mCount, mBuf.length - mHead));
+		System.arraycopy(mBuf, mHead, b, off, n);
+		mHead = (mHead + n) % mBuf.length;
+		mCount -= n;
+		notifyAll();
+		return n;
+	}
+
+	synchronized int available() {
+		return mCount;
+	}
+
+	synchronized void closeWriter() {
+		mWriterClosed = true;
+		notifyAll();
+	}
+
+	synchronized void closeReader() {
+		mReaderClosed = true;
+		notifyAll();
+	}
+}
@@ -0,0 +1,245 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.ConnectException;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * Connections between threads of this JVM, through a pair of MemoryPipes.  Listeners are
+ * identified by port number alone (the host is ignored); port 0 picks one not in use.
+ * Nothing goes through the kernel, so a message exchange costs only the work done by the
+ * code on either end, plus a thread handoff.
+ */
+public class MemoryPipeTransport extends Transport {
+
+	private static final int PIPE_CAPACITY = 64 * 1024;
+	private static final int FIRST_PORT = 1;
+
+	private static final MemoryPipeTransport theMemoryPipeTransport = new MemoryPipeTransport();
+
+	public static MemoryPipeTransport theMemoryPipeTransport() {
+		return theMemoryPipeTransport;
+	}
+
+	private Map<Integer, MemoryListener> mListeners;
+	private int mNextPort;
+	private int mNextClientId;
+
+	private MemoryPipeTransport() {
+		mListeners = new HashMap<Integer, MemoryListener>();
+		mNextPort = FIRST_PORT;
+		mNextClientId = 1;
+	}
+
+	@Override
+	public String name() {
+		return "memory";
+	}
+
+	@Override
+	public synchronized TransportListener listen(String host, int port) throws IOException {
+		if ( port == 0 ) {
+			while ( mListeners.containsKey(mNextPort) ) mNextPort++;
+			port = mNextPort++;
+		} else if ( mListeners.containsKey(port) ) {
+			throw new BindException("Address already in use: memory:" + port);
+		}
+		MemoryListener listener = new MemoryListener(port);
+		mListeners.put(port, listener);
+		return listener;
+	}
+
+	@Override
+	public TransportConnection connect(String host, int port) throws IOException {
+		MemoryListener listener;
+		int clientId;
+		synchronized(this) {
+			listener = mListeners.get(port);
+			clientId = mNextClientId++;
+		}
+		if ( listener == null ) throw new ConnectException("Connection refused: memory:" + port);
+		MemoryPipe toServer = new MemoryPipe(PIPE_CAPACITY);
+		MemoryPipe toClient = new MemoryPipe(PIPE_CAPACITY);
+		MemoryConnection client = new MemoryConnection(toClient, toServer, "memory:" + port);
+		listener._enqueue(new MemoryConnection(toServer, toClient, "memory-client:" + clientId));
+		return client;
+	}
+
+	private synchronized void _remove(MemoryListener listener) {
+		if ( mListeners.get(listener.mPort) == listener ) mListeners.remove(listener.mPort);
+	}
+
+	private class MemoryListener implements TransportListener {
+		private int mPort;
+		private LinkedList<MemoryConnection> mPending;
+		private int mTimeout;
+		private boolean mClosed;
+
+		MemoryListener(int port) {
+			mPort = port;
+			mPending = new LinkedList<MemoryConnection>();
+			mTimeout = 0;
+			mClosed = false;
+		}
+
+		synchronized void _enqueue(MemoryConnection conn) throws IOException {
+			if ( mClosed ) throw new ConnectException("Connection refused: memory:" + mPort);
+			mPending.add(conn);
+			notifyAll();
+		}
+
+		@Override
+		public synchronized TransportConnection accept() throws IOException {
+			long deadline = mTimeout > 0 ? System.currentTimeMillis() + mTimeout : 0;
+			while ( mPending.isEmpty() && !mClosed ) {
+				long wait = 0;
+				if ( deadline > 0 ) {
+					wait = deadline - System.currentTimeMillis();
+					if ( wait <= 0 ) throw new SocketTimeoutException("Accept timed out");
+				}
+				try {
+					wait(wait);
+				} catch (InterruptedException e) {
+					Thread.currentThread().interrupt();
+					throw new InterruptedIOException("Interrupted while accepting");
+				}
+			}
+			if ( mClosed ) throw new SocketException("Socket closed");
+			return mPending.removeFirst();
+		}
+
+		@Override
+		public synchronized void setAcceptTimeout(int timeout) {
+			mTimeout = timeout;
+		}
+
+		@Override
+		public int localPort() {
+			return mPort;
+		}
+
+		@Override
+		public String localAddress() {
+			return "memory:" + mPort;
+		}
+
+		@Override
+		public void close() {
+			_remove(this);
+			synchronized(this) {
+				mClosed = true;
+				for ( MemoryConnection conn : mPending ) conn.close();
+				mPending.clear();
+				notifyAll();
+			}
+		}
+
+		@Override
+		public String toString() {
+			return "MemoryListener[" + localAddress() + (mClosed ? ", closed]" : "]");
+		}
+	}
+
+	private static class MemoryConnection implements TransportConnection {
+		private MemoryPipe mIn;
+		private MemoryPipe mOut;
+		private String mRemote;
+		private volatile int mTimeout;
+		private volatile boolean mClosed;
+		private InputStream mInputStream;
+		private OutputStream mOutputStream;
+
+		MemoryConnection(MemoryPipe in, MemoryPipe out, String remote) {
+			mIn = in;
+			mOut = out;
+			mRemote = remote;
+			mTimeout = 0;
+			mClosed = false;
+			mInputStream = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return mIn.read(b, 0, 1, mTimeout) < 0 ? -1 : b[0] & 0xff;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					return mIn.read(b, off, len, mTimeout);
+				}
+				@Override
+				public int available() {
+					return mIn.available();
+				}
+				@Override
+				public void close() {
+					MemoryConnection.this.close();
+				}
+			};
+			mOutputStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					mOut.write(new byte[] { (byte)b }, 0, 1);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					mOut.write(b, off, len);
+				}
+				@Override
+				public void close() {
+					MemoryConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		@Override
+		public void setTimeout(int timeout) {
+			mTimeout = timeout;
+		}
+
+		/**
+		 * There's no Nagle's algorithm to turn off; writes are always visible to the reader immediately.
+		 */
+		@Override
+		public void setNoDelay(boolean value) {
+		}
+
+		@Override
+		public String remoteAddress() {
+			return mRemote;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return mClosed;
+		}
+
+		@Override
+		public void close() {
+			mClosed = true;
+			mIn.closeReader();
+			mOut.closeWriter();
+		}
+
+		@Override
+		public String toString() {
+			return "MemoryConnection[" + mRemote + (mClosed ? ", closed]" : "]");
+		}
+	}
+}
@@ -0,0 +1,190 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A single-producer/single-consumer byte ring in a region of shared memory (a slice of a mapped
+ * file), so that the producer and consumer can be in different processes.  It's the shared memory
+ * counterpart of MemoryPipe.
+ * <p>
+ * The region starts with two cache lines of control words, then the data:
+ * <pre>
+ *   0   head            bytes consumed so far; written only by the consumer
+ *   8   reader closed   nonzero once the consumer has closed
+ *   64  tail            bytes produced so far; written only by the producer
+ *   72  writer closed   nonzero once the producer has closed
+ *   128 data            capacity bytes; byte n of the stream is at 128 + n % capacity
+ * </pre>
+ * Each side publishes its counter with a release store after copying data, and reads the other's with
+ * an acquire load before copying, so no locks are needed.  Head and tail are on separate cache lines so
+ * the two sides don't contend for one.  A side with nothing to do spins briefly (unless there's only
+ * one processor), then yields, then parks, for intervals that double from 20 usec. to 1 msec.; the other
+ * side can't unpark it, since it may be in another process.
+ * <p>
+ * A side that dies without closing its end leaves the closed word unset, so a parked side also asks
+ * its Liveness every LIVENESS_CHECK_NANOS whether the other is still there.
+ */
+class SharedMemoryRing {
+
+	static final int CONTROL_LENGTH = 128;
+
+	private static final int HEAD = 0;
+	private static final int READER_CLOSED = 8;
+	private static final int TAIL = 64;
+	private static final int WRITER_CLOSED = 72;
+
+	// iterations of Thread.onSpinWait() before yielding; on a single processor spinning only delays the other side
+	private static final int SPIN_LIMIT = Runtime.getRuntime().availableProcessors() > 1 ? 2000 : 0;
+	private static final int YIELD_LIMIT = SPIN_LIMIT + 100;     // iterations before parking
+	private static final long MIN_PARK_NANOS = 20000;      // first park; each one after doubles, up to
+	private static final long MAX_PARK_NANOS = 1000000;
+	private static final long LIVENESS_CHECK_NANOS = 100000000L;
+
+	private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class, ByteOrder.nativeOrder());
+
+	private ByteBuffer mRegion;
+	private int mCapacity;
+	private long mHead;        // the consumer's copy of head, when this side is the consumer
+	private long mTail;        // the producer's copy of tail, when this side is the producer
+	private Liveness mLiveness;
+
+	/**
+	 * Tells a waiting side whether the other is still there.
+	 */
+	interface Liveness {
+		/**
+		 * @throws IOException The other side has gone away.
+		 */
+		void check() throws IOException;
+	}
+
+	/**
+	 * Returns the length of the region needed for a ring holding capacity bytes.
+	 */
+	static int regionLength(int capacity) {
+		return CONTROL_LENGTH + capacity;
+	}
+
+	/**
+	 * @param region The ring's region, of length regionLength(capacity), zeroed if the ring is new.
+	 */
+	SharedMemoryRing(ByteBuffer region, int capacity, Liveness liveness) {
+		mRegion = region;
+		mLiveness = liveness;
+		mCapacity = capacity;
+		mHead = (long)LONGS.getAcquire(mRegion, HEAD);
+		mTail = (long)LONGS.getAcquire(mRegion, TAIL);
+	}
+
+	/**
+	 * Spins, yields or parks, depending on how many times in a row the caller has found nothing to do.
+	 * Once it's parking, checks now and then that the other side is still there.
+	 * @param lastCheck When the other side was last checked on (System.nanoTime()), or 0 if it hasn't been.
+	 * @return The new lastCheck.
+	 * @throws IOException The other side has gone away.
+	 */
+	private long _backoff(int iteration, long lastCheck) throws IOException {
+		if ( iteration < SPIN_LIMIT ) Thread.onSpinWait();
+		else if ( iteration < YIELD_LIMIT ) Thread.yield();
+		else {
+			int parks = iteration - YIELD_LIMIT;
+			LockSupport.parkNanos(Math.min(MAX_PARK_NANOS, MIN_PARK_NANOS << Math.min(parks, 6)));
+			long now = System.nanoTime();
+			if ( lastCheck == 0 ) return now;
+			if ( mLiveness != null && now - lastCheck > LIVENESS_CHECK_NANOS ) {
+				mLiveness.check();
+				return now;
+			}
+		}
+		return lastCheck;
+	}
+
+	/**
+	 * Copies len bytes into the ring, waiting for the consumer to make room as often as necessary.
+	 * @throws SocketException The consumer has closed, or this side has.
+	 * @throws IOException The consumer has gone away (see Liveness).
+	 */
+	void write(byte[] b, int off, int len) throws IOException {
+		if ( (long)LONGS.getAcquire(mRegion, WRITER_CLOSED) != 0 ) throw new SocketException("Socket closed");
+		int iteration = 0;
+		long lastCheck = 0;
+		while ( len > 0 ) {
+			if ( (long)LONGS.getAcquire(mRegion, READER_CLOSED) != 0 ) throw new SocketException("Broken pipe");
+			long head = (long)LONGS.getAcquire(mRegion, HEAD);
+			int free = mCapacity - (int)(mTail - head);
+			if ( free == 0 ) {
+				lastCheck = _backoff(iteration++, lastCheck);
+				continue;
+			}
+			iteration = 0;
+			lastCheck = 0;
+			int n = Math.min(free, len);
+			int at = (int)(mTail % mCapacity);
+			int first = Math.min(n, mCapacity - at);
+			mRegion.put(CONTROL_LENGTH + at, b, off, first);
+			if ( first < n ) mRegion.put(CONTROL_LENGTH, b, off + first, n - first);
+			mTail += n;
+			LONGS.setRelease(mRegion, TAIL, mTail);
+			off += n;
+			len -= n;
+		}
+	}
+
+	/**
+	 * Copies up to len bytes out of the ring, waiting until there's at least one.
+	 * @param timeout Maximum wait in msec., or 0 to wait forever.
+	 * @return The number of bytes copied, or -1 if the producer has closed and every byte has been read.
+	 * @throws SocketTimeoutException The timeout expired first.
+	 * @throws IOException The producer has gone away (see Liveness).
+	 */
+	int read(byte[] b, int off, int len, int timeout) throws IOException {
+		if ( len == 0 ) return 0;
+		long deadline = 0;
+		int iteration = 0;
+		long lastCheck = 0;
+		while ( true ) {
+			long tail = (long)LONGS.getAcquire(mRegion, TAIL);
+			int available = (int)(tail - mHead);
+			if ( available > 0 ) {
+				int n = Math.min(available, len);
+				int at = (int)(mHead % mCapacity);
+				int first = Math.min(n, mCapacity - at);
+				mRegion.get(CONTROL_LENGTH + at, b, off, first);
+				if ( first < n ) mRegion.get(CONTROL_LENGTH, b, off + first, n - first);
+				mHead += n;
+				LONGS.setRelease(mRegion, HEAD, mHead);
+				return n;
+			}
+			if ( (long)LONGS.getAcquire(mRegion, WRITER_CLOSED) != 0 ) {
+				// the producer may have written more just before closing
+				if ( (long)LONGS.getAcquire(mRegion, TAIL) == mHead ) return -1;
+				continue;
+			}
+			if ( (long)LONGS.getAcquire(mRegion, READER_CLOSED) != 0 ) throw new SocketException("Socket closed");
+			if ( iteration >= SPIN_LIMIT && timeout > 0 ) {
+				if ( deadline == 0 ) deadline = System.nanoTime() + timeout * 1000000L;
+				else if ( System.nanoTime() - deadline > 0 ) throw new SocketTimeoutException("Read timed out");
+			}
+			lastCheck = _backoff(iteration++, lastCheck);
+		}
+	}
+
+	int available() {
+		return (int)((long)LONGS.getAcquire(mRegion, TAIL) - mHead);
+	}
+
+	void closeWriter() {
+		LONGS.setRelease(mRegion, WRITER_CLOSED, 1L);
+	}
+
+	void closeReader() {
+		LONGS.setRelease(mRegion, READER_CLOSED, 1L);
+	}
+}
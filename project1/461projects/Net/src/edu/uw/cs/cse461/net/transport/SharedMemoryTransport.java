@@ -0,0 +1,417 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.io.RandomAccessFile;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.HashMap;
+import java.util.Map;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Connections between processes on the same machine through a pair of SharedMemoryRings in a
+ * memory mapped file, so that once a connection is set up, exchanging messages involves no system
+ * calls at all.
+ * <p>
+ * A connection starts as an ordinary TCP connection, which is how the client finds the server.
+ * If the server's host is this machine, the client creates and maps a file holding the two rings
+ * (in config entry net.shm.dir, by default /dev/shm when there is one) and sends
+ * <pre>
+ *   "SHM1" [path length: 4 bytes, big endian] [path: UTF-8]
+ * </pre>
+ * The server maps the file and answers with a single byte: 1 to use the rings, or 0 to carry on over
+ * the TCP connection.  It only maps files in its own net.shm.dir that a client on this host names.  No frame can begin with "SHM1", since it would declare a message of hundreds of
+ * megabytes, so the server tells a shared memory client from any other by its first four bytes, which
+ * are otherwise handed to the reader untouched.  That means the server can't write to a connection
+ * before reading from it; no service here does.
+ * <p>
+ * The client falls back to plain TCP when the server is on another host, or doesn't answer the
+ * handshake (because it uses some other transport).  A server that didn't answer is connected to over
+ * plain TCP, without trying again, for the next TCP_ONLY_RETRY_MSEC.  The TCP connection stays open
+ * alongside the rings, and is closed with them.  Nothing is sent on it after the handshake, so it reads
+ * EOF only if the other side has gone; that's how a side left waiting on a ring learns the other process
+ * died without closing it.
+ */
+public class SharedMemoryTransport extends Transport {
+	private static final String TAG="SharedMemoryTransport";
+
+	private static final byte[] MAGIC = { 'S', 'H', 'M', '1' };
+	private static final int ACK_TCP = 0;
+	private static final int ACK_SHM = 1;
+	private static final int RING_CAPACITY = 1024 * 1024;
+	private static final int MAX_PATH_LENGTH = 4096;
+	private static final long TCP_ONLY_RETRY_MSEC = 60000;
+	private static final int LIVENESS_READ_MSEC = 1;
+
+	private static final SharedMemoryTransport theSharedMemoryTransport = new SharedMemoryTransport();
+
+	public static SharedMemoryTransport theSharedMemoryTransport() {
+		return theSharedMemoryTransport;
+	}
+
+	private Map<String, Long> mTcpOnly;      // host:port of servers that didn't answer the handshake, and when
+
+	private SharedMemoryTransport() {
+		mTcpOnly = new HashMap<String, Long>();
+	}
+
+	@Override
+	public String name() {
+		return "shm";
+	}
+
+	/**
+	 * Listens for TCP connections, which become shared memory connections if the client asks.
+	 */
+	@Override
+	public TransportListener listen(String host, int port) throws IOException {
+		return new ShmListener((TCPTransport.TCPListener)TCPTransport.theTCPTransport().listen(host, port, 1));
+	}
+
+	@Override
+	public TransportConnection connect(String host, int port) throws IOException {
+		TCPTransport tcp = TCPTransport.theTCPTransport();
+		if ( !isLocal(host) ) return tcp.connect(host, port);
+		String key = host + ":" + port;
+		synchronized(mTcpOnly) {
+			Long failed = mTcpOnly.get(key);
+			if ( failed != null ) {
+				if ( System.currentTimeMillis() - failed < TCP_ONLY_RETRY_MSEC ) return tcp.connect(host, port);
+				mTcpOnly.remove(key);
+			}
+		}
+
+		TCPTransport.TCPConnection conn = (TCPTransport.TCPConnection)tcp.connect(host, port);
+		File file = null;
+		try {
+			file = File.createTempFile("cse461-", ".shm", _directory());
+			MappedByteBuffer region = _map(file, true);
+
+			byte[] path = file.getPath().getBytes("UTF-8");
+			ByteBuffer hello = ByteBuffer.allocate(MAGIC.length + 4 + path.length);
+			hello.put(MAGIC).putInt(path.length).put(path);
+			conn.setTimeout(_handshakeTimeout());
+			conn.getOutputStream().write(hello.array());
+			int ack = conn.getInputStream().read();
+			conn.setTimeout(0);
+			if ( ack == ACK_SHM ) return new ShmConnection(conn, region, true);
+			if ( ack == ACK_TCP ) return conn;
+			throw new SocketException("Connection closed during handshake");
+		} catch (IOException e) {
+			Log.d(TAG, "Shared memory handshake with " + host + ":" + port + " failed (" + e.getMessage() + "); using tcp");
+			conn.close();
+			synchronized(mTcpOnly) {
+				mTcpOnly.put(key, System.currentTimeMillis());
+			}
+			return tcp.connect(host, port);
+		} finally {
+			// both ends have it mapped (or never will), so the name is no longer needed
+			if ( file != null ) file.delete();
+		}
+	}
+
+	private static File _directory() {
+		NetBase netBase = NetBase.theNetBase();
+		String dir = netBase == null ? null : netBase.config().getProperty("net.shm.dir");
+		if ( dir != null && !dir.trim().isEmpty() ) return new File(dir.trim());
+		File devShm = new File("/dev/shm");
+		if ( devShm.isDirectory() ) return devShm;
+		return new File(System.getProperty("java.io.tmpdir"));
+	}
+
+	private static int _handshakeTimeout() {
+		NetBase netBase = NetBase.theNetBase();
+		if ( netBase == null ) return 5000;
+		return netBase.config().getAsInt("net.timeout.socket", 5000, 1);
+	}
+
+	/**
+	 * Maps the rings' file, sizing it first if create is true.
+	 */
+	private static MappedByteBuffer _map(File file, boolean create) throws IOException {
+		long length = 2L * SharedMemoryRing.regionLength(RING_CAPACITY);
+		RandomAccessFile raf = new RandomAccessFile(file, "rw");
+		try {
+			if ( create ) raf.setLength(length);
+			else if ( raf.length() != length ) throw new IOException("Shared memory file " + file + " has the wrong length");
+			return raf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, length);
+		} finally {
+			raf.close();
+		}
+	}
+
+	private static class ShmListener implements TransportListener {
+		private TCPTransport.TCPListener mListener;
+
+		ShmListener(TCPTransport.TCPListener listener) {
+			mListener = listener;
+		}
+
+		@Override
+		public TransportConnection accept() throws IOException {
+			return new ShmConnection((TCPTransport.TCPConnection)mListener.accept());
+		}
+
+		@Override
+		public void setAcceptTimeout(int timeout) throws SocketException {
+			mListener.setAcceptTimeout(timeout);
+		}
+
+		@Override
+		public int localPort() {
+			return mListener.localPort();
+		}
+
+		@Override
+		public String localAddress() {
+			return mListener.localAddress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mListener.close();
+		}
+
+		@Override
+		public String toString() {
+			return "ShmListener[" + mListener + "]";
+		}
+	}
+
+	/**
+	 * A connection over the rings, or, on the server side, one that hasn't yet seen whether the
+	 * client wants them.  The server decides on its first read or write.
+	 */
+	private static class ShmConnection implements TransportConnection {
+		private static final int UNDECIDED = 0;
+		private static final int TCP = 1;
+		private static final int SHM = 2;
+
+		private TCPTransport.TCPConnection mTcp;
+		private volatile int mMode;
+		private PushbackInputStream mTcpIn;
+		private OutputStream mTcpOut;
+		private byte[] mPeek;            // the first bytes from the client, while deciding
+		private int mPeeked;
+		private SharedMemoryRing mIn;
+		private SharedMemoryRing mOut;
+		private volatile int mTimeout;
+		private volatile boolean mClosed;
+		private InputStream mInputStream;
+		private OutputStream mOutputStream;
+		private final Object mTcpLock = new Object();     // for the TCP timeout, which the liveness check borrows
+
+		/**
+		 * A server side connection, undecided.
+		 */
+		ShmConnection(TCPTransport.TCPConnection tcp) throws IOException {
+			mTcp = tcp;
+			mMode = UNDECIDED;
+			mTcpIn = new PushbackInputStream(tcp.getInputStream(), MAGIC.length);
+			mTcpOut = tcp.getOutputStream();
+			mPeek = new byte[MAGIC.length];
+			mPeeked = 0;
+			_makeStreams();
+		}
+
+		/**
+		 * A connection over the rings in region.  The client writes the first ring and reads the second.
+		 */
+		ShmConnection(TCPTransport.TCPConnection tcp, ByteBuffer region, boolean client) throws IOException {
+			mTcp = tcp;
+			mTcpIn = new PushbackInputStream(tcp.getInputStream(), MAGIC.length);
+			mTcpOut = tcp.getOutputStream();
+			_attach(region, client);
+			_makeStreams();
+		}
+
+		private void _attach(ByteBuffer region, boolean client) {
+			int length = SharedMemoryRing.regionLength(RING_CAPACITY);
+			SharedMemoryRing.Liveness liveness = new SharedMemoryRing.Liveness() {
+				public void check() throws IOException {
+					_checkPeer();
+				}
+			};
+			SharedMemoryRing first = new SharedMemoryRing(region.slice(0, length), RING_CAPACITY, liveness);
+			SharedMemoryRing second = new SharedMemoryRing(region.slice(length, length), RING_CAPACITY, liveness);
+			mOut = client ? first : second;
+			mIn = client ? second : first;
+			mMode = SHM;
+		}
+
+		/**
+		 * Checks that the other side hasn't gone away, by reading the TCP connection for a moment: it gets EOF
+		 * if the other process has died.
+		 * @throws SocketException It has.
+		 */
+		private void _checkPeer() throws IOException {
+			synchronized(mTcpLock) {
+				if ( mClosed ) return;
+				Socket socket = mTcp.socket();
+				int timeout = socket.getSoTimeout();
+				socket.setSoTimeout(LIVENESS_READ_MSEC);
+				try {
+					int b = mTcpIn.read();
+					if ( b < 0 ) throw new SocketException("Connection reset by peer");
+					mTcpIn.unread(b);
+				} catch (SocketTimeoutException e) {
+					// nothing to read; it's still there
+				} finally {
+					socket.setSoTimeout(timeout);
+				}
+			}
+		}
+
+		/**
+		 * Reads the client's first bytes and, if they begin the handshake, completes it.
+		 * A read that times out leaves things as they were, to be picked up again next time.
+		 */
+		private synchronized void _decide() throws IOException {
+			if ( mMode != UNDECIDED ) return;
+			while ( mPeeked < MAGIC.length ) {
+				int b = mTcpIn.read();
+				if ( b < 0 || (byte)b != MAGIC[mPeeked] ) {
+					if ( b >= 0 ) mTcpIn.unread(b);
+					mTcpIn.unread(mPeek, 0, mPeeked);
+					mMode = TCP;
+					return;
+				}
+				mPeek[mPeeked++] = (byte)b;
+			}
+
+			byte[] lengthBytes = _readFully(4);
+			int pathLength = ByteBuffer.wrap(lengthBytes).getInt();
+			if ( pathLength <= 0 || pathLength > MAX_PATH_LENGTH ) throw new IOException("Bad shared memory handshake");
+			String path = new String(_readFully(pathLength), "UTF-8");
+			try {
+				if ( !isLocal(mTcp.socket().getInetAddress().getHostAddress()) ) {
+					throw new IOException("client isn't on this host");
+				}
+				File file = new File(path).getCanonicalFile();
+				if ( !_directory().getCanonicalFile().equals(file.getParentFile()) ) {
+					throw new IOException("not in " + _directory());
+				}
+				_attach(_map(file, false), false);
+				mTcpOut.write(ACK_SHM);
+			} catch (IOException e) {
+				Log.w(TAG, "Couldn't map " + path + " (" + e.getMessage() + "); using tcp");
+				mMode = TCP;
+				mTcpOut.write(ACK_TCP);
+			}
+			mTcpOut.flush();
+		}
+
+		private byte[] _readFully(int length) throws IOException {
+			byte[] buf = new byte[length];
+			int count = 0;
+			while ( count < length ) {
+				int n = mTcpIn.read(buf, count, length - count);
+				if ( n < 0 ) throw new SocketException("Connection closed during handshake");
+				count += n;
+			}
+			return buf;
+		}
+
+		private void _makeStreams() {
+			mInputStream = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : b[0] & 0xff;
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if ( mMode == UNDECIDED ) _decide();
+					if ( mMode == SHM ) return mIn.read(b, off, len, mTimeout);
+					return mTcpIn.read(b, off, len);
+				}
+				@Override
+				public int available() throws IOException {
+					if ( mMode == SHM ) return mIn.available();
+					return mTcpIn.available();
+				}
+				@Override
+				public void close() throws IOException {
+					ShmConnection.this.close();
+				}
+			};
+			mOutputStream = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					if ( mMode == UNDECIDED ) _decide();
+					if ( mMode == SHM ) mOut.write(b, off, len);
+					else mTcpOut.write(b, off, len);
+				}
+				@Override
+				public void close() throws IOException {
+					ShmConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mInputStream;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOutputStream;
+		}
+
+		/**
+		 * Applies to ring reads and to the TCP connection (which carries the handshake).
+		 */
+		@Override
+		public void setTimeout(int timeout) throws SocketException {
+			mTimeout = timeout;
+			synchronized(mTcpLock) {
+				mTcp.setTimeout(timeout);
+			}
+		}
+
+		@Override
+		public void setNoDelay(boolean value) throws SocketException {
+			mTcp.setNoDelay(value);
+		}
+
+		@Override
+		public String remoteAddress() {
+			return (mMode == SHM ? "shm:" : "") + mTcp.remoteAddress();
+		}
+
+		@Override
+		public boolean isClosed() {
+			return mClosed;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mClosed = true;
+			if ( mMode == SHM ) {
+				mOut.closeWriter();
+				mIn.closeReader();
+			}
+			mTcp.close();
+		}
+
+		@Override
+		public String toString() {
+			return "ShmConnection[" + remoteAddress() + (mClosed ? ", closed]" : "]");
+		}
+	}
+}
@@ -0,0 +1,374 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardSocketOptions;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Connections over TCP sockets.  The listener and connection classes are thin wrappers
+ * around ServerSocket and Socket.
+ */
+public class TCPTransport extends Transport {
+	private static final String TAG="TCPTransport";
+
+	private static final TCPTransport theTCPTransport = new TCPTransport();
+
+	public static TCPTransport theTCPTransport() {
+		return theTCPTransport;
+	}
+
+	private TCPTransport() {
+	}
+
+	@Override
+	public String name() {
+		return "tcp";
+	}
+
+	/**
+	 * Listens with the number of shards given by config entry net.listen.shards (see the three
+	 * argument version).
+	 */
+	@Override
+	public TransportListener listen(String host, int port) throws IOException {
+		NetBase netBase = NetBase.theNetBase();
+		int nShards = netBase == null ? 1 : netBase.config().getAsInt("net.listen.shards", 1, 1);
+		return listen(host, port, nShards);
+	}
+
+	/**
+	 * Listens on nShards sockets bound to the same port with SO_REUSEPORT, so that the kernel
+	 * spreads incoming connections across them and each can be accepted on by a different thread.
+	 * With one shard (or where SO_REUSEPORT isn't supported, which is logged) the result is a
+	 * TCPListener; otherwise it's a ShardedListener.
+	 * <p>
+	 * The ServerSockets are created from ServerSocketChannels, so that they can be handed to the
+	 * NetRuntime's event loops (see NetRuntime.accept()) as well as used directly.
+	 */
+	public TransportListener listen(String host, int port, int nShards) throws IOException {
+		if ( nShards > 1 && !reusePortSupported() ) {
+			Log.w(TAG, "SO_REUSEPORT isn't supported here; listening on one socket instead of " + nShards);
+			nShards = 1;
+		}
+		if ( nShards == 1 ) return new TCPListener(_bind(host, port, false));
+
+		List<TCPListener> shards = new ArrayList<TCPListener>();
+		try {
+			for ( int i=0; i<nShards; i++ ) {
+				ServerSocket serverSocket = _bind(host, port, true);
+				// shards after the first bind to the port the first was given
+				port = serverSocket.getLocalPort();
+				shards.add(new TCPListener(serverSocket));
+			}
+		} catch (IOException e) {
+			for ( TCPListener shard : shards ) try { shard.close(); } catch (Exception ce) {}
+			throw e;
+		}
+		return new ShardedListener(shards);
+	}
+
+	private static ServerSocket _bind(String host, int port, boolean reusePort) throws IOException {
+		ServerSocketChannel channel = ServerSocketChannel.open();
+		try {
+			if ( reusePort ) channel.setOption(StandardSocketOptions.SO_REUSEPORT, true);
+			channel.bind(new InetSocketAddress(host, port));
+		} catch (IOException e) {
+			channel.close();
+			throw e;
+		}
+		return channel.socket();
+	}
+
+	/**
+	 * Returns true if listeners can be sharded on this platform.
+	 */
+	public static boolean reusePortSupported() {
+		try {
+			ServerSocketChannel channel = ServerSocketChannel.open();
+			try {
+				return channel.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT);
+			} finally {
+				channel.close();
+			}
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	@Override
+	public TransportConnection connect(String host, int port) throws IOException {
+		return new TCPConnection(new Socket(host, port));
+	}
+
+	public static class TCPListener implements TransportListener {
+		private static final int RATE_SECONDS = 60;
+
+		private ServerSocket mServerSocket;
+
+		// connections accepted, in total and in each of the last RATE_SECONDS seconds
+		private long mAccepted;
+		private long[] mAcceptedIn = new long[RATE_SECONDS];
+		private long[] mSecondOf = new long[RATE_SECONDS];
+		private long mCreated;
+
+		public TCPListener(ServerSocket serverSocket) {
+			mServerSocket = serverSocket;
+			mCreated = System.currentTimeMillis();
+		}
+
+		public ServerSocket serverSocket() {
+			return mServerSocket;
+		}
+
+		@Override
+		public TransportConnection accept() throws IOException {
+			Socket socket = mServerSocket.accept();
+			_count();
+			return new TCPConnection(socket);
+		}
+
+		/**
+		 * Accepts a pending connection, if there is one, on a listener whose channel is in non-blocking
+		 * mode (one registered with a Selector).  The connection returned is in blocking mode.
+		 * @return The connection, or null if none was waiting.
+		 */
+		public TransportConnection acceptNow() throws IOException {
+			SocketChannel channel = acceptChannel();
+			if ( channel == null ) return null;
+			channel.configureBlocking(true);
+			return new TCPConnection(channel.socket());
+		}
+
+		/**
+		 * Like acceptNow(), but returns the channel itself, for servers that go on using it with a Selector.
+		 */
+		public SocketChannel acceptChannel() throws IOException {
+			SocketChannel channel = mServerSocket.getChannel().accept();
+			if ( channel != null ) _count();
+			return channel;
+		}
+
+		private synchronized void _count() {
+			long second = System.currentTimeMillis() / 1000;
+			int i = (int)(second % RATE_SECONDS);
+			if ( mSecondOf[i] != second ) {
+				mSecondOf[i] = second;
+				mAcceptedIn[i] = 0;
+			}
+			mAcceptedIn[i]++;
+			mAccepted++;
+		}
+
+		/**
+		 * Returns the number of connections accepted so far.
+		 */
+		public synchronized long accepted() {
+			return mAccepted;
+		}
+
+		/**
+		 * Returns the connections accepted per second over the last minute (or since the
+		 * listener was created, if that's less).
+		 */
+		public synchronized double acceptRate() {
+			long now = System.currentTimeMillis();
+			long second = now / 1000;
+			long count = 0;
+			for ( int i=0; i<RATE_SECONDS; i++ ) {
+				if ( second - mSecondOf[i] < RATE_SECONDS ) count += mAcceptedIn[i];
+			}
+			double seconds = Math.min(RATE_SECONDS, Math.max(1.0, (now - mCreated) / 1000.0));
+			return count / seconds;
+		}
+
+		@Override
+		public void setAcceptTimeout(int timeout) throws SocketException {
+			mServerSocket.setSoTimeout(timeout);
+		}
+
+		@Override
+		public int localPort() {
+			return mServerSocket.getLocalPort();
+		}
+
+		@Override
+		public String localAddress() {
+			return String.valueOf(mServerSocket.getLocalSocketAddress());
+		}
+
+		@Override
+		public void close() throws IOException {
+			mServerSocket.close();
+		}
+
+		@Override
+		public String toString() {
+			return mServerSocket.toString() + String.format("   accepted: %d (%.1f/sec.)", accepted(), acceptRate());
+		}
+	}
+
+	/**
+	 * Several TCPListeners bound to the same port (see listen()).  Servers that watch listeners with
+	 * a Selector, such as the NetRuntime, should use the shards individually, each on its own thread,
+	 * which is the point of sharding.  accept() works too, by waiting on all the shards at once.
+	 */
+	public static class ShardedListener implements TransportListener {
+		private List<TCPListener> mShards;
+		private volatile Selector mSelector;   // used by accept(); created the first time it's called
+		private int mAcceptTimeout;
+
+		ShardedListener(List<TCPListener> shards) {
+			mShards = Collections.unmodifiableList(shards);
+			mAcceptTimeout = 0;
+		}
+
+		public List<TCPListener> shards() {
+			return mShards;
+		}
+
+		@Override
+		public synchronized TransportConnection accept() throws IOException {
+			try {
+				if ( mSelector == null ) {
+					mSelector = Selector.open();
+					for ( TCPListener shard : mShards ) {
+						ServerSocketChannel channel = shard.serverSocket().getChannel();
+						channel.configureBlocking(false);
+						channel.register(mSelector, SelectionKey.OP_ACCEPT, shard);
+					}
+				}
+				long deadline = System.currentTimeMillis() + mAcceptTimeout;
+				while ( true ) {
+					long wait = 0;
+					if ( mAcceptTimeout > 0 ) {
+						wait = deadline - System.currentTimeMillis();
+						if ( wait <= 0 ) throw new SocketTimeoutException("Accept timed out");
+					}
+					mSelector.select(wait);
+					if ( mSelector.keys().isEmpty() ) throw new SocketException("Socket closed");
+					Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+					while ( it.hasNext() ) {
+						SelectionKey key = it.next();
+						it.remove();
+						if ( !key.isValid() ) continue;
+						TransportConnection conn = ((TCPListener)key.attachment()).acceptNow();
+						if ( conn != null ) return conn;
+					}
+				}
+			} catch (ClosedSelectorException e) {
+				throw new SocketException("Socket closed");
+			}
+		}
+
+		@Override
+		public void setAcceptTimeout(int timeout) throws SocketException {
+			mAcceptTimeout = timeout;
+		}
+
+		@Override
+		public int localPort() {
+			return mShards.get(0).localPort();
+		}
+
+		@Override
+		public String localAddress() {
+			return mShards.get(0).localAddress();
+		}
+
+		@Override
+		public void close() throws IOException {
+			IOException failure = null;
+			for ( TCPListener shard : mShards ) {
+				try {
+					shard.close();
+				} catch (IOException e) {
+					failure = e;
+				}
+			}
+			Selector selector = mSelector;
+			if ( selector != null ) selector.close();
+			if ( failure != null ) throw failure;
+		}
+
+		@Override
+		public String toString() {
+			StringBuilder sb = new StringBuilder();
+			sb.append(mShards.size()).append(" shards on ").append(localAddress());
+			for ( int i=0; i<mShards.size(); i++ ) {
+				TCPListener shard = mShards.get(i);
+				sb.append(String.format("\n\tshard %d: accepted: %d (%.1f/sec.)", i, shard.accepted(), shard.acceptRate()));
+			}
+			return sb.toString();
+		}
+	}
+
+	public static class TCPConnection implements TransportConnection {
+		private Socket mSocket;
+
+		public TCPConnection(Socket socket) {
+			mSocket = socket;
+		}
+
+		public Socket socket() {
+			return mSocket;
+		}
+
+		@Override
+		public InputStream getInputStream() throws IOException {
+			return mSocket.getInputStream();
+		}
+
+		@Override
+		public OutputStream getOutputStream() throws IOException {
+			return mSocket.getOutputStream();
+		}
+
+		@Override
+		public void setTimeout(int timeout) throws SocketException {
+			mSocket.setSoTimeout(timeout);
+		}
+
+		@Override
+		public void setNoDelay(boolean value) throws SocketException {
+			mSocket.setTcpNoDelay(value);
+		}
+
+		@Override
+		public String remoteAddress() {
+			return String.valueOf(mSocket.getRemoteSocketAddress());
+		}
+
+		@Override
+		public boolean isClosed() {
+			return mSocket.isClosed();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mSocket.close();
+		}
+
+		@Override
+		public String toString() {
+			return mSocket.toString();
+		}
+	}
+}
@@ -0,0 +1,83 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.net.InetAddress;
+import java.net.NetworkInterface;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+
+/**
+ * A way of making connections.  TCPMessageHandler, RPCService, RPCCall and the TCPMessageHandler
+ * services and apps make their connections through a Transport, rather than creating Sockets and
+ * ServerSockets themselves, so the kind of connection can be chosen in the config file:
+ * <ul>
+ * <li> tcp:  TCP sockets (TCPTransport).  This is the default.
+ * <li> memory:  Pipes between threads of this JVM (MemoryPipeTransport).  Both ends must be in the
+ *      same process, so this is for benchmarks and tests.  It has no kernel involvement at all,
+ *      so it shows the CPU cost of everything above the connection.
+ * <li> unix:  Unix domain sockets (UnixDomainTransport), for processes on the same machine.
+ *      Connections to other machines, or to servers not listening this way, fall back to TCP.
+ * <li> shm:  Rings in shared memory (SharedMemoryTransport), for processes on the same machine.
+ *      Servers also accept TCP clients, and clients fall back to TCP as unix ones do.
+ * </ul>
+ * Transports are stateless apart from the listeners they have open, so there's one instance of each.
+ */
+public abstract class Transport {
+
+	/**
+	 * Returns the name the transport is selected by in the config file.
+	 */
+	public abstract String name();
+
+	/**
+	 * Starts listening for connections.
+	 * @param host Address to listen on.  Transports with no notion of host ignore it.
+	 * @param port Port to listen on, or 0 to have one chosen.
+	 */
+	public abstract TransportListener listen(String host, int port) throws IOException;
+
+	/**
+	 * Connects to a listener.
+	 * @throws java.net.ConnectException Nothing is listening at host:port.
+	 */
+	public abstract TransportConnection connect(String host, int port) throws IOException;
+
+	@Override
+	public String toString() {
+		return name();
+	}
+
+	/**
+	 * Returns the transport with the given name.
+	 * @throws IOException There's no such transport.
+	 */
+	public static Transport forName(String name) throws IOException {
+		if ( name.equals("tcp") ) return TCPTransport.theTCPTransport();
+		if ( name.equals("memory") ) return MemoryPipeTransport.theMemoryPipeTransport();
+		if ( name.equals("unix") ) return UnixDomainTransport.theUnixDomainTransport();
+		if ( name.equals("shm") ) return SharedMemoryTransport.theSharedMemoryTransport();
+		throw new IOException("Unknown transport '" + name + "'");
+	}
+
+	/**
+	 * Returns the transport named by config file entry key, or the TCP transport if there's no
+	 * such entry (or no NetBase running).
+	 */
+	public static Transport fromConfig(String key) throws IOException {
+		NetBase netBase = NetBase.theNetBase();
+		if ( netBase == null ) return TCPTransport.theTCPTransport();
+		return forName(netBase.config().getProperty(key, "tcp").trim().toLowerCase());
+	}
+
+	/**
+	 * Returns true if host names this machine.
+	 */
+	protected static boolean isLocal(String host) {
+		try {
+			InetAddress addr = InetAddress.getByName(host);
+			return addr.isLoopbackAddress() || addr.isAnyLocalAddress() || NetworkInterface.getByInetAddress(addr) != null;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+}
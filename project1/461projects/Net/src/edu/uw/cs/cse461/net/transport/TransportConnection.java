@@ -0,0 +1,44 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.SocketException;
+
+/**
+ * One end of a connection made by a Transport: a reliable, ordered byte stream in each direction.
+ * This is the part of java.net.Socket that TCPMessageHandler and the services built on it use.
+ */
+public interface TransportConnection {
+
+	/**
+	 * Returns the stream the peer's writes arrive on.  A read that waits longer than the timeout
+	 * (see setTimeout()) throws SocketTimeoutException; a read after the peer closes returns -1.
+	 */
+	public InputStream getInputStream() throws IOException;
+
+	public OutputStream getOutputStream() throws IOException;
+
+	/**
+	 * Sets how long a read waits for data before throwing SocketTimeoutException.  Zero means forever.
+	 * @param timeout Time out, in msec.
+	 */
+	public void setTimeout(int timeout) throws SocketException;
+
+	/**
+	 * Enables/disables TCP_NODELAY, on transports where that means something.
+	 */
+	public void setNoDelay(boolean value) throws SocketException;
+
+	/**
+	 * Returns a printable name for the other end of the connection.
+	 */
+	public String remoteAddress();
+
+	public boolean isClosed();
+
+	/**
+	 * Closes the connection.  Reads blocked on it, at either end, return.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,40 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.IOException;
+import java.net.SocketException;
+
+/**
+ * The server side of a Transport: a bound address at which connections are accepted.
+ * This is the part of java.net.ServerSocket the services use.
+ */
+public interface TransportListener {
+
+	/**
+	 * Waits for a connection and returns the server's end of it.
+	 * @throws java.net.SocketTimeoutException No connection arrived within the accept timeout.
+	 * @throws SocketException The listener was closed.
+	 */
+	public TransportConnection accept() throws IOException;
+
+	/**
+	 * Sets how long accept() waits before throwing SocketTimeoutException.  Zero means forever.
+	 * Servers use a short timeout so that their accept loops notice shutdown.
+	 * @param timeout Time out, in msec.
+	 */
+	public void setAcceptTimeout(int timeout) throws SocketException;
+
+	/**
+	 * Returns the port connections should be made to.
+	 */
+	public int localPort();
+
+	/**
+	 * Returns a printable name for the address being listened on.
+	 */
+	public String localAddress();
+
+	/**
+	 * Stops listening.  A thread blocked in accept() throws SocketException.
+	 */
+	public void close() throws IOException;
+}
@@ -0,0 +1,349 @@
+package edu.uw.cs.cse461.net.transport;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.net.SocketException;
+import java.net.SocketTimeoutException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.net.UnixDomainSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectableChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+
+import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.util.Log;
+
+/**
+ * Connections over Unix domain sockets (Java 16 or later), for client and server processes on
+ * the same machine.  They carry exactly the same byte stream as a TCP connection, but skip the
+ * kernel's TCP/IP stack, which makes small message exchanges noticeably cheaper.
+ * <p>
+ * Unix domain sockets are named by paths, not ports, so a listener on port p is bound to
+ * the file cse461-p.sock in the directory given by config entry net.unix.dir (the system
+ * temporary directory if there isn't one).  So that port p means the same server whichever transport
+ * a client uses, the listener also holds TCP port p, bound but not listening, for as long as it's
+ * open; no TCP server can have it meanwhile.  Listening on port 0 lets the kernel pick the TCP port.
+ * <p>
+ * connect() uses a Unix domain socket when host is an address of this machine and something
+ * is listening on the port's socket file.  Otherwise (the server is remote, listens with the tcp
+ * transport, or left a stale socket file behind) it falls back to TCP, so setting rpc.transport=unix
+ * on a client is always safe.
+ * <p>
+ * The channels are non-blocking, and reads, writes and accepts wait on per-connection Selectors,
+ * so that they can honor timeouts the way Socket does.
+ */
+public class UnixDomainTransport extends Transport {
+	private static final String TAG="UnixDomainTransport";
+
+	private static final String SOCKET_PREFIX = "cse461-";
+	private static final String SOCKET_SUFFIX = ".sock";
+	private static final int BIND_ATTEMPTS = 8;     // ports tried by listen(0) before giving up
+	private static final int SOCKET_BUFFER_SIZE = 1024 * 1024;   // the defaults are small enough to hurt bulk transfers
+
+	private static final UnixDomainTransport theUnixDomainTransport = new UnixDomainTransport();
+
+	public static UnixDomainTransport theUnixDomainTransport() {
+		return theUnixDomainTransport;
+	}
+
+	private UnixDomainTransport() {
+	}
+
+	@Override
+	public String name() {
+		return "unix";
+	}
+
+	/**
+	 * Returns the socket file used for port.
+	 */
+	public static File socketFile(int port) {
+		String dir = null;
+		NetBase netBase = NetBase.theNetBase();
+		if ( netBase != null ) dir = netBase.config().getProperty("net.unix.dir");
+		if ( dir == null || dir.trim().isEmpty() ) dir = System.getProperty("java.io.tmpdir");
+		return new File(dir.trim(), SOCKET_PREFIX + port + SOCKET_SUFFIX);
+	}
+
+	/**
+	 * Reserves TCP port port (or, if port is 0, one the kernel picks), and binds to its socket file.
+	 * A socket file that exists but that nothing is listening on is left over from a process that didn't
+	 * shut down cleanly, and is replaced.  If port is 0 and another process is listening on the file
+	 * anyway (one that doesn't reserve ports), another port is tried.
+	 * @throws BindException Something else has the port, as a TCP port or a socket file.
+	 */
+	@Override
+	public synchronized TransportListener listen(String host, int port) throws IOException {
+		for ( int attempt = 1; ; attempt++ ) {
+			SocketChannel reservation = _reserve(port);
+			try {
+				return _listen(((InetSocketAddress)reservation.getLocalAddress()).getPort(), reservation);
+			} catch (BindException e) {
+				reservation.close();
+				if ( port != 0 || attempt >= BIND_ATTEMPTS ) throw e;
+			} catch (IOException e) {
+				reservation.close();
+				throw e;
+			}
+		}
+	}
+
+	/**
+	 * Binds a TCP socket to port on all addresses, without listening, so that no TCP server can bind to it.
+	 * (SO_REUSEADDR is off, so even servers that set it are refused.)
+	 */
+	private static SocketChannel _reserve(int port) throws IOException {
+		SocketChannel reservation = SocketChannel.open();
+		try {
+			reservation.setOption(StandardSocketOptions.SO_REUSEADDR, false);
+			reservation.bind(new InetSocketAddress(port));
+		} catch (IOException e) {
+			reservation.close();
+			BindException be = new BindException("Address already in use: tcp port " + port);
+			be.initCause(e);
+			throw be;
+		}
+		return reservation;
+	}
+
+	private static TransportListener _listen(int port, SocketChannel reservation) throws IOException {
+		File file = socketFile(port);
+		if ( file.exists() ) {
+			if ( _isListening(file) ) throw new BindException("Address already in use: " + file);
+			Log.w(TAG, "Removing stale socket file " + file);
+			file.delete();
+		}
+		ServerSocketChannel channel = ServerSocketChannel.open(StandardProtocolFamily.UNIX);
+		try {
+			channel.bind(UnixDomainSocketAddress.of(file.toPath()));
+			channel.configureBlocking(false);
+		} catch (IOException e) {
+			channel.close();
+			if ( e instanceof BindException ) throw e;
+			BindException be = new BindException("Can't bind to " + file + ": " + e.getMessage());
+			be.initCause(e);
+			throw be;
+		}
+		file.deleteOnExit();
+		return new UnixListener(channel, port, file, reservation);
+	}
+
+	@Override
+	public TransportConnection connect(String host, int port) throws IOException {
+		File file = socketFile(port);
+		if ( !isLocal(host) || !file.exists() ) return TCPTransport.theTCPTransport().connect(host, port);
+		SocketChannel channel;
+		try {
+			channel = SocketChannel.open(UnixDomainSocketAddress.of(file.toPath()));
+		} catch (IOException e) {
+			// left behind by a listener that didn't close; whoever has the port now is on TCP
+			return TCPTransport.theTCPTransport().connect(host, port);
+		}
+		return new UnixConnection(channel, "unix:" + file);
+	}
+
+	private static boolean _isListening(File file) {
+		try {
+			SocketChannel.open(UnixDomainSocketAddress.of(file.toPath())).close();
+			return true;
+		} catch (IOException e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Waits on selector until channel is ready for the operation it's registered for.
+	 * @param timeout In msec.; 0 means forever.
+	 * @throws SocketTimeoutException The timeout expired first.
+	 * @throws SocketException The channel was closed.
+	 */
+	private static void _await(SelectableChannel channel, Selector selector, int timeout) throws IOException {
+		try {
+			long deadline = timeout > 0 ? System.currentTimeMillis() + timeout : 0;
+			while ( true ) {
+				if ( !channel.isOpen() ) throw new SocketException("Socket closed");
+				long wait = 0;
+				if ( deadline > 0 ) {
+					wait = deadline - System.currentTimeMillis();
+					if ( wait <= 0 ) throw new SocketTimeoutException("Timed out");
+				}
+				int n = selector.select(wait);
+				selector.selectedKeys().clear();
+				if ( n > 0 ) return;
+			}
+		} catch (ClosedSelectorException e) {
+			throw new SocketException("Socket closed");
+		}
+	}
+
+	private static class UnixListener implements TransportListener {
+		private ServerSocketChannel mChannel;
+		private Selector mSelector;
+		private int mPort;
+		private File mFile;
+		private SocketChannel mReservation;     // holds the TCP port while the listener is open
+		private int mTimeout;
+
+		UnixListener(ServerSocketChannel channel, int port, File file, SocketChannel reservation) throws IOException {
+			mChannel = channel;
+			mReservation = reservation;
+			mSelector = Selector.open();
+			mChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+			mPort = port;
+			mFile = file;
+			mTimeout = 0;
+		}
+
+		@Override
+		public TransportConnection accept() throws IOException {
+			while ( true ) {
+				SocketChannel channel = mChannel.accept();
+				if ( channel != null ) return new UnixConnection(channel, "unix-client:" + mFile.getName());
+				_await(mChannel, mSelector, mTimeout);
+			}
+		}
+
+		@Override
+		public void setAcceptTimeout(int timeout) {
+			mTimeout = timeout;
+		}
+
+		@Override
+		public int localPort() {
+			return mPort;
+		}
+
+		@Override
+		public String localAddress() {
+			return "unix:" + mFile;
+		}
+
+		@Override
+		public void close() throws IOException {
+			mChannel.close();
+			mSelector.close();
+			mFile.delete();
+			mReservation.close();
+		}
+
+		@Override
+		public String toString() {
+			return "UnixListener[" + localAddress() + "]";
+		}
+	}
+
+	private static class UnixConnection implements TransportConnection {
+		private SocketChannel mChannel;
+		private String mRemote;
+		private Selector mReadSelector;
+		private Selector mWriteSelector;
+		private int mTimeout;
+		private InputStream mIn;
+		private OutputStream mOut;
+
+		UnixConnection(SocketChannel channel, String remote) throws IOException {
+			mChannel = channel;
+			mRemote = remote;
+			mChannel.configureBlocking(false);
+			mChannel.setOption(StandardSocketOptions.SO_SNDBUF, SOCKET_BUFFER_SIZE);
+			mChannel.setOption(StandardSocketOptions.SO_RCVBUF, SOCKET_BUFFER_SIZE);
+			mReadSelector = Selector.open();
+			mChannel.register(mReadSelector, SelectionKey.OP_READ);
+			mWriteSelector = Selector.open();
+			mChannel.register(mWriteSelector, SelectionKey.OP_WRITE);
+			mTimeout = 0;
+
+			mIn = new InputStream() {
+				@Override
+				public int read() throws IOException {
+					byte[] b = new byte[1];
+					return read(b, 0, 1) < 0 ? -1 : (b[0] & 0xff);
+				}
+				@Override
+				public int read(byte[] b, int off, int len) throws IOException {
+					if ( len == 0 ) return 0;
+					ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+					while ( true ) {
+						int n = mChannel.read(buf);
+						if ( n != 0 ) return n;
+						_await(mChannel, mReadSelector, mTimeout);
+					}
+				}
+				@Override
+				public void close() throws IOException {
+					UnixConnection.this.close();
+				}
+			};
+			mOut = new OutputStream() {
+				@Override
+				public void write(int b) throws IOException {
+					write(new byte[] { (byte)b }, 0, 1);
+				}
+				@Override
+				public void write(byte[] b, int off, int len) throws IOException {
+					ByteBuffer buf = ByteBuffer.wrap(b, off, len);
+					while ( buf.hasRemaining() ) {
+						if ( mChannel.write(buf) == 0 ) _await(mChannel, mWriteSelector, 0);
+					}
+				}
+				@Override
+				public void close() throws IOException {
+					UnixConnection.this.close();
+				}
+			};
+		}
+
+		@Override
+		public InputStream getInputStream() {
+			return mIn;
+		}
+
+		@Override
+		public OutputStream getOutputStream() {
+			return mOut;
+		}
+
+		@Override
+		public void setTimeout(int timeout) {
+			mTimeout = timeout;
+		}
+
+		/**
+		 * There's no Nagle algorithm to turn off.
+		 */
+		@Override
+		public void setNoDelay(boolean value) {
+		}
+
+		@Override
+		public String remoteAddress() {
+			return mRemote;
+		}
+
+		@Override
+		public boolean isClosed() {
+			return !mChannel.isOpen();
+		}
+
+		@Override
+		public void close() throws IOException {
+			mChannel.close();
+			mReadSelector.close();
+			mWriteSelector.close();
+		}
+
+		@Override
+		public String toString() {
+			return "UnixConnection[" + mRemote + "]";
+		}
+	}
+}
@@ -41,7 +41,7 @@ public class DataXferRPCService extends DataXferServiceBase {
 		// Set up the method descriptor variable to refer to this->_echo()
 		xfer = new RPCCallableMethod(this, "_xfer");
 		// Register the method with the RPC service as externally invocable method "echo"
-		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", xfer );
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "dataxfer", xfer, RPCService.Priority.LOW );
 	}
 	
 	/**
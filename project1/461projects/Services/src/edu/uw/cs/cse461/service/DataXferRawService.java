@@ -1,17 +1,23 @@
 package edu.uw.cs.cse461.service;
 
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
 import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 import java.util.*;
+import java.util.concurrent.locks.LockSupport;
 
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetRuntime;
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -36,8 +42,11 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
  
 	private int mBasePort;
 
-	private List<ServerSocket> mServerSocket;
-	private List<DatagramSocket> mDatagramSocket;
+	private static final long UDP_SEND_RETRY_NANOS = 50000;
+
+	private List<TransportListener> mListeners;
+	private List<DatagramChannel> mDatagramChannels;
+	private ConnectionExecutor[] mExecutors;    // serve accepted TCP connections, one per port; see net.threading
 	
 	public DataXferRawService() throws Exception {
 		super("dataxferraw");
@@ -60,8 +69,9 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		// Instead, ephemeral ports are used.  (You can run the dumpservericestate application
 		// to see ports are actually allocated.)
 		
-		mServerSocket = new ArrayList<ServerSocket>();
-		mDatagramSocket = new ArrayList<DatagramSocket>();
+		mListeners = new ArrayList<TransportListener>();
+		mDatagramChannels = new ArrayList<DatagramChannel>();
+		mExecutors = new ConnectionExecutor[NPORTS];
 		
 		/*
 		 * Create two sockets for each port, one for UDP and one for TCP. 
@@ -69,143 +79,140 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		int port = FIRST_PORT;
 		for(int i = 0; i < NPORTS; i++)
 		{
-			ServerSocket server = new ServerSocket();
-			server.bind(new InetSocketAddress(serverIP, port));
-			server.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-			
-			mServerSocket.add(server);
+			TransportListener server = TCPTransport.theTCPTransport().listen(serverIP, port);
+			mListeners.add(server);
 			
-			DatagramSocket datagram = new DatagramSocket(new InetSocketAddress(serverIP, port));
-			datagram.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-			
-			mDatagramSocket.add(datagram);
+			DatagramChannel datagram = DatagramChannel.open();
+			datagram.bind(new InetSocketAddress(serverIP, port));
+			mDatagramChannels.add(datagram);
 			
 			port++;
 		
-			Log.i(TAG,  "Server socket = " + server.getLocalSocketAddress());
-			Log.i(TAG,  "Datagram socket = " + datagram.getLocalSocketAddress());
+			Log.i(TAG,  "Server socket = " + server.localAddress());
+			Log.i(TAG,  "Datagram socket = " + datagram.socket().getLocalSocketAddress());
 			
-			//fork threads to listen on these sockets
-			startUdpThread(i);
-			startTcpThread(i);
+			// hand the sockets to the NetRuntime
+			mExecutors[i] = ConnectionExecutor.fromConfig(TAG + "-" + XFERSIZE[i]);
+			startUdp(i);
+			startTcp(i);
 		}
 	}
 
 	/*
-	 * Start a thread to listen for UDP messages on socket mDatagramSocket.get(i)
-	 * @param i : Index in mDatagramSocket array to look for socket to use
+	 * Registers mDatagramChannels.get(i) with a NetRuntime event loop.  Each request that arrives
+	 * is answered by a worker thread, since sending the response may have to wait for buffer space.
+	 * @param i : Index in mDatagramChannels to look for socket to use
 	 */
-	private void startUdpThread(final int i)
+	private void startUdp(final int i) throws IOException
 	{
-		// Code/thread handling the UDP socket
-		Thread dgramThread = new Thread() {
-			public void run() {
-				byte buf[] = null;
-				DatagramPacket packet = null;
-
-				//	Thread termination in this code is primitive.  When shutdown() is called (by the
-				//	application's main thread, so asynchronously to the threads just mentioned) it
-				//	closes the sockets.  This causes an exception on any thread trying to read from
-				//	it, which is what provokes thread termination.
+		final DatagramChannel channel = mDatagramChannels.get(i);
+		final NetRuntime runtime = NetBase.theNetBase().runtime();
+		//	Termination is simple: shutdown() closes the channel, which takes it out of the event loop,
+		//	and makes any response being sent fail.
+		runtime.register(channel, SelectionKey.OP_READ, new NetRuntime.ChannelHandler() {
+			public void ready(SelectionKey key) throws Exception {
+				ByteBuffer buf = ByteBuffer.allocate(HEADER_STR.length());
+				final SocketAddress from;
+				if ( (from = channel.receive(buf)) == null ) return;
 				try {
-					while ( !mAmShutdown ) {
-						try {
-							buf = new byte[HEADER_STR.length()];
-							packet = new DatagramPacket(buf, buf.length);
-							
-							mDatagramSocket.get(i).receive(packet);
-							if ( packet.getLength() < HEADER_STR.length() )
-								throw new Exception("Bad header: length = " + packet.getLength());
-							String headerStr = new String( buf, 0, HEADER_STR.length() );
-							if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
-
-							int response_length = XFERSIZE[i];
-							
-							while (response_length > 0) {
-								int bytes_to_send = Math.min(response_length, 1000);
-								response_length -= bytes_to_send;
-								buf = new byte[RESPONSE_OKAY_STR.length() + bytes_to_send];
-								System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, HEADER_STR.length());
-								
-								mDatagramSocket.get(i).send(new DatagramPacket(buf, buf.length, packet.getAddress(), packet.getPort()));
-							}
-							
-						} catch (SocketTimeoutException e) {
-							// socket timeout is normal
-						} catch (Exception e) {
-							Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					if ( buf.position() < HEADER_STR.length() )
+						throw new Exception("Bad header: length = " + buf.position());
+					String headerStr = new String( buf.array(), 0, HEADER_STR.length() );
+					if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
+						throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
+					runtime.execute(new Runnable() {
+						public void run() {
+							_sendUdp(channel, from, XFERSIZE[i]);
 						}
-					}
-				} finally {
-					if ( mDatagramSocket != null ) { mDatagramSocket.get(i).close(); mDatagramSocket = null; }
+					});
+				} catch (Exception e) {
+					Log.w(TAG,  "Dgram handler caught " + e.getClass().getName() + " exception: " + e.getMessage());
 				}
 			}
-		};
-		dgramThread.start();
+		});
 	}
 	
 	/*
-	 * Start a thread to listen for TCP messages on socket mServerSocket.get(i)
-	 * @param i : Index in mServerSocket array to look for socket to use
+	 * Sends xferSize bytes to a UDP client, in datagrams of at most 1000 bytes each, plus header.
 	 */
-	private void startTcpThread(final int i)
+	private void _sendUdp(DatagramChannel channel, SocketAddress to, int xferSize)
 	{
-		// Code/thread handling the TCP socket
-		Thread tcpThread = new Thread() {
+		try {
+			int response_length = xferSize;
+			
+			while (response_length > 0) {
+				int bytes_to_send = Math.min(response_length, 1000);
+				response_length -= bytes_to_send;
+				ByteBuffer buf = ByteBuffer.allocate(RESPONSE_OKAY_STR.length() + bytes_to_send);
+				buf.put(RESPONSE_OKAY_STR.getBytes()).clear();
+				
+				// the channel is non-blocking, so wait for room in the socket's send buffer
+				while ( channel.send(buf, to) == 0 ) LockSupport.parkNanos(UDP_SEND_RETRY_NANOS);
+			}
+		} catch (Exception e) {
+			Log.w(TAG,  "Dgram sender caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		}
+	}
 	
-			public void run() {
-				byte[] header = new byte[4];
-				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
-				try {
-					while ( !isShutdown() ) {
-						Socket sock = null;
-						try {
-							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
-							// with that client.  That socket is returned.
-							sock = mServerSocket.get(i).accept();
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-
-							int response_length = XFERSIZE[i];
-							
-							//Write back the data to the client
-							while(response_length > 0)
-							{
-								int bytes_to_send = Math.min(response_length, 1024);
-								response_length -= bytes_to_send;
-								os.write(buf, 0, bytes_to_send);
-							}
-							
-						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
-						}
+	/*
+	 * Has the NetRuntime accept TCP connections on mListeners.get(i).  Each is served by the thread
+	 * net.threading calls for.
+	 * @param i : Index in mListeners to look for socket to use
+	 */
+	private void startTcp(final int i) throws IOException
+	{
+		NetBase.theNetBase().runtime().accept(mListeners.get(i), new NetRuntime.AcceptHandler() {
+			public void accepted(final TransportConnection sock) throws Exception {
+				mExecutors[i].execute(new Runnable() {
+					public void run() {
+						_serveTcp(sock, XFERSIZE[i]);
 					}
-				} catch (Exception e) {
-					Log.w(TAG, "TCP server thread exiting due to exception: " + e.getMessage());
-				} finally {
-					if ( mServerSocket != null ) try { mServerSocket.get(i).close(); mServerSocket = null; } catch (Exception e) {};
-				}
+				});
+			}
+		}, TAG);
+	}
+	
+	/*
+	 * Sends one TCP client xferSize bytes.
+	 */
+	private void _serveTcp(TransportConnection sock, int xferSize)
+	{
+		byte[] header = new byte[4];
+		byte[] buf = new byte[1024];
+		int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+		try {
+			// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setTimeout(socketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
+			// spec, admittedly.)
+			int len = is.read(header);
+			if ( len != HEADER_STR.length() )
+				throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+			String headerStr = new String(header); 
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			os.write(RESPONSE_OKAY_STR.getBytes());
+
+			int response_length = xferSize;
+			
+			//Write back the data to the client
+			while(response_length > 0)
+			{
+				int bytes_to_send = Math.min(response_length, 1024);
+				response_length -= bytes_to_send;
+				os.write(buf, 0, bytes_to_send);
 			}
-		};
-		tcpThread.start();
+			
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
 	}
 	
 	/**
@@ -219,6 +226,8 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 	@Override
 	public void shutdown() {
 		super.shutdown();
+		for ( TransportListener listener : mListeners ) try { listener.close(); } catch (Exception e) {}
+		for ( DatagramChannel channel : mDatagramChannels ) try { channel.close(); } catch (Exception e) {}
 		Log.d(TAG, "Shutting down");
 	}
 	
@@ -235,11 +244,12 @@ public class DataXferRawService extends DataXferServiceBase implements NetLoadab
 		for(int i = 0; i < NPORTS; i++)
 		{
 			sb.append("\nListening on:\n\tTCP: ");
-			if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+			if ( !mAmShutdown ) sb.append(mListeners.get(i).toString());
 			else sb.append("Not listening");
 			sb.append("\n\tUDP: ");
-			if ( mDatagramSocket != null ) sb.append(mDatagramSocket.get(i).getLocalSocketAddress());
+			if ( mDatagramChannels.get(i).isOpen() ) sb.append(mDatagramChannels.get(i).socket().getLocalSocketAddress());
 			else sb.append("Not listening");
+			sb.append("\n\t").append(mExecutors[i]);
 		}
 		return sb.toString();	
 	}
@@ -5,18 +5,22 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.net.DatagramSocket;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
 import java.util.ArrayList;
 
 import org.json.JSONObject;
 
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetRuntime;
 import edu.uw.cs.cse461.net.base.NetLoadableInterface.NetLoadableServiceInterface;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
 import edu.uw.cs.cse461.util.ConfigManager;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
@@ -24,7 +28,17 @@ import edu.uw.cs.cse461.util.Log;
 public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 	private static final String TAG="DataXferTCPMessageHandlerService";
 	
-	private ServerSocket mServerSocket;
+	private TransportListener mListener;    // see tcpmessagehandler.transport
+	
+	// serves accepted connections; see net.threading
+	private ConnectionExecutor mExecutor;
+	
+	// traffic on the connections this service has closed
+	private TCPMessageHandlerStats mConnectionStats = new TCPMessageHandlerStats();
+	
+	// The transfer payload is all zeros, so every message is sent from this one array, which
+	// grows to the largest message size needed.  It is only ever read, so connections can share it.
+	private volatile byte[] mZeros = new byte[0];
 	
 	public DataXferTCPMessageHandlerService() throws Exception {
 		super("DataXferTCPMessageHandlerService");
@@ -32,69 +46,71 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 		ConfigManager config = NetBase.theNetBase().config();
 		String serverIP = IPFinder.localIP();
 		int basePort = config.getAsInt("dataxferraw.server.baseport", 0);
-		mServerSocket = new ServerSocket();
-		InetSocketAddress addr = new InetSocketAddress(serverIP, (basePort + 1000));
-		mServerSocket.bind(addr);
-		mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		mListener = Transport.fromConfig("tcpmessagehandler.transport").listen(serverIP, basePort + 1000);
+
+		mExecutor = ConnectionExecutor.fromConfig(TAG);
 
-		Thread tcpThread = new Thread() {
-			public void run() {
-				try {
-					while (!mAmShutdown) {
-						Socket sock = null;
-						try {
-							sock = mServerSocket.accept();
-							
-							TCPMessageHandler socket = null;
-							try {
-								socket = new TCPMessageHandler(sock);
-				
-								String headerstr = socket.readMessageAsString();
-				
-								if(!headerstr.equalsIgnoreCase("XFER")) {
-									throw new Exception("Bad header string. Expected: XFER, received: " + headerstr);
-								}
-										
-								JSONObject json = socket.readMessageAsJSONObject();
-								int xfer_size = (Integer) json.get("transferSize");
-										
-								socket.sendMessage("OKAY");
-										
-								while(xfer_size > 0) {
-										//	System.out.println("xfer_size: " + xfer_size);
-									int msg_size = Math.min(xfer_size, socket.getMaxReadLength());
-									byte buf[] = new byte[msg_size];
-									socket.sendMessage(buf);
-									xfer_size -= msg_size;
-								}
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( socket != null ) try { socket.close(); } catch (Exception e) {}
-							}
-						} catch (SocketTimeoutException e) {
-							// this is normal.  Just loop back and see if we're terminating.
-						}
+		// connections are accepted by the NetRuntime, and served as net.threading says
+		NetBase.theNetBase().runtime().accept(mListener, new NetRuntime.AcceptHandler() {
+			public void accepted(final TransportConnection sock) throws Exception {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						_serve(sock);
 					}
-				} catch (Exception e) {
-					Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
-					System.out.println(e.getMessage());
-				} finally {
-					//System.out.println("CLOSE!");
-					if ( mServerSocket != null )  try { mServerSocket.close(); } catch (Exception e) {}
-					mServerSocket = null;
-				}
+				});
 			}
-		};
-		tcpThread.start();
+		}, TAG);
 	
 	}
 	
+	/**
+	 * Performs one transfer on a connection.  Runs on whatever thread net.threading calls for.
+	 */
+	private void _serve(TransportConnection sock) {
+		TCPMessageHandler socket = null;
+		try {
+			socket = new TCPMessageHandler(sock);
+
+			String headerstr = socket.readMessageAsString();
+
+			if(!headerstr.equalsIgnoreCase("XFER")) {
+				throw new Exception("Bad header string. Expected: XFER, received: " + headerstr);
+			}
+					
+			JSONObject json = socket.readMessageAsJSONObject();
+			int xfer_size = (Integer) json.get("transferSize");
+					
+			socket.sendMessage("OKAY");
+					
+			int max_msg_size = Math.min(xfer_size, socket.getMaxReadLength());
+			// other connections may be replacing mZeros concurrently, so work with one array
+			byte[] zeroArray = mZeros;
+			if ( zeroArray.length < max_msg_size ) mZeros = zeroArray = new byte[max_msg_size];
+			ByteBuffer zeros = ByteBuffer.wrap(zeroArray);
+			while(xfer_size > 0) {
+					//	System.out.println("xfer_size: " + xfer_size);
+				int msg_size = Math.min(xfer_size, max_msg_size);
+				zeros.clear().limit(msg_size);
+				socket.sendMessage(zeros);
+				xfer_size -= msg_size;
+			}
+		} catch (SocketTimeoutException e) {
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (Exception e) {
+			Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( socket != null ) {
+				try { socket.close(); } catch (Exception e) {}
+				mConnectionStats.add(socket.getStats(), sock.remoteAddress());
+			} else {
+				try { sock.close(); } catch (Exception e) {}
+			}
+		}
+	}
+	
 	/**
 	 * This method is called when the entire infrastructure
 	 * wants to terminate.  We set a flag indicating all threads
@@ -106,9 +122,9 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 	@Override
 	public void shutdown() {
 		super.shutdown();
-		if(mServerSocket != null) {
+		if(mListener != null) {
 			try {
-				mServerSocket.close();
+				mListener.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -124,7 +140,13 @@ public class DataXferTCPMessageHandlerService extends DataXferServiceBase {
 	@Override
 	public String dumpState()
 	{
-		return null;
+		StringBuilder sb = new StringBuilder(super.dumpState());
+		sb.append("\nListening on: ");
+		if ( mListener != null ) sb.append(mListener.toString());
+		sb.append("\n").append(mExecutor);
+		sb.append("\nClosed connections:\n");
+		sb.append(mConnectionStats);
+		return sb.toString();
 	}
 
 }
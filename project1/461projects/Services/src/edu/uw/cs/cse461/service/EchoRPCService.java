@@ -64,7 +64,7 @@ public class EchoRPCService extends EchoServiceBase  {
 		// Set up the method descriptor variable to refer to this->_echo()
 		echo = new RPCCallableMethod(this, "_echo");
 		// Register the method with the RPC service as externally invocable method "echo"
-		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "echo", echo );
+		((RPCService)NetBase.theNetBase().getService("rpc")).registerHandler(loadablename(), "echo", echo, RPCService.Priority.HIGH );
 	}
 	
 	/**
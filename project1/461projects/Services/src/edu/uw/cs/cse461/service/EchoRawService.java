@@ -2,14 +2,19 @@ package edu.uw.cs.cse461.service;
 
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.net.DatagramPacket;
-import java.net.DatagramSocket;
 import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
+import java.net.SocketAddress;
 import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
 
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetRuntime;
+import edu.uw.cs.cse461.net.transport.TCPTransport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -21,16 +26,17 @@ import edu.uw.cs.cse461.util.Log;
 public class EchoRawService extends EchoServiceBase  {
 	private static final String TAG="EchoRawService";
 	
-	private ServerSocket mServerSocket;
-	private DatagramSocket mDatagramSocket;
+	private TransportListener mListener;
+	private DatagramChannel mDatagramChannel;
+	private ConnectionExecutor mExecutor;    // serves accepted TCP connections; see net.threading
 	
 	/**
 	 * A NetLoadableService must provide a public constructor taking no arguments.
 	 * <p>
 	 * This service must listen to both a UDP and a TCP port.  It creates sockets
-	 * bound to those ports in this constructor.  It also creates a thread per socket -
-	 * the thread blocks trying to receive data on its socket, and when it does,
-	 * echoes back whatever it receives. 
+	 * bound to those ports in this constructor, and hands them to the NetRuntime,
+	 * which calls back when data or a connection arrives.  Datagrams are echoed
+	 * right away; TCP connections are echoed until the client closes them.
 	 * @throws Exception
 	 */
 	public EchoRawService() throws Exception {
@@ -48,99 +54,88 @@ public class EchoRawService extends EchoServiceBase  {
 		// Instead, ephemeral ports are used.  (You can run the dumpservericestate application
 		// to see ports are actually allocated.)
 				
-		mServerSocket = new ServerSocket();
-		mServerSocket.bind(new InetSocketAddress(serverIP, 0));
-		mServerSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		mListener = TCPTransport.theTCPTransport().listen(serverIP, 0);
 		
-		mDatagramSocket = new DatagramSocket(new InetSocketAddress(serverIP, 0));
-		mDatagramSocket.setSoTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
+		mDatagramChannel = DatagramChannel.open();
+		mDatagramChannel.bind(new InetSocketAddress(serverIP, 0));
 		
-		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
-		Log.i(TAG,  "Datagram socket = " + mDatagramSocket.getLocalSocketAddress());
+		Log.i(TAG,  "Server socket = " + mListener.localAddress());
+		Log.i(TAG,  "Datagram socket = " + mDatagramChannel.socket().getLocalSocketAddress());
 		
-		// Code/thread handling the UDP socket
-		Thread dgramThread = new Thread() {
-								public void run() {
-									byte buf[] = new byte[64*1024];
-									DatagramPacket packet = new DatagramPacket(buf, buf.length);
-
-									//	Thread termination in this code is primitive.  When shutdown() is called (by the
-									//	application's main thread, so asynchronously to the threads just mentioned) it
-									//	closes the sockets.  This causes an exception on any thread trying to read from
-									//	it, which is what provokes thread termination.
-									try {
-										while ( !mAmShutdown ) {
-											try {
-												mDatagramSocket.receive(packet);
-												if ( packet.getLength() < HEADER_STR.length() )
-													throw new Exception("Bad header: length = " + packet.getLength());
-												String headerStr = new String( buf, 0, HEADER_STR.length() );
-												if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
-													throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
-												System.arraycopy(RESPONSE_OKAY_STR.getBytes(), 0, buf, 0, HEADER_STR.length());
-												mDatagramSocket.send( new DatagramPacket(buf, packet.getLength(), packet.getAddress(), packet.getPort()));
-											} catch (SocketTimeoutException e) {
-												// socket timeout is normal
-											} catch (Exception e) {
-												Log.w(TAG,  "Dgram reading thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-											}
-										}
-									} finally {
-										if ( mDatagramSocket != null ) { mDatagramSocket.close(); mDatagramSocket = null; }
-									}
-								}
-		};
-		dgramThread.start();
-		
-		// Code/thread handling the TCP socket
-		Thread tcpThread = new Thread() {
-
-			public void run() {
-				byte[] header = new byte[4];
-				byte[] buf = new byte[1024];
-				int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
-				try {
-					while ( !isShutdown() ) {
-						Socket sock = null;
-						try {
-							// accept() blocks until a client connects.  When it does, a new socket is created that communicates only
-							// with that client.  That socket is returned.
-							sock = mServerSocket.accept();
-							// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
-							// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
-							sock.setSoTimeout(socketTimeout);
-							InputStream is = sock.getInputStream();
-							OutputStream os = sock.getOutputStream();
-							// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
-							// spec, admittedly.)
-							int len = is.read(header);
-							if ( len != HEADER_STR.length() )
-								throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
-							String headerStr = new String(header); 
-							if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
-								throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
-							os.write(RESPONSE_OKAY_STR.getBytes());
-							
-							// Now read and echo the payload.
-							// Keep reading until the client has closed its side of the connection
-							while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
-							
-						} catch (SocketTimeoutException e) {
-							// normal behavior, but we're done with the client we were talking with
-						} catch (Exception e) {
-							Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
-						} finally {
-							if ( sock != null ) try { sock.close(); sock = null;} catch (Exception e) {}
-						}
+		// The UDP socket is watched by a NetRuntime event loop, which echoes each datagram as it arrives.
+		//	Termination is simple: shutdown() closes the channel, which takes it out of the event loop.
+		NetRuntime runtime = NetBase.theNetBase().runtime();
+		runtime.register(mDatagramChannel, SelectionKey.OP_READ, new NetRuntime.ChannelHandler() {
+			private ByteBuffer buf = ByteBuffer.allocate(64*1024);
+			public void ready(SelectionKey key) throws Exception {
+				SocketAddress from;
+				while ( (from = mDatagramChannel.receive(buf)) != null ) {
+					try {
+						buf.flip();
+						if ( buf.remaining() < HEADER_STR.length() )
+							throw new Exception("Bad header: length = " + buf.remaining());
+						String headerStr = new String( buf.array(), 0, HEADER_STR.length() );
+						if ( ! headerStr.equalsIgnoreCase(HEADER_STR) )
+							throw new Exception("Bad header: got '" + headerStr + "', wanted '" + HEADER_STR + "'");
+						buf.put(0, RESPONSE_OKAY_STR.getBytes(), 0, HEADER_STR.length());
+						// if the socket's send buffer is full the echo is dropped, as a datagram may be anyway
+						mDatagramChannel.send(buf, from);
+					} catch (Exception e) {
+						Log.w(TAG,  "Dgram handler caught " + e.getClass().getName() + " exception: " + e.getMessage());
+					} finally {
+						buf.clear();
 					}
-				} catch (Exception e) {
-					Log.w(TAG, "TCP server thread exiting due to exception: " + e.getMessage());
-				} finally {
-					if ( mServerSocket != null ) try { mServerSocket.close(); mServerSocket = null; } catch (Exception e) {}
 				}
 			}
-		};
-		tcpThread.start();
+		});
+		
+		// TCP connections are accepted by the NetRuntime, and each is served by the thread net.threading calls for.
+		mExecutor = ConnectionExecutor.fromConfig(TAG);
+		runtime.accept(mListener, new NetRuntime.AcceptHandler() {
+			public void accepted(final TransportConnection sock) throws Exception {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						_serveTcp(sock);
+					}
+				});
+			}
+		}, TAG);
+	}
+	
+	/**
+	 * Echoes one TCP client's data until it closes its side of the connection.
+	 */
+	private void _serveTcp(TransportConnection sock) {
+		byte[] header = new byte[4];
+		byte[] buf = new byte[1024];
+		int socketTimeout = NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000);
+		try {
+			// We're going to read from sock, to get the message to echo, but we can't risk a client mistake
+			// blocking us forever.  So, arrange for the socket to give up if no data arrives for a while.
+			sock.setTimeout(socketTimeout);
+			InputStream is = sock.getInputStream();
+			OutputStream os = sock.getOutputStream();
+			// Read the header.  Either it gets here in one chunk or we ignore it.  (That's not exactly the
+			// spec, admittedly.)
+			int len = is.read(header);
+			if ( len != HEADER_STR.length() )
+				throw new Exception("Bad header length: got " + len + " but wanted " + HEADER_STR.length());
+			String headerStr = new String(header); 
+			if ( !headerStr.equalsIgnoreCase(HEADER_STR) )
+				throw new Exception("Bad header: got '" + headerStr + "' but wanted '" + HEADER_STR + "'");
+			os.write(RESPONSE_OKAY_STR.getBytes());
+			
+			// Now read and echo the payload.
+			// Keep reading until the client has closed its side of the connection
+			while ( (len = is.read(buf)) >= 0 ) os.write(buf, 0, len);
+			
+		} catch (SocketTimeoutException e) {
+			// normal behavior, but we're done with the client we were talking with
+		} catch (Exception e) {
+			Log.i(TAG, "TCP thread caught " + e.getClass().getName() + " exception: " + e.getMessage());
+		} finally {
+			try { sock.close(); } catch (Exception e) {}
+		}
 	}
 
 	
@@ -155,6 +150,8 @@ public class EchoRawService extends EchoServiceBase  {
 	@Override
 	public void shutdown() {
 		super.shutdown();
+		if ( mListener != null ) try { mListener.close(); mListener = null; } catch (Exception e) {}
+		if ( mDatagramChannel != null ) try { mDatagramChannel.close(); mDatagramChannel = null; } catch (Exception e) {}
 		Log.d(TAG, "Shutting down");
 	}
 	
@@ -166,11 +163,12 @@ public class EchoRawService extends EchoServiceBase  {
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
 		sb.append("\nListening on:\n\tTCP: ");
-		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
+		if ( mListener != null ) sb.append(mListener.toString());
 		else sb.append("Not listening");
 		sb.append("\n\tUDP: ");
-		if ( mDatagramSocket != null ) sb.append(mDatagramSocket.getLocalSocketAddress());
+		if ( mDatagramChannel != null ) sb.append(mDatagramChannel.socket().getLocalSocketAddress());
 		else sb.append("Not listening");
+		sb.append("\n").append(mExecutor);
 		return sb.toString();
 	}
 
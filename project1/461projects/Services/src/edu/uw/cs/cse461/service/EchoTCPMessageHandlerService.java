@@ -2,13 +2,16 @@ package edu.uw.cs.cse461.service;
 
 import java.io.EOFException;
 import java.io.IOException;
-import java.net.InetSocketAddress;
-import java.net.ServerSocket;
-import java.net.Socket;
 import java.net.SocketTimeoutException;
 
+import edu.uw.cs.cse461.net.base.ConnectionExecutor;
 import edu.uw.cs.cse461.net.base.NetBase;
+import edu.uw.cs.cse461.net.base.NetRuntime;
 import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandler;
+import edu.uw.cs.cse461.net.tcpmessagehandler.TCPMessageHandlerStats;
+import edu.uw.cs.cse461.net.transport.Transport;
+import edu.uw.cs.cse461.net.transport.TransportConnection;
+import edu.uw.cs.cse461.net.transport.TransportListener;
 import edu.uw.cs.cse461.util.IPFinder;
 import edu.uw.cs.cse461.util.Log;
 
@@ -20,66 +23,78 @@ import edu.uw.cs.cse461.util.Log;
 public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 	private static final String TAG="EchoTCPMessageHandlerService";
 	
-	private ServerSocket mServerSocket;
+	private TransportListener mListener;    // see tcpmessagehandler.transport
+	
+	// serves accepted connections; see net.threading
+	private ConnectionExecutor mExecutor;
+	
+	// traffic on the connections this service has closed
+	private TCPMessageHandlerStats mConnectionStats = new TCPMessageHandlerStats();
 	
 	public EchoTCPMessageHandlerService() throws Exception {
 		super("echotcpmessagehandler");
 		String serverIP = IPFinder.localIP();
 		int tcpPort = 0;
-		mServerSocket = new ServerSocket();
-		mServerSocket.bind(new InetSocketAddress(serverIP, tcpPort));
-		mServerSocket.setSoTimeout( NetBase.theNetBase().config().getAsInt("net.timeout.granularity", 500));
-		Log.i(TAG,  "Server socket = " + mServerSocket.getLocalSocketAddress());
+		mListener = Transport.fromConfig("tcpmessagehandler.transport").listen(serverIP, tcpPort);
+		Log.i(TAG,  "Server socket = " + mListener.localAddress());
 
 		
-		Thread tcpThread = new Thread() {
-			public void run() {
-				try {
-					while ( !mAmShutdown ) {
-						Socket sock = null;
-						try {
-							sock = mServerSocket.accept();  // if this fails, we want out of the while loop...
-							// should really spawn a thread here, but the code is already complicated enough that we don't bother
-							TCPMessageHandler tcpMessageHandlerSocket = null;
-							try {
-								// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
-								// because it has timed out on the read
-								while ( true ) {
-									tcpMessageHandlerSocket = new TCPMessageHandler(sock);
-									tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
-									tcpMessageHandlerSocket.setNoDelay(true);
-									
-									String header = tcpMessageHandlerSocket.readMessageAsString();
-									if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
-										throw new Exception("Bad header: '" + header + "'");
-									String msg = tcpMessageHandlerSocket.readMessageAsString();
-									// now respond
-									tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
-									tcpMessageHandlerSocket.sendMessage(msg);
-								}
-							} catch (SocketTimeoutException e) {
-								Log.e(TAG, "Timed out waiting for data on tcp connection");
-							} catch (EOFException e) {
-								// normal termination of loop
-								Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
-							} catch (Exception e) {
-								Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
-							} finally {
-								if ( tcpMessageHandlerSocket != null ) try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
-							}
-						} catch (SocketTimeoutException e) {
-							// this is normal.  Just loop back and see if we're terminating.
-						}
+		mExecutor = ConnectionExecutor.fromConfig(TAG);
+		
+		// connections are accepted by the NetRuntime, and served as net.threading says
+		NetBase.theNetBase().runtime().accept(mListener, new NetRuntime.AcceptHandler() {
+			public void accepted(final TransportConnection sock) throws Exception {
+				mExecutor.execute(new Runnable() {
+					public void run() {
+						_serve(sock);
 					}
-				} catch (Exception e) {
-					Log.w(TAG, "Server thread exiting due to exception: " + e.getMessage());
-				} finally {
-					if ( mServerSocket != null )  try { mServerSocket.close(); } catch (Exception e) {}
-					mServerSocket = null;
-				}
+				});
 			}
-		};
-		tcpThread.start();
+		}, TAG);
+	}
+	
+	/**
+	 * Echoes messages on one connection until the client closes it or goes quiet.
+	 * Runs on whatever thread net.threading calls for.
+	 */
+	private void _serve(TransportConnection sock) {
+		TCPMessageHandler tcpMessageHandlerSocket = null;
+		try {
+			// one handler for the life of the connection -- it buffers reads, so it may already hold
+			// the start of the client's next message
+			tcpMessageHandlerSocket = new TCPMessageHandler(sock);
+			tcpMessageHandlerSocket.setTimeout(NetBase.theNetBase().config().getAsInt("net.timeout.socket", 5000));
+			tcpMessageHandlerSocket.setNoDelay(true);
+
+			// this loop exits when readMessageAsString() throws an IOException indicating EOF, or 
+			// because it has timed out on the read
+			while ( true ) {
+				String header = tcpMessageHandlerSocket.readMessageAsString();
+				if ( ! header.equalsIgnoreCase(EchoServiceBase.HEADER_STR))
+					throw new Exception("Bad header: '" + header + "'");
+				String msg = tcpMessageHandlerSocket.readMessageAsString();
+				// now respond
+				// send the response header and the echoed message in one write
+				tcpMessageHandlerSocket.cork();
+				tcpMessageHandlerSocket.sendMessage(EchoServiceBase.RESPONSE_OKAY_STR);
+				tcpMessageHandlerSocket.sendMessage(msg);
+				tcpMessageHandlerSocket.uncork();
+			}
+		} catch (SocketTimeoutException e) {
+			Log.e(TAG, "Timed out waiting for data on tcp connection");
+		} catch (EOFException e) {
+			// normal termination of loop
+			Log.d(TAG, "EOF on tcpMessageHandlerSocket.readMessageAsString()");
+		} catch (Exception e) {
+			Log.i(TAG, "Unexpected exception while handling connection: " + e.getMessage());
+		} finally {
+			if ( tcpMessageHandlerSocket != null ) {
+				try { tcpMessageHandlerSocket.close(); } catch (Exception e) {}
+				mConnectionStats.add(tcpMessageHandlerSocket.getStats(), sock.remoteAddress());
+			} else {
+				try { sock.close(); } catch (Exception e) {}
+			}
+		}
 	}
 
 	/**
@@ -93,9 +108,9 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 	@Override
 	public void shutdown() {
 		super.shutdown();
-		if(mServerSocket != null) {
+		if(mListener != null) {
 			try {
-				mServerSocket.close();
+				mListener.close();
 			} catch (IOException e) {
 				e.printStackTrace();
 			}
@@ -107,8 +122,10 @@ public class EchoTCPMessageHandlerService extends EchoServiceBase  {
 	public String dumpState() {
 		StringBuilder sb = new StringBuilder(super.dumpState());
 		sb.append("\nListening on: ");
-		if ( mServerSocket != null ) sb.append(mServerSocket.toString());
-		sb.append("\n");
+		if ( mListener != null ) sb.append(mListener.toString());
+		sb.append("\n").append(mExecutor);
+		sb.append("\nClosed connections:\n");
+		sb.append(mConnectionStats);
 		return sb.toString();
 	}
 }